@@ -0,0 +1,62 @@
+#!/usr/bin/env python3
+"""Compares two JMH JSON result files and fails on regressions.
+
+Usage: compare.py BASELINE CURRENT [THRESHOLD]
+
+A benchmark regresses when its average time grows by more than THRESHOLD
+(a fraction, 0.2 by default) and by more than the error of both runs.
+Benchmarks missing from the baseline are reported but never fail the check.
+"""
+import json
+import math
+import sys
+
+
+def load(path):
+    with open(path) as f:
+        results = json.load(f)
+    scores = {}
+    for result in results:
+        params = result.get("params") or {}
+        key = result["benchmark"] + "".join(
+            " %s=%s" % (name, params[name]) for name in sorted(params))
+        metric = result["primaryMetric"]
+        error = metric.get("scoreError")
+        if not isinstance(error, (int, float)) or math.isnan(error):
+            error = 0.0
+        scores[key] = (metric["score"], error, metric["scoreUnit"])
+    return scores
+
+
+def main(argv):
+    if len(argv) < 3:
+        print(__doc__.strip())
+        return 2
+    baseline = load(argv[1])
+    current = load(argv[2])
+    threshold = float(argv[3]) if len(argv) > 3 else 0.2
+
+    regressions = 0
+    for key in sorted(current):
+        score, error, unit = current[key]
+        if key not in baseline:
+            print("%-70s %12.3f %s (new)" % (key, score, unit))
+            continue
+        base, base_error, _ = baseline[key]
+        change = (score - base) / base if base else 0.0
+        regressed = change > threshold and score - error > base + base_error
+        print("%-70s %12.3f -> %12.3f %s (%+.1f%%)%s" % (
+            key, base, score, unit, 100 * change, " REGRESSION" if regressed else ""))
+        if regressed:
+            regressions += 1
+            print("::error title=Benchmark regression::%s is %.1f%% slower (%.3f -> %.3f %s)" % (
+                key, 100 * change, base, score, unit))
+
+    if regressions:
+        print("%d benchmark(s) regressed by more than %d%%" % (regressions, 100 * threshold))
+        return 1
+    return 0
+
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv))
@@ -0,0 +1,66 @@
+package network.datahop.blediscovery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup of a written characteristic among the advertised topics, done by the GATT server on every write
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CharacteristicMatchingBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int topics;
+
+    private List<UUID> groups;
+    private CharacteristicIndex<Integer> index;
+    private UUID last;
+    private UUID missing;
+
+    @Setup
+    public void setUp() {
+        groups = new ArrayList<>();
+        for (int i = 0; i < topics; i++) {
+            groups.add(UUID.nameUUIDFromBytes(("topic" + i).getBytes()));
+        }
+        Map<UUID, Integer> characteristics = new LinkedHashMap<>();
+        for (UUID group : groups) {
+            characteristics.put(group, characteristics.size());
+        }
+        index = new CharacteristicIndex<>(characteristics);
+        last = UUID.fromString(groups.get(topics - 1).toString());
+        missing = UUID.nameUUIDFromBytes("missing".getBytes());
+    }
+
+    /* Prebuilt index used by the GATT server and client links */
+    @Benchmark
+    public boolean indexLast() {
+        return index.contains(last);
+    }
+
+    @Benchmark
+    public boolean indexMissing() {
+        return index.contains(missing);
+    }
+
+    /* Baseline comparing the UUID bits instead of their string form */
+    @Benchmark
+    public boolean containsLast() {
+        return groups.contains(last);
+    }
+}
@@ -0,0 +1,116 @@
+package network.datahop.blediscovery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the messages exchanged between the GATT client and server
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CodecBenchmark {
+
+    private static final String VALUE = "QmYwAPJzv5CZsnA625s3Xf2nemtYgPpHdWEz79ojWnPbdG";
+    private static final String PEER = "12D3KooWQYhTNQdmr3ArTeUHRYzFg94BKyTkoWBDWez9kSCVe2Xo";
+
+    @Param({"1", "10"})
+    public int topics;
+
+    private byte[] value;
+    private byte[] peer;
+    private byte[] topicMessage;
+    private byte[] legacyTopicMessage;
+    private byte[] networkInfoMessage;
+    private Map<UUID, byte[]> requestTopics;
+    private Map<UUID, Byte> responseTopics;
+    private byte[] request;
+    private byte[] response;
+    private Map<UUID, String> advertisingInfo;
+
+    @Setup
+    public void setUp() {
+        value = VALUE.getBytes();
+        peer = PEER.getBytes();
+        topicMessage = WireCodec.encodeTopic(value, peer);
+        legacyTopicMessage = WireCodec.encodeLegacyTopic(value, peer);
+        networkInfoMessage = WireCodec.encodeNetworkInfo("DIRECT-xy-datahop".getBytes(), "8Wc3yQ1n".getBytes(), peer);
+        requestTopics = new LinkedHashMap<>();
+        responseTopics = new LinkedHashMap<>();
+        for (int i = 0; i < topics; i++) {
+            UUID topic = UUID.nameUUIDFromBytes(("topic" + i).getBytes());
+            requestTopics.put(topic, value);
+            responseTopics.put(topic, i % 2 == 0 ? ExchangeFrame.STATUS_DIFFERENT : ExchangeFrame.STATUS_SAME);
+        }
+        request = ExchangeFrame.encodeRequest(requestTopics, peer);
+        response = ExchangeFrame.encodeResponse(responseTopics, networkInfoMessage);
+        advertisingInfo = new LinkedHashMap<>();
+        for (UUID topic : requestTopics.keySet()) {
+            advertisingInfo.put(topic, VALUE);
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeTopic() {
+        return WireCodec.encodeTopic(value, peer);
+    }
+
+    @Benchmark
+    public boolean decodeTopic() {
+        return WireCodec.decodeTopic(topicMessage).valueEquals(value);
+    }
+
+    @Benchmark
+    public boolean decodeLegacyTopic() {
+        return WireCodec.decodeTopic(legacyTopicMessage).valueEquals(value);
+    }
+
+    /* Former string based parsing of the GATT server */
+    @Benchmark
+    public boolean decodeStringTopic() {
+        String received = new String(legacyTopicMessage).split(":")[0];
+        String peerId = new String(legacyTopicMessage).split(":")[1];
+        return received.equals(VALUE) && !peerId.isEmpty();
+    }
+
+    @Benchmark
+    public WireCodec.NetworkInfo decodeNetworkInfo() {
+        return WireCodec.decodeNetworkInfo(networkInfoMessage);
+    }
+
+    @Benchmark
+    public byte[] encodeExchangeRequest() {
+        return ExchangeFrame.encodeRequest(requestTopics, peer);
+    }
+
+    @Benchmark
+    public ExchangeFrame.Request decodeExchangeRequest() {
+        return ExchangeFrame.decodeRequest(request);
+    }
+
+    @Benchmark
+    public byte[] encodeExchangeResponse() {
+        return ExchangeFrame.encodeResponse(responseTopics, networkInfoMessage);
+    }
+
+    @Benchmark
+    public ExchangeFrame.Response decodeExchangeResponse() {
+        return ExchangeFrame.decodeResponse(response);
+    }
+
+    @Benchmark
+    public byte[] statusDigest() {
+        return StatusDigest.compute(advertisingInfo);
+    }
+}
@@ -0,0 +1,92 @@
+package network.datahop.blediscovery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Encryption of the network information replied to peers with a different status
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EncryptionBenchmark {
+
+    private static final String PASSWORD = "datahop-password";
+    private static final String MESSAGE = "DIRECT-xy-datahop:8Wc3yQ1n:12D3KooWQYhTNQdmr3ArTeUHRYzFg94BKyTkoWBDWez9kSCVe2Xo";
+
+    private byte[] messageBytes;
+    private byte[] sessionSalt;
+    private SecretKey key;
+    private Encryption.SessionKey sessionKey;
+    private String passwordCiphertext;
+    private String sessionSaltCiphertext;
+    private String keyCiphertext;
+    private byte[] sessionCiphertext;
+    private ByteBuffer out;
+
+    @Setup
+    public void setUp() {
+        messageBytes = MESSAGE.getBytes();
+        sessionSalt = Encryption.generateSalt();
+        key = Encryption.deriveKey(PASSWORD, Encryption.generateSalt());
+        sessionKey = Encryption.createSessionKey(PASSWORD);
+        passwordCiphertext = Encryption.encrypt(MESSAGE, PASSWORD);
+        sessionSaltCiphertext = Encryption.encrypt(messageBytes, PASSWORD, sessionSalt);
+        keyCiphertext = Encryption.encrypt(MESSAGE, key);
+        sessionCiphertext = Encryption.encrypt(sessionKey, messageBytes);
+        out = ByteBuffer.allocate(messageBytes.length + Encryption.GCM_OVERHEAD);
+    }
+
+    /* New random salt, so the key is derived on every message */
+    @Benchmark
+    public String encryptPassword() {
+        return Encryption.encrypt(MESSAGE, PASSWORD);
+    }
+
+    @Benchmark
+    public String encryptPasswordSessionSalt() {
+        return Encryption.encrypt(messageBytes, PASSWORD, sessionSalt);
+    }
+
+    @Benchmark
+    public String decryptPasswordCold() {
+        Encryption.clearKeyCache();
+        return Encryption.decrypt(passwordCiphertext, PASSWORD);
+    }
+
+    @Benchmark
+    public String decryptPasswordCached() {
+        return Encryption.decrypt(sessionSaltCiphertext, PASSWORD);
+    }
+
+    @Benchmark
+    public String encryptSecretKey() {
+        return Encryption.encrypt(MESSAGE, key);
+    }
+
+    @Benchmark
+    public String decryptSecretKey() {
+        return Encryption.decrypt(keyCiphertext, key);
+    }
+
+    @Benchmark
+    public int encryptSession() {
+        out.clear();
+        return Encryption.encrypt(sessionKey, messageBytes, out);
+    }
+
+    @Benchmark
+    public byte[] decryptSession() {
+        return Encryption.decrypt(sessionCiphertext, PASSWORD);
+    }
+}
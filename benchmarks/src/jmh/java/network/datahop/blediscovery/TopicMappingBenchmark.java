@@ -0,0 +1,27 @@
+package network.datahop.blediscovery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping of topic names to characteristic UUIDs, done by both drivers on every addAdvertisingInfo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TopicMappingBenchmark {
+
+    private String topic = "/datahop/content/bbc-news";
+
+    @Benchmark
+    public UUID nameUuidFromBytes() {
+        return UUID.nameUUIDFromBytes(topic.getBytes());
+    }
+}
@@ -0,0 +1,102 @@
+package network.datahop.blediscovery;
+
+import android.bluetooth.le.ScanSettings;
+
+/**
+ * ScanScheduler that adapts the duty cycle to the neighbourhood.
+ * <ul>
+ * <li>Burst: after a local topic change or a cycle that found new or different peers, short
+ * low latency windows are repeated with the minimum idle time for {@code maxIdleTime} ms.</li>
+ * <li>Stable: every cycle without new or different peers doubles the idle time up to the maximum.
+ * Once the idle time is at its maximum low power scanning is used, with a longer window since the
+ * controller only listens for a fraction of it. Dense neighbourhoods see more churn, so their
+ * idle time is capped halfway between the minimum and the maximum.</li>
+ * </ul>
+ */
+public class AdaptiveScanScheduler implements ScanScheduler {
+
+    /* Number of advertisers from which a neighbourhood is considered dense */
+    public static final int DENSE_NEIGHBOURHOOD = 8;
+
+    private final Clock clock;
+    private final long minScanTime, maxScanTime;
+    private final long minIdleTime, maxIdleTime;
+
+    private long lastActivity;
+    private int stableCycles;
+    private int peersSeen;
+
+    /**
+     * AdaptiveScanScheduler class constructor
+     * @param clock time source
+     * @param minScanTime scanning phase duration during bursts
+     * @param maxScanTime scanning phase duration when low power scanning
+     * @param minIdleTime idle time during bursts
+     * @param maxIdleTime maximum idle time when the neighbourhood is stable
+     */
+    public AdaptiveScanScheduler(Clock clock, long minScanTime, long maxScanTime, long minIdleTime, long maxIdleTime) {
+        if (minScanTime <= 0 || maxScanTime < minScanTime || minIdleTime < 0 || maxIdleTime < minIdleTime) {
+            throw new IllegalArgumentException("Invalid scan scheduler bounds");
+        }
+        this.clock = clock;
+        this.minScanTime = minScanTime;
+        this.maxScanTime = maxScanTime;
+        this.minIdleTime = minIdleTime;
+        this.maxIdleTime = maxIdleTime;
+        // Start with a burst to find the neighbourhood quickly
+        this.lastActivity = clock.now();
+    }
+
+    /**
+     * Creates a scheduler from the scan and idle times given to {@link BLEServiceDiscovery#start}.
+     * Bursts scan for {@code scanTime} and idle for an eighth of {@code idleTime}, but never less than
+     * {@code scanTime} nor more than {@code idleTime}. Stable neighbourhoods back off up to {@code idleTime}.
+     * The idle time never exceeds {@code idleTime}, but the scanning phase does: balanced windows scan for up
+     * to twice {@code scanTime} and low power windows for two and a half times {@code scanTime}, since the
+     * controller only listens for a fraction of them.
+     * @param clock time source
+     * @param scanTime duration of the scanning phase
+     * @param idleTime idle time before starting another scan cycle
+     * @return scheduler instance
+     */
+    public static AdaptiveScanScheduler fromDriverTimes(Clock clock, long scanTime, long idleTime) {
+        long minIdle = Math.min(idleTime, Math.max(scanTime, idleTime / 8));
+        return new AdaptiveScanScheduler(clock, scanTime, scanTime * 5 / 2, minIdle, idleTime);
+    }
+
+    @Override
+    public synchronized ScanWindow nextWindow() {
+        if (clock.now() - lastActivity < maxIdleTime) {
+            return new ScanWindow(minScanTime, minIdleTime, ScanSettings.SCAN_MODE_LOW_LATENCY);
+        }
+
+        long maxIdle = peersSeen >= DENSE_NEIGHBOURHOOD ? (minIdleTime + maxIdleTime) / 2 : maxIdleTime;
+        long idle = Math.max(minIdleTime, 1L);
+        for (int i = 0; i < stableCycles && idle < maxIdle; i++) {
+            idle *= 2;
+        }
+        idle = Math.min(idle, maxIdle);
+
+        if (idle >= maxIdleTime) {
+            return new ScanWindow(maxScanTime, idle, ScanSettings.SCAN_MODE_LOW_POWER);
+        }
+        return new ScanWindow(Math.min(maxScanTime, minScanTime * 2), idle, ScanSettings.SCAN_MODE_BALANCED);
+    }
+
+    @Override
+    public synchronized void onCycleCompleted(int peersSeen, int newPeers, int pendingPeers) {
+        this.peersSeen = peersSeen;
+        if (newPeers > 0 || pendingPeers > 0) {
+            lastActivity = clock.now();
+            stableCycles = 0;
+        } else if (clock.now() - lastActivity >= maxIdleTime) {
+            stableCycles++;
+        }
+    }
+
+    @Override
+    public synchronized void onTopicsChanged() {
+        lastActivity = clock.now();
+        stableCycles = 0;
+    }
+}
@@ -0,0 +1,250 @@
+package network.datahop.blediscovery;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Admission control of the clients of the GATT server. In dense crowds every discoverer in range
+ * connects to the advertiser, and serving all of them at once saturates the controller and slows
+ * every exchange down.
+ * Only a bounded number of clients is admitted at the same time and each one is disconnected when
+ * its exchange takes longer than the deadline. Clients above the limit are answered with
+ * {@link Constants#GATT_STATUS_BUSY} on their first request and disconnected, so they back off and retry
+ * later instead of timing out. Write requests of the admitted clients are queued per client and
+ * processed in round-robin order, so a client sending many requests cannot delay the others.
+ * Clients are looked up in a concurrent map, so checking whether a client is admitted, and turning
+ * away the requests of the clients that are not, takes no lock. Only the connections, disconnections
+ * and the requests queued by admitted clients synchronize.
+ */
+public class AdmissionControl {
+
+    private static final String TAG = "AdmissionControl";
+
+    public static final int DEFAULT_MAX_CLIENTS = 4;
+    public static final long DEFAULT_EXCHANGE_DEADLINE = 10000;
+    public static final int DEFAULT_MAX_QUEUED_REQUESTS = 4;
+
+    /**
+     * Interface used to process the requests and act on the clients
+     */
+    public interface Callback {
+        /**
+         * Processes a write request of an admitted client
+         */
+        void onWriteRequest(String device, int requestId, UUID characteristic, byte[] value);
+
+        /**
+         * Answers a request with {@link Constants#GATT_STATUS_BUSY}
+         */
+        void onRejected(String device, int requestId);
+
+        void onDisconnect(String device);
+    }
+
+    private static final class WriteRequest {
+        final int requestId;
+        final UUID characteristic;
+        final byte[] value;
+
+        WriteRequest(int requestId, UUID characteristic, byte[] value) {
+            this.requestId = requestId;
+            this.characteristic = characteristic;
+            this.value = value;
+        }
+    }
+
+    private final class Client {
+        final String device;
+        final boolean admitted;
+        final ArrayDeque<WriteRequest> requests = new ArrayDeque<>();
+
+        final Runnable deadline = new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Exchange deadline reached for " + device);
+                callback.onDisconnect(device);
+            }
+        };
+
+        Client(String device, boolean admitted) {
+            this.device = device;
+            this.admitted = admitted;
+        }
+    }
+
+    private final BleTransport transport;
+    private final Callback callback;
+    /* Written under the lock, read without it */
+    private final ConcurrentHashMap<String, Client> clients;
+    /* Admitted clients with queued requests, in round-robin order */
+    private final ArrayDeque<Client> ready;
+    private int admitted;
+    private boolean drainScheduled;
+
+    private int maxClients = DEFAULT_MAX_CLIENTS;
+    private long exchangeDeadline = DEFAULT_EXCHANGE_DEADLINE;
+    private int maxQueuedRequests = DEFAULT_MAX_QUEUED_REQUESTS;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * AdmissionControl class constructor
+     * @param transport transport scheduling the deadlines and the processing of the requests
+     * @param callback callback processing the requests
+     */
+    public AdmissionControl(BleTransport transport, Callback callback) {
+        this.transport = transport;
+        this.callback = callback;
+        this.clients = new ConcurrentHashMap<>();
+        this.ready = new ArrayDeque<>();
+    }
+
+    /**
+     * @param maxClients maximum number of clients served at the same time
+     */
+    public synchronized void setMaxClients(int maxClients) {
+        this.maxClients = maxClients;
+    }
+
+    /**
+     * @param exchangeDeadline time in ms after which a connected client is disconnected, applied to the next clients
+     */
+    public synchronized void setExchangeDeadline(long exchangeDeadline) {
+        this.exchangeDeadline = exchangeDeadline;
+    }
+
+    /**
+     * @param maxQueuedRequests maximum number of write requests queued per client, the next ones are rejected
+     */
+    public synchronized void setMaxQueuedRequests(int maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
+    }
+
+    /**
+     * Registers a new connection
+     * @param device client address
+     * @return true if the client is admitted
+     */
+    public synchronized boolean connected(String device) {
+        Client existing = clients.get(device);
+        if (existing != null) {
+            return existing.admitted;
+        }
+        Client client = new Client(device, admitted < maxClients);
+        clients.put(device, client);
+        if (client.admitted) {
+            admitted++;
+        }
+        // Clients turned away are disconnected at their first request, or at the deadline if they send none
+        transport.postDelayed(client.deadline, exchangeDeadline);
+        return client.admitted;
+    }
+
+    /**
+     * Forgets a client, dropping its queued requests
+     * @param device client address
+     */
+    public synchronized void disconnected(String device) {
+        Client client = clients.remove(device);
+        if (client == null) return;
+        transport.removeCallbacks(client.deadline);
+        if (client.admitted) {
+            admitted--;
+            ready.remove(client);
+        }
+    }
+
+    /**
+     * @return true if the client is connected and admitted
+     */
+    public boolean isAdmitted(String device) {
+        Client client = clients.get(device);
+        return client != null && client.admitted;
+    }
+
+    /**
+     * @return number of clients admitted
+     */
+    public synchronized int getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * Rejects the request of a client that is not admitted and disconnects it
+     */
+    public void reject(String device, int requestId) {
+        callback.onRejected(device, requestId);
+        callback.onDisconnect(device);
+    }
+
+    /**
+     * Queues a write request. Requests of clients not admitted, or above the queue limit of the client,
+     * are rejected at once.
+     */
+    public void write(String device, int requestId, UUID characteristic, byte[] value) {
+        Client client = clients.get(device);
+        if (client == null || !client.admitted) {
+            Log.d(TAG, "Client not admitted " + device);
+            reject(device, requestId);
+            return;
+        }
+        synchronized (this) {
+            // Still connected, and below the queue limit of the client
+            if (clients.get(device) == client && client.requests.size() < maxQueuedRequests) {
+                if (client.requests.isEmpty()) {
+                    ready.add(client);
+                }
+                client.requests.add(new WriteRequest(requestId, characteristic, value));
+                if (!drainScheduled) {
+                    drainScheduled = true;
+                    transport.post(drainTask);
+                }
+                return;
+            }
+        }
+        Log.d(TAG, "Too many requests queued, or disconnected meanwhile: " + device);
+        callback.onRejected(device, requestId);
+    }
+
+    /**
+     * Drops every client and queued request
+     */
+    public synchronized void clear() {
+        for (Client client : clients.values()) {
+            transport.removeCallbacks(client.deadline);
+        }
+        clients.clear();
+        ready.clear();
+        admitted = 0;
+        transport.removeCallbacks(drainTask);
+        drainScheduled = false;
+    }
+
+    /* One request of each client per round */
+    private void drain() {
+        while (true) {
+            Client client;
+            WriteRequest request;
+            synchronized (this) {
+                client = ready.poll();
+                if (client == null) {
+                    drainScheduled = false;
+                    return;
+                }
+                request = client.requests.poll();
+                if (!client.requests.isEmpty()) {
+                    ready.add(client);
+                }
+            }
+            callback.onWriteRequest(client.device, request.requestId, request.characteristic, request.value);
+        }
+    }
+}
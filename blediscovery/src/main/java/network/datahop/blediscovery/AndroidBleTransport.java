@@ -0,0 +1,666 @@
+package network.datahop.blediscovery;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static android.content.Context.BLUETOOTH_SERVICE;
+
+/**
+ * BleTransport implemented with the Android Bluetooth LE APIs. Tasks and callbacks run on a dedicated
+ * event-loop thread shared by every transport, so no Bluetooth work runs on the main thread. GATT client
+ * and advertising callbacks are delivered there by the stack, GATT server callbacks arrive on binder
+ * threads and are posted to it. Scan results go through a {@link ScanResultBuffer} drained in batches
+ * by the event loop, so the scan callback neither locks nor allocates.
+ */
+public class AndroidBleTransport implements BleTransport {
+
+    private static final String TAG = "AndroidBleTransport";
+
+    private static HandlerThread sEventThread;
+
+    private final Context context;
+    private final BluetoothManager mBluetoothManager;
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final Handler handler;
+
+    private ScanCallback mScanCallback;
+    /* Listener of the current scan, null once stopped so buffered results are discarded */
+    private volatile ScanListener mScanListener;
+    private final ScanResultBuffer scanResults = new ScanResultBuffer(ScanResultBuffer.DEFAULT_CAPACITY);
+    private final AtomicBoolean scanDrainScheduled = new AtomicBoolean();
+    private AdvertisingSetCallback mAdvertisingSetCallback;
+    /* Advertising set started by the callback, null until the controller starts it */
+    private AdvertisingSet mAdvertisingSet;
+    private ParcelUuid mAdvertisedService;
+    private byte[] mServiceData;
+
+    /**
+     * AndroidBleTransport class constructor
+     * @param context Android context
+     */
+    public AndroidBleTransport(Context context) {
+        this.context = context;
+        this.mBluetoothManager = (BluetoothManager) context.getSystemService(BLUETOOTH_SERVICE);
+        this.mBluetoothAdapter = mBluetoothManager != null ? mBluetoothManager.getAdapter() : null;
+        this.handler = new Handler(eventLooper());
+    }
+
+    @Override
+    public long getScanOverflows() {
+        return scanResults.getOverflows();
+    }
+
+    @Override
+    public long getScanDuplicates() {
+        return scanResults.getDuplicates();
+    }
+
+    private final ScanResultBuffer.Consumer mScanConsumer = new ScanResultBuffer.Consumer() {
+        @Override
+        public void onScanResult(String address, int rssi, byte[] serviceData) {
+            ScanListener listener = mScanListener;
+            if (listener != null) listener.onScanResult(address, rssi, serviceData);
+        }
+    };
+
+    private final Runnable mDrainScanResults = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared before draining, so results offered from now on schedule another drain
+            scanDrainScheduled.set(false);
+            scanResults.drain(mScanListener != null ? mScanConsumer : null);
+            if (scanResults.hasPending() && scanDrainScheduled.compareAndSet(false, true)) {
+                handler.post(this);
+            }
+        }
+    };
+
+    private static synchronized Looper eventLooper() {
+        if (sEventThread == null) {
+            sEventThread = new HandlerThread("BleDriver");
+            sEventThread.start();
+        }
+        return sEventThread.getLooper();
+    }
+
+    @Override
+    public Clock getClock() {
+        return Clock.SYSTEM;
+    }
+
+    @Override
+    public boolean isEventThread() {
+        return Looper.myLooper() == handler.getLooper();
+    }
+
+    @Override
+    public void post(Runnable task) {
+        handler.post(task);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delay) {
+        handler.postDelayed(task, delay);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return mBluetoothAdapter != null && mBluetoothAdapter.isEnabled();
+    }
+
+    @Override
+    public void enable() {
+        if (mBluetoothAdapter != null) mBluetoothAdapter.enable();
+    }
+
+    @Override
+    public void disable() {
+        if (mBluetoothAdapter != null) mBluetoothAdapter.disable();
+    }
+
+    @Override
+    public synchronized boolean startScan(final UUID serviceUuid, int scanMode, final ScanListener listener) {
+        BluetoothLeScanner scanner = mBluetoothAdapter != null ? mBluetoothAdapter.getBluetoothLeScanner() : null;
+        if (scanner == null) {
+            Log.d(TAG, "Scanner not available");
+            return false;
+        }
+        stopScan();
+        mScanListener = listener;
+        final ParcelUuid parcelUuid = new ParcelUuid(serviceUuid);
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(scanMode)
+                .build();
+        List<ScanFilter> filters = new ArrayList<>();
+        filters.add(new ScanFilter.Builder()
+                .setServiceUuid(parcelUuid)
+                .build());
+        mScanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                byte[] serviceData = result.getScanRecord() != null ? result.getScanRecord().getServiceData(parcelUuid) : null;
+                scanResults.offer(result.getDevice().getAddress(), result.getRssi(), serviceData);
+                // A full buffer always has a drain scheduled
+                if (scanDrainScheduled.compareAndSet(false, true)) {
+                    handler.post(mDrainScanResults);
+                }
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                for (ScanResult result : results) {
+                    onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+                }
+            }
+
+            @Override
+            public void onScanFailed(final int errorCode) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onScanFailed(errorCode);
+                    }
+                });
+            }
+        };
+        try {
+            scanner.startScan(filters, settings, mScanCallback);
+        } catch (IllegalStateException e) {
+            Log.d(TAG, "Exception " + e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void stopScan() {
+        if (mScanCallback == null) return;
+        try {
+            BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+            scanner.stopScan(mScanCallback);
+            scanner.flushPendingScanResults(mScanCallback);
+        } catch (Exception e) {
+            Log.d(TAG, "Failed when stopping ble scanner " + e);
+        }
+        mScanCallback = null;
+        mScanListener = null;
+    }
+
+    @Override
+    public synchronized boolean startAdvertising(UUID serviceUuid, byte[] serviceData, final AdvertiseListener listener) {
+        if (mBluetoothAdapter == null || !mBluetoothAdapter.isMultipleAdvertisementSupported()) {
+            Log.d(TAG, "Advertising not supported");
+            return false;
+        }
+        BluetoothLeAdvertiser adv = mBluetoothAdapter.getBluetoothLeAdvertiser();
+        if (adv == null) {
+            return false;
+        }
+        stopAdvertising();
+        mAdvertisedService = new ParcelUuid(serviceUuid);
+        mServiceData = serviceData;
+        final byte[] startData = serviceData;
+
+        // Legacy connectable advertisement with the interval and power of ADVERTISE_MODE_BALANCED,
+        // started as an advertising set so its data can be replaced without stopping it
+        AdvertisingSetParameters parameters = new AdvertisingSetParameters.Builder()
+                .setLegacyMode(true)
+                .setConnectable(true)
+                .setScannable(true)
+                .setInterval(AdvertisingSetParameters.INTERVAL_MEDIUM)
+                .setTxPowerLevel(AdvertisingSetParameters.TX_POWER_MEDIUM)
+                .build();
+
+        AdvertiseData advertiseData = new AdvertiseData.Builder()
+                .addServiceUuid(mAdvertisedService)
+                .setIncludeTxPowerLevel(false)
+                .setIncludeDeviceName(false)
+                .build();
+
+        mAdvertisingSetCallback = new AdvertisingSetCallback() {
+            @Override
+            public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+                if (status == ADVERTISE_SUCCESS) {
+                    synchronized (AndroidBleTransport.this) {
+                        if (mAdvertisingSetCallback != this) return;
+                        mAdvertisingSet = advertisingSet;
+                        // Data updated while the set was starting
+                        if (mServiceData != startData) advertisingSet.setScanResponseData(scanResponse(mServiceData));
+                    }
+                    return;
+                }
+                switch (status) {
+                    case AdvertiseCallback.ADVERTISE_FAILED_DATA_TOO_LARGE:
+                        Log.d(TAG, "ADVERTISE_FAILED_DATA_TOO_LARGE");
+                        break;
+                    case AdvertiseCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS:
+                        Log.d(TAG, "ADVERTISE_FAILED_TOO_MANY_ADVERTISERS");
+                        break;
+                    case AdvertiseCallback.ADVERTISE_FAILED_ALREADY_STARTED:
+                        Log.d(TAG, "ADVERTISE_FAILED_ALREADY_STARTED");
+                        break;
+                    case AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR:
+                        Log.d(TAG, "ADVERTISE_FAILED_INTERNAL_ERROR");
+                        break;
+                    case AdvertiseCallback.ADVERTISE_FAILED_FEATURE_UNSUPPORTED:
+                        Log.d(TAG, "ADVERTISE_FAILED_FEATURE_UNSUPPORTED");
+                        break;
+                    default:
+                        Log.d(TAG, "startAdvertising failed with unknown error " + status);
+                        break;
+                }
+                listener.onAdvertiseFailed(status);
+            }
+
+            @Override
+            public void onScanResponseDataSet(AdvertisingSet advertisingSet, int status) {
+                if (status != ADVERTISE_SUCCESS) {
+                    Log.d(TAG, "Scan response update failed " + status);
+                }
+            }
+        };
+        adv.startAdvertisingSet(parameters, advertiseData, scanResponse(serviceData), null, null, 0, 0,
+                mAdvertisingSetCallback, handler);
+        return true;
+    }
+
+    /* The status digest does not fit next to a 128-bit service UUID in the
+     * advertising packet, so it is sent in the scan response */
+    private AdvertiseData scanResponse(byte[] serviceData) {
+        AdvertiseData.Builder scanResponse = new AdvertiseData.Builder()
+                .setIncludeTxPowerLevel(false)
+                .setIncludeDeviceName(false);
+        if (serviceData != null) {
+            scanResponse.addServiceData(mAdvertisedService, serviceData);
+        }
+        return scanResponse.build();
+    }
+
+    @Override
+    public synchronized boolean updateAdvertisingData(byte[] serviceData) {
+        if (mAdvertisingSetCallback == null) return false;
+        mServiceData = serviceData;
+        if (mAdvertisingSet != null) mAdvertisingSet.setScanResponseData(scanResponse(serviceData));
+        return true;
+    }
+
+    @Override
+    public synchronized void stopAdvertising() {
+        if (mAdvertisingSetCallback == null) return;
+        BluetoothLeAdvertiser adv = mBluetoothAdapter.getBluetoothLeAdvertiser();
+        if (adv != null) adv.stopAdvertisingSet(mAdvertisingSetCallback);
+        mAdvertisingSetCallback = null;
+        mAdvertisingSet = null;
+        mServiceData = null;
+    }
+
+    @Override
+    public GattClientLink connect(String address, UUID serviceUuid, GattClientLink.Callback callback) {
+        if (mBluetoothAdapter == null) {
+            Log.d(TAG, "BluetoothAdapter not initialized");
+            return null;
+        }
+        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        if (device == null) {
+            Log.d(TAG, "Device not found.  Unable to connect.");
+            return null;
+        }
+        AndroidGattClientLink link = new AndroidGattClientLink(device, serviceUuid, callback);
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        if (!link.connect(context, handler)) {
+            return null;
+        }
+        return link;
+    }
+
+    @Override
+    public List<String> getConnectedDevices() {
+        if (mBluetoothManager == null) return Collections.emptyList();
+        List<String> addresses = new ArrayList<>();
+        for (BluetoothDevice device : mBluetoothManager.getConnectedDevices(BluetoothProfile.GATT)) {
+            addresses.add(device.getAddress());
+        }
+        return addresses;
+    }
+
+    @Override
+    public GattServerLink openServer(GattServerLink.Callback callback) {
+        if (mBluetoothManager == null) return null;
+        AndroidGattServerLink link = new AndroidGattServerLink(mBluetoothAdapter, callback, handler);
+        BluetoothGattServer server = mBluetoothManager.openGattServer(context, link);
+        if (server == null) {
+            Log.d(TAG, "Unable to create GATT server");
+            return null;
+        }
+        link.setServer(server);
+        return link;
+    }
+
+    /**
+     * GattClientLink forwarding the BluetoothGatt callbacks
+     */
+    private static class AndroidGattClientLink extends BluetoothGattCallback implements GattClientLink {
+
+        private final BluetoothDevice device;
+        private final UUID serviceUuid;
+        private final GattClientLink.Callback callback;
+        private volatile BluetoothGatt gatt;
+        /* Characteristics of the remote service, indexed once the services are discovered */
+        private volatile CharacteristicIndex<BluetoothGattCharacteristic> characteristics = CharacteristicIndex.empty();
+
+        AndroidGattClientLink(BluetoothDevice device, UUID serviceUuid, GattClientLink.Callback callback) {
+            this.device = device;
+            this.serviceUuid = serviceUuid;
+            this.callback = callback;
+        }
+
+        boolean connect(Context context, Handler handler) {
+            gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE,
+                    BluetoothDevice.PHY_LE_1M_MASK, handler);
+            return gatt != null;
+        }
+
+        private BluetoothGattCharacteristic characteristic(UUID uuid) {
+            return gatt != null ? characteristics.get(uuid) : null;
+        }
+
+        @Override
+        public String getAddress() {
+            return device.getAddress();
+        }
+
+        @Override
+        public String getName() {
+            return device.getName();
+        }
+
+        @Override
+        public boolean discoverServices() {
+            BluetoothGatt current = gatt;
+            return current != null && current.discoverServices();
+        }
+
+        @Override
+        public List<UUID> getCharacteristics() {
+            return characteristics.getUuids();
+        }
+
+        @Override
+        public boolean hasDescriptor(UUID characteristic, UUID descriptor) {
+            BluetoothGattCharacteristic c = characteristic(characteristic);
+            return c != null && c.getDescriptor(descriptor) != null;
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(UUID characteristic, boolean enable) {
+            BluetoothGattCharacteristic c = characteristic(characteristic);
+            return c != null && gatt.setCharacteristicNotification(c, enable);
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID characteristic, byte[] value) {
+            BluetoothGattCharacteristic c = characteristic(characteristic);
+            if (c == null) return false;
+            c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            c.setValue(value);
+            return gatt.writeCharacteristic(c);
+        }
+
+        @Override
+        public boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value) {
+            BluetoothGattCharacteristic c = characteristic(characteristic);
+            BluetoothGattDescriptor d = c != null ? c.getDescriptor(descriptor) : null;
+            if (d == null) return false;
+            d.setValue(value);
+            return gatt.writeDescriptor(d);
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID characteristic) {
+            BluetoothGattCharacteristic c = characteristic(characteristic);
+            return c != null && gatt.readCharacteristic(c);
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            BluetoothGatt current = gatt;
+            return current != null && current.requestMtu(mtu);
+        }
+
+        @Override
+        public void disconnect() {
+            BluetoothGatt current = gatt;
+            if (current != null) current.disconnect();
+        }
+
+        @Override
+        public void close() {
+            BluetoothGatt current = gatt;
+            gatt = null;
+            characteristics = CharacteristicIndex.empty();
+            if (current != null) current.close();
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            callback.onConnectionStateChange(status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                characteristics = BluetoothUtils.indexCharacteristics(gatt.getService(serviceUuid));
+            }
+            callback.onServicesDiscovered(status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            callback.onMtuChanged(mtu, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            callback.onCharacteristicWrite(characteristic.getUuid(), status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            callback.onCharacteristicChanged(characteristic.getUuid(), characteristic.getValue());
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            callback.onCharacteristicRead(characteristic.getUuid(), characteristic.getValue(), status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            callback.onDescriptorWrite(descriptor.getCharacteristic().getUuid(), descriptor.getUuid(), status);
+        }
+    }
+
+    /**
+     * GattServerLink forwarding the BluetoothGattServer callbacks
+     */
+    private static class AndroidGattServerLink extends BluetoothGattServerCallback implements GattServerLink {
+
+        private final BluetoothAdapter adapter;
+        private final GattServerLink.Callback callback;
+        private final Handler handler;
+        private final Map<String, BluetoothDevice> devices;
+        private volatile BluetoothGattServer server;
+        /* Characteristics of the local service, indexed when the service is added */
+        private volatile CharacteristicIndex<BluetoothGattCharacteristic> characteristics = CharacteristicIndex.empty();
+
+        AndroidGattServerLink(BluetoothAdapter adapter, GattServerLink.Callback callback, Handler handler) {
+            this.adapter = adapter;
+            this.callback = callback;
+            this.handler = handler;
+            this.devices = new ConcurrentHashMap<>();
+        }
+
+        void setServer(BluetoothGattServer server) {
+            this.server = server;
+        }
+
+        private BluetoothDevice device(String address) {
+            BluetoothDevice device = devices.get(address);
+            return device != null ? device : adapter.getRemoteDevice(address);
+        }
+
+        @Override
+        public boolean addService(UUID serviceUuid, Map<UUID, Integer> characteristics) {
+            BluetoothGattService gattService = new BluetoothGattService(serviceUuid, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+            for (Map.Entry<UUID, Integer> entry : characteristics.entrySet()) {
+                gattService.addCharacteristic(new BluetoothGattCharacteristic(
+                        entry.getKey(),
+                        entry.getValue(),
+                        BluetoothGattCharacteristic.PERMISSION_WRITE));
+            }
+            this.characteristics = BluetoothUtils.indexCharacteristics(gattService);
+            return server.addService(gattService);
+        }
+
+        @Override
+        public boolean removeService(UUID serviceUuid) {
+            BluetoothGattServer current = server;
+            BluetoothGattService gattService = current != null ? current.getService(serviceUuid) : null;
+            if (gattService == null) return false;
+            characteristics = CharacteristicIndex.empty();
+            return current.removeService(gattService);
+        }
+
+        @Override
+        public boolean sendResponse(String device, int requestId, int status, int offset, byte[] value) {
+            BluetoothGattServer current = server;
+            return current != null && current.sendResponse(device(device), requestId, status, offset, value);
+        }
+
+        @Override
+        public boolean notifyCharacteristicChanged(String device, UUID characteristic, byte[] value, boolean confirm) {
+            BluetoothGattServer current = server;
+            if (current == null) return false;
+            BluetoothGattCharacteristic c = characteristics.get(characteristic);
+            if (c == null) return false;
+            c.setValue(value);
+            return current.notifyCharacteristicChanged(device(device), c, confirm);
+        }
+
+        @Override
+        public void cancelConnection(String device) {
+            BluetoothGattServer current = server;
+            if (current != null) current.cancelConnection(device(device));
+        }
+
+        @Override
+        public void close() {
+            BluetoothGattServer current = server;
+            server = null;
+            if (current != null) current.close();
+        }
+
+        @Override
+        public void onConnectionStateChange(final BluetoothDevice device, final int status, final int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                devices.put(device.getAddress(), device);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                devices.remove(device.getAddress());
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onConnectionStateChange(device.getAddress(), status, newState);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(final BluetoothDevice device, final int requestId, final int offset,
+                                                final BluetoothGattCharacteristic characteristic) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onCharacteristicReadRequest(device.getAddress(), requestId, offset, characteristic.getUuid(),
+                            characteristic.getProperties());
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWriteRequest(final BluetoothDevice device, final int requestId,
+                                                 final BluetoothGattCharacteristic characteristic, final boolean preparedWrite,
+                                                 final boolean responseNeeded, final int offset, final byte[] value) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onCharacteristicWriteRequest(device.getAddress(), requestId, characteristic.getUuid(),
+                            preparedWrite, responseNeeded, offset, value);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(final BluetoothDevice device, final int requestId,
+                                             final BluetoothGattDescriptor descriptor, final boolean preparedWrite,
+                                             final boolean responseNeeded, final int offset, final byte[] value) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onDescriptorWriteRequest(device.getAddress(), requestId, descriptor.getCharacteristic().getUuid(),
+                            descriptor.getUuid(), preparedWrite, responseNeeded, offset, value);
+                }
+            });
+        }
+
+        @Override
+        public void onNotificationSent(final BluetoothDevice device, final int status) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onNotificationSent(device.getAddress(), status);
+                }
+            });
+        }
+    }
+}
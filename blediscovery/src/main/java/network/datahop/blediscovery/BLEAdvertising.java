@@ -1,31 +1,15 @@
 package network.datahop.blediscovery;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattServer;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.AdvertiseCallback;
-import android.bluetooth.le.AdvertiseData;
-import android.bluetooth.le.AdvertiseSettings;
-import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
-import android.os.ParcelUuid;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
 import java.util.UUID;
-import java.util.List;
-import java.util.ArrayList;
 
 import datahop.AdvertisingDriver;
 import datahop.AdvertisementNotifier;
 
-import static android.bluetooth.le.AdvertiseSettings.ADVERTISE_MODE_BALANCED;
-import static android.bluetooth.le.AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM;
-import static android.content.Context.BLUETOOTH_SERVICE;
-
 import javax.crypto.SecretKey;
 
 /**
@@ -35,25 +19,24 @@ import javax.crypto.SecretKey;
  * and each topic is configured as a BLE characteristic in the GATT server.
  * Characteristics are compared in the GATT Server when accepting connections to compare status for each "topic.
  * When detected different values of the "topics" means different service status and it can reply with network information.
+ * The radio is accessed through a {@link BleTransport}. The driver state is owned by the event loop of the
+ * transport, shared with BLEServiceDiscovery: the public methods enqueue their work on it, and the notifier
+ * is invoked from it.
  */
 public class BLEAdvertising  implements AdvertisingDriver{
 
     private static final String TAG = BLEAdvertising.class.getSimpleName();
-    private BluetoothLeAdvertiser adv;
-    private AdvertiseCallback advertiseCallback;
-    private BluetoothManager manager;
-    private BluetoothAdapter btAdapter;
-    private GattServerCallback serverCallback;
-    private BluetoothGattServer mBluetoothGattServer;
-    private HashMap<UUID,String> advertisingInfo;
-    private HashMap<UUID,String> convertedCharacteristics;
+    private final BleTransport transport;
+    private volatile GattServerCallback serverCallback;
+    /* Notifications dropped by the GATT servers already stopped */
+    private volatile int stoppedDrops;
+    private GattServerLink mBluetoothGattServer;
+    private final TopicRegistry topics;
+    private final UpdateCoalescer updates;
 
     private static volatile BLEAdvertising mBleAdvertising;
-    private Context context;
-
-    private static AdvertisementNotifier notifier;
 
-    private List<UUID> pendingNotifications;
+    private volatile AdvertisementNotifier notifier;
 
 
     private String serviceId;
@@ -65,18 +48,44 @@ public class BLEAdvertising  implements AdvertisingDriver{
     //private SecretKey key;
     //private byte[] salt;
     private String password;
+    /* Salt reused by every encrypted reply of the session, so peers derive the key only once */
+    private byte[] sessionSalt;
+    /* Key of the binary encryption mode used in exchange responses, derived on first use */
+    private Encryption.SessionKey sessionKey;
+    /* Admission limits of the GATT server, applied to each server started */
+    private int maxClients = AdmissionControl.DEFAULT_MAX_CLIENTS;
+    private long exchangeDeadline = AdmissionControl.DEFAULT_EXCHANGE_DEADLINE;
+    /* Runs an event on the event loop, at once when already called from it */
+    private void execute(Runnable event) {
+        if (transport.isEventThread()) {
+            event.run();
+        } else {
+            transport.post(event);
+        }
+    }
+
     /**
      * BLEAdvertising class constructor
      * @param context Android context
      */
     private BLEAdvertising(Context context){
+        this(new AndroidBleTransport(context));
+    }
+
+    /**
+     * BLEAdvertising class constructor
+     * @param transport radio used for advertising and hosting the GATT server
+     */
+    BLEAdvertising(BleTransport transport){
         Log.d(TAG,"New bleadvertising");
-        this.manager = (BluetoothManager) context.getSystemService(BLUETOOTH_SERVICE);
-        this.btAdapter = manager.getAdapter();
-        this.context = context;
-        this.advertisingInfo = new HashMap<>();
-        this.convertedCharacteristics = new HashMap<>();
-        this.pendingNotifications = new ArrayList<>();
+        this.transport = transport;
+        this.topics = new TopicRegistry();
+        this.updates = new UpdateCoalescer(transport, UpdateCoalescer.DEFAULT_WINDOW, new Runnable() {
+            @Override
+            public void run() {
+                if (topics.publish() && started) update();
+            }
+        });
     }
 
     /* Singleton method that creates and returns a BLEAdvertising instance
@@ -114,72 +123,78 @@ public class BLEAdvertising  implements AdvertisingDriver{
      * Set the encryption passphrase
      * @param password passphrase used for encrypting
      */
-    public void setPassword(String password){
-        this.password = password;
+    public void setPassword(final String password){
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                BLEAdvertising.this.password = password;
+                sessionKey = null;
+            }
+        });
     }
 
     /**
-     * This method configures AdvertiseSettings, starts advertising via BluetoothLeAdvertiser
+     * This method starts advertising the service with the status digest of the topics
      * and starts the GATT server
      * @param serviceId service id
      * @param peerInfo peer identifier
      */
-    public void start(String serviceId, String peerInfo) {
+    public void start(final String serviceId, final String peerInfo) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                onStart(serviceId, peerInfo);
+            }
+        });
+    }
+
+    private void onStart(String serviceId, String peerInfo) {
         this.serviceId = serviceId;
         this.peerInfo = peerInfo;
+        this.sessionSalt = Encryption.generateSalt();
+        this.sessionKey = null;
+        updates.flush();
         Log.d(TAG, "Starting ADV, Tx power " + this.serviceId.toString());
 
         if (notifier == null || this.serviceId == null) {
             Log.e(TAG, "notifier not found");
             return ;
         }
-        if (btAdapter != null) {
-            if (btAdapter.isMultipleAdvertisementSupported()) {
-                Log.d(TAG, "Starting ADV2, Tx power " + this.serviceId.toString());
-                adv = btAdapter.getBluetoothLeAdvertiser();
-                advertiseCallback = createAdvertiseCallback();
-                ParcelUuid mServiceUUID = new ParcelUuid(UUID.nameUUIDFromBytes(this.serviceId.getBytes()));
-
-                AdvertiseSettings advertiseSettings = new AdvertiseSettings.Builder()
-                        .setAdvertiseMode(ADVERTISE_MODE_BALANCED)
-                        .setTxPowerLevel(ADVERTISE_TX_POWER_MEDIUM)
-                        .setConnectable(true)
-                        .build();
-
-                AdvertiseData advertiseData = new AdvertiseData.Builder()
-                        //          .addManufacturerData(0, stats.getUserName().getBytes())
-                        .addServiceUuid(mServiceUUID)
-                        .setIncludeTxPowerLevel(false)
-                        .setIncludeDeviceName(false)
-                        .build();
-                adv.startAdvertising(advertiseSettings, advertiseData, advertiseCallback);
+        Log.d(TAG, "Starting ADV2, Tx power " + this.serviceId.toString());
+        UUID mServiceUUID = UUID.nameUUIDFromBytes(this.serviceId.getBytes());
+        TopicRegistry.Snapshot snapshot = topics.snapshot();
+        transport.startAdvertising(mServiceUUID, snapshot.getDigest(), new BleTransport.AdvertiseListener() {
+            @Override
+            public void onAdvertiseFailed(int errorCode) {
+                Log.d(TAG, "Advertising failed " + errorCode);
             }
-        }
-        startGATTServer(this.serviceId);
+        });
+        startGATTServer(this.serviceId, snapshot);
         started=true;
     }
 
     /**
      * This method starts the GATT server
      * @param serviceid service id
+     * @param snapshot topic values served
      */
-    private void startGATTServer(String serviceid){
+    private void startGATTServer(String serviceid, TopicRegistry.Snapshot snapshot){
         Log.d(TAG, "startGATTServer");
 
-        serverCallback = new GattServerCallback(context, serviceid, advertisingInfo, new DiscoveryListener() {
+        serverCallback = new GattServerCallback(serviceid, snapshot, transport, new DiscoveryListener() {
             @Override
             public void sameStatusDiscovered(UUID characteristic) {
-                pendingNotifications.add(characteristic);
                 notifier.advertiserPeerSameStatus();
             }
 
             @Override
             public void differentStatusDiscovered(byte[] value,UUID characteristic,String peerId) {
-                pendingNotifications.add(characteristic);
-                notifier.advertiserPeerDifferentStatus(convertedCharacteristics.get(characteristic),value,peerId);
+                notifier.advertiserPeerDifferentStatus(topics.snapshot().getName(characteristic),value,peerId);
             }
         });
-        mBluetoothGattServer = manager.openGattServer(context, serverCallback);
+        serverCallback.getAdmission().setMaxClients(maxClients);
+        serverCallback.getAdmission().setExchangeDeadline(exchangeDeadline);
+        mBluetoothGattServer = transport.openServer(serverCallback);
         serverCallback.setServer(mBluetoothGattServer);
 
         if (mBluetoothGattServer == null) {
@@ -187,19 +202,9 @@ public class BLEAdvertising  implements AdvertisingDriver{
             return;
         }
 
-
-        ParcelUuid SERVICE_UUID = new ParcelUuid(UUID.nameUUIDFromBytes(serviceid.getBytes()));
-        BluetoothGattService service = new BluetoothGattService(SERVICE_UUID.getUuid(), BluetoothGattService.SERVICE_TYPE_PRIMARY);
-
-        for(UUID uuid:advertisingInfo.keySet()){
-            Log.d(TAG, "Advertising characteristic " + uuid.toString());
-            BluetoothGattCharacteristic writeCharacteristic = new BluetoothGattCharacteristic(
-                    uuid,
-                    BluetoothGattCharacteristic.PROPERTY_WRITE,
-                    BluetoothGattCharacteristic.PERMISSION_WRITE);
-            service.addCharacteristic(writeCharacteristic);
-        }
-        mBluetoothGattServer.addService(service);
+        // One characteristic per topic plus the exchange characteristic receiving all the topics in a single frame
+        Log.d(TAG, "Advertising characteristics " + snapshot.getValues().keySet());
+        mBluetoothGattServer.addService(serverCallback.getServiceUuid(), serverCallback.getCharacteristics());
 
     }
 
@@ -208,36 +213,113 @@ public class BLEAdvertising  implements AdvertisingDriver{
      */
     @Override
     public void stop() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                onStop();
+            }
+        });
+    }
+
+    private void onStop() {
         started=false;
         Log.d(TAG, "Stopping ADV");
-        if(adv!=null)adv.stopAdvertising(advertiseCallback);
-        if(serverCallback!=null)serverCallback.stop();
+        transport.stopAdvertising();
+        GattServerCallback server = serverCallback;
+        serverCallback = null;
+        if(server!=null) {
+            server.stop();
+            stoppedDrops += server.getNotifications().getDropped();
+        }
     }
 
     /**
      * This method adds advertising information value for the specified "topic". In case "topic"
-     * already exists information is updated
+     * already exists information is updated. Changes are applied at the end of the update window.
      * @param topic topic id
      * @param info value advertised
      */
     @Override
-    public void addAdvertisingInfo(String topic, String info){
+    public void addAdvertisingInfo(final String topic, final String info){
         //String inf = new String(info);
         Log.d(TAG,"Advertising info "+topic+" "+info);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if(!topics.stage(topic, info)) {
+                    Log.d(TAG,"Advertising info equal");
+                    return;
+                }
+                updates.changed();
+            }
+        });
+    }
+
+    /**
+     * Sets the window in which topic changes are batched into a single advertising update
+     * @param window window in ms, zero to apply every change immediately
+     */
+    public void setUpdateWindow(long window) {
+        updates.setWindow(window);
+    }
+
+    /**
+     * Applies the topic changes waiting for the end of the update window
+     */
+    public void flushAdvertisingInfo() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                updates.flush();
+            }
+        });
+    }
 
-        if(advertisingInfo.get(UUID.nameUUIDFromBytes(topic.getBytes()))!=null) {
-            Log.d(TAG,"Advertising info not null "+advertisingInfo.get(topic)+" "+info);
-            if (advertisingInfo.get(UUID.nameUUIDFromBytes(topic.getBytes())).equals(info)) {
-                Log.d(TAG,"Advertising info equal");
-                return;
+    /**
+     * Sets the number of clients served at the same time, the next ones are answered busy
+     * @param maxClients maximum number of clients
+     */
+    public void setMaxClients(final int maxClients) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                BLEAdvertising.this.maxClients = maxClients;
+                GattServerCallback server = serverCallback;
+                if (server != null) server.getAdmission().setMaxClients(maxClients);
             }
-        }
-        advertisingInfo.put(UUID.nameUUIDFromBytes(topic.getBytes()), info);
-        convertedCharacteristics.put(UUID.nameUUIDFromBytes(topic.getBytes()), topic);
-        if(started)restart();
+        });
+    }
 
+    /**
+     * Sets the time given to each client to complete its exchange before being disconnected
+     * @param exchangeDeadline deadline in ms
+     */
+    public void setExchangeDeadline(final long exchangeDeadline) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                BLEAdvertising.this.exchangeDeadline = exchangeDeadline;
+                GattServerCallback server = serverCallback;
+                if (server != null) server.getAdmission().setExchangeDeadline(exchangeDeadline);
+            }
+        });
+    }
 
+    /**
+     * @param device address of a connected client
+     * @return notifications queued for the client in the running GATT server, including the one in flight
+     */
+    public int getNotificationDepth(String device) {
+        GattServerCallback server = serverCallback;
+        return server != null ? server.getNotifications().getDepth(device) : 0;
+    }
 
+    /**
+     * @return notifications dropped since the driver was created, across GATT server restarts
+     */
+    public int getDroppedNotifications() {
+        GattServerCallback server = serverCallback;
+        return stoppedDrops + (server != null ? server.getNotifications().getDropped() : 0);
     }
 
     /**
@@ -246,20 +328,52 @@ public class BLEAdvertising  implements AdvertisingDriver{
      * @param password
      */
     @Override
-    public void notifyNetworkInformation(String network, String pass){
-
-        String msg = network+":"+pass+":"+peerInfo;
-        if(password!=null) {
-            try {
-                String encMsg = Encryption.encrypt(msg,password);
-                for(UUID characteristic : pendingNotifications)
-                    serverCallback.notifyCharacteristic(encMsg.getBytes(), characteristic);
-            } catch (Exception e) {
-                e.printStackTrace();
+    public void notifyNetworkInformation(final String network, final String pass){
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                onNetworkInformation(network, pass);
             }
-        } else {
-            for(UUID characteristic : pendingNotifications)
-                serverCallback.notifyCharacteristic(msg.getBytes(), characteristic);
+        });
+    }
+
+    private void onNetworkInformation(String network, String pass) {
+        // Each reply answers the oldest pending request, and is only sent to the device that made it.
+        // The request is taken first, so the message is encoded for the request it answers
+        GattServerCallback server = serverCallback;
+        PendingReplyLedger.Reply reply = server != null ? server.takeReply() : null;
+        if(reply==null) {
+            Log.d(TAG,"No pending request for network information");
+            return;
+        }
+        boolean exchange = GattServerCallback.getReplyKind(reply)==GattServerCallback.REPLY_EXCHANGE;
+
+        byte[] networkBytes = WireCodec.utf8(network);
+        byte[] passBytes = WireCodec.utf8(pass);
+        byte[] peerBytes = WireCodec.utf8(peerInfo);
+        try {
+            byte[] msg;
+            if(exchange) {
+                // Exchange frames carry the binary message encrypted in session mode
+                msg = WireCodec.encodeNetworkInfo(networkBytes, passBytes, peerBytes);
+                if(password!=null) {
+                    if(sessionKey==null)
+                        sessionKey = Encryption.createSessionKey(password);
+                    ByteBuffer encrypted = ByteBuffer.allocate(msg.length + Encryption.GCM_OVERHEAD);
+                    Encryption.encrypt(sessionKey, msg, encrypted);
+                    msg = encrypted.array();
+                }
+            } else {
+                // Per-topic writes are answered with the legacy text
+                msg = WireCodec.encodeLegacyNetworkInfo(networkBytes, passBytes, peerBytes);
+                if(password!=null)
+                    msg = Encryption.encrypt(msg,password,sessionSalt).getBytes();
+            }
+            server.reply(reply, msg);
+        } catch (Exception e) {
+            e.printStackTrace();
+            // The exchange frame is still answered for its other topics
+            if(exchange) server.reply(reply, null);
         }
 
     }
@@ -269,50 +383,43 @@ public class BLEAdvertising  implements AdvertisingDriver{
      */
     @Override
     public void notifyEmptyValue(){
-        for(UUID characteristic : pendingNotifications)
-            serverCallback.notifyCharacteristic(new byte[]{0x00}, characteristic);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                onEmptyValue();
+            }
+        });
     }
 
+    private void onEmptyValue() {
+        GattServerCallback server = serverCallback;
+        PendingReplyLedger.Reply reply = server != null ? server.takeReply() : null;
+        if(reply==null)
+            return;
+        server.replyEmpty(reply);
+    }
+
+
+    /* Value changes are applied to the running advertisement and GATT server, so connected clients
+     * are not dropped. Everything is restarted only when the running instances cannot be updated. */
+    private void update() {
+        TopicRegistry.Snapshot snapshot = topics.snapshot();
+        if (!transport.updateAdvertisingData(snapshot.getDigest())
+                || serverCallback == null || !serverCallback.updateTopics(snapshot)) {
+            Log.d(TAG, "Unable to update advertising, restarting");
+            restart();
+        }
+    }
 
     private void restart()  {
         //try {
-            stop();
+            onStop();
             //sleep(3);
-            start(this.serviceId,this.peerInfo);
+            onStart(this.serviceId,this.peerInfo);
         /*} catch (InterruptedException e) {
             e.printStackTrace();
         }*/
 
     }
 
-
-    private AdvertiseCallback createAdvertiseCallback() {
-        return new AdvertiseCallback() {
-            @Override
-            public void onStartFailure(int errorCode) {
-
-                switch (errorCode) {
-                    case ADVERTISE_FAILED_DATA_TOO_LARGE:
-                        Log.d(TAG,"ADVERTISE_FAILED_DATA_TOO_LARGE");
-                        break;
-                    case ADVERTISE_FAILED_TOO_MANY_ADVERTISERS:
-                        Log.d(TAG,"ADVERTISE_FAILED_TOO_MANY_ADVERTISERS");
-                        break;
-                    case ADVERTISE_FAILED_ALREADY_STARTED:
-                        Log.d(TAG, "ADVERTISE_FAILED_ALREADY_STARTED");
-                        break;
-                    case ADVERTISE_FAILED_INTERNAL_ERROR:
-                        Log.d(TAG, "ADVERTISE_FAILED_INTERNAL_ERROR");
-                        break;
-                    case ADVERTISE_FAILED_FEATURE_UNSUPPORTED:
-                        Log.d(TAG, "ADVERTISE_FAILED_FEATURE_UNSUPPORTED");
-                        break;
-                    default:
-                        Log.d(TAG, "startAdvertising failed with unknown error " + errorCode);
-                        break;
-                }
-            }
-        };
-    }
-
 }
@@ -1,38 +1,18 @@
 package network.datahop.blediscovery;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanFilter;
-import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.ParcelUuid;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import datahop.DiscoveryNotifier;
 import datahop.DiscoveryDriver;
 
-import static android.content.Context.BLUETOOTH_SERVICE;
-import static java.lang.Thread.sleep;
-
 import javax.crypto.SecretKey;
 
 /**
@@ -41,47 +21,56 @@ import javax.crypto.SecretKey;
  * when found BLE Beacons with the same service id.
  * Characteristics are compared in the GATT Server when accepting connections to compare status for each "topic".
  * When detected different values of the "topics" it receives network information from the server.
+ * The radio is accessed through a {@link BleTransport}. The driver state is owned by the event loop of the
+ * transport: the public methods enqueue their work on it, and the notifier is invoked from it.
  */
 public class BLEServiceDiscovery implements DiscoveryDriver{
 
 	private static final String TAG = "BLEServiceDiscovery";
 
-	private static Context context;
-
 	private static volatile BLEServiceDiscovery mBleDiscovery;
 
 	/* Bluetooth API */
-	private static BluetoothManager mBluetoothManager;
-	private static BluetoothAdapter mBluetoothAdapter;
-	private static BluetoothGatt mBluetoothGatt;
-	private int mConnectionState = STATE_DISCONNECTED;
+	private final BleTransport transport;
 
-	private static final int STATE_DISCONNECTED = 0;
-	private static final int STATE_CONNECTING = 1;
-	private static final int STATE_CONNECTED = 2;
+	/* Default number of client sessions open at the same time */
+	private static final int DEFAULT_MAX_CONNECTIONS = 4;
+	/* Time in ms after which a peer no longer seen is forgotten */
+	private static final long PEER_TTL = 60 * 1000;
 
-	private HashMap<UUID,String> advertisingInfo;
-	private HashMap<UUID,String> convertedCharacteristics;
-	private Set<BluetoothDevice> results;
+	private final TopicRegistry topics;
+	private final UpdateCoalescer updates;
 
-	private boolean started=false;
-	private static BluetoothLeScanner mLEScanner;
+	/* State below is only accessed from the event loop */
+	private PeerTable peers;
+	/* Number of the current scan cycle */
+	private int cycle;
+	private final ConnectionScheduler connectionScheduler;
+	private HashMap<String,GattClientSession> sessions;
+	private PeerCache peerCache;
 
-	private boolean mInitialized = false;
+	/* Metrics, read from any thread */
+	private final AtomicLongArray expiredSessions = new AtomicLongArray(GattClientSession.PHASES);
+	private final AtomicLong breakerTrips = new AtomicLong();
+
+	private ScanScheduler activeScheduler;
+	private int scanMode;
+
+	private boolean started=false;
 
-	private BluetoothDevice device=null;
-	private ParcelUuid mServiceUUID;
-	private int pendingWrite;
-	private boolean sending;
+	private UUID mServiceUUID;
 
-	private Handler mHandler,sHandler;
+	private Runnable stopScanTask, startScanTask;
 
-	private static DiscoveryNotifier notifier;
 	private  boolean exit;
 
 	private String peerInfo;
 
-	private String password;
+	/* Settings, written by the application and read from the event loop */
+	private volatile DiscoveryNotifier notifier;
+	private volatile String password;
+	private volatile ScanScheduler scanScheduler;
+	private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
 	//private SecretKey key;
 
 	/**
@@ -90,21 +79,28 @@ public class BLEServiceDiscovery implements DiscoveryDriver{
 	 */
 	private BLEServiceDiscovery(Context context)
 	{
-		this.context = context;
-		this.mHandler = new Handler(Looper.getMainLooper());
-		this.sHandler = new Handler(Looper.getMainLooper());
-		this.advertisingInfo = new HashMap<>();
-		this.convertedCharacteristics = new HashMap<>();
-		this.results = new HashSet<BluetoothDevice>();
-    }
+		this(new AndroidBleTransport(context));
+	}
 
-	/* Method used to initialize Bluetooth LE Adapter
+	/**
+	 * BLEServiceDiscovery class constructor
+	 * @param transport radio used for scanning and connecting
 	 */
-	private static synchronized void initDriver(){
-		mBluetoothManager = (BluetoothManager) context.getSystemService(BLUETOOTH_SERVICE);
-		mBluetoothAdapter = mBluetoothManager.getAdapter();
-		if(mBluetoothAdapter!=null)mLEScanner = mBluetoothAdapter.getBluetoothLeScanner();
-	}
+	BLEServiceDiscovery(BleTransport transport)
+	{
+		this.transport = transport;
+		this.topics = new TopicRegistry();
+		this.updates = new UpdateCoalescer(transport, UpdateCoalescer.DEFAULT_WINDOW, new Runnable() {
+			@Override
+			public void run() {
+				if (topics.publish() && activeScheduler != null) activeScheduler.onTopicsChanged();
+			}
+		});
+		this.peers = new PeerTable(PeerTable.DEFAULT_CAPACITY);
+		this.connectionScheduler = new ConnectionScheduler();
+		this.sessions = new HashMap<>();
+		this.peerCache = new PeerCache(transport.getClock(), PeerCache.DEFAULT_CAPACITY, PeerCache.DEFAULT_TTL);
+    }
 
 	/* Singleton method that creates and returns a BLEServiceDiscovery instance
 	 * @return BLEServiceDiscovery instance
@@ -112,7 +108,6 @@ public class BLEServiceDiscovery implements DiscoveryDriver{
 	public static synchronized BLEServiceDiscovery getInstance(Context appContext) {
 		if (mBleDiscovery == null) {
 			mBleDiscovery = new BLEServiceDiscovery(appContext);
-			initDriver();
 		}
 		return mBleDiscovery;
 	}
@@ -148,6 +143,56 @@ public class BLEServiceDiscovery implements DiscoveryDriver{
 	this.password = password;
 	}
 
+	/**
+	 * Set the maximum number of GATT client sessions open at the same time. Devices found
+	 * during a scan cycle are visited in parallel up to this limit.
+	 * @param maxConnections maximum number of concurrent client sessions
+	 */
+	public void setMaxConnections(int maxConnections){
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("maxConnections must be positive");
+		}
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Set the scheduler deciding the duration and scan mode of each scan cycle. When no scheduler
+	 * is set an {@link AdaptiveScanScheduler} bounded by the times given to {@link #start} is used.
+	 * @param scanScheduler scheduler instance, or null to use the default one
+	 */
+	public void setScanScheduler(ScanScheduler scanScheduler){
+		this.scanScheduler = scanScheduler;
+	}
+
+	/**
+	 * @param phase one of the GattClientSession PHASE constants
+	 * @return number of client sessions closed because the deadline of the phase expired
+	 */
+	public long getExpiredSessions(int phase) {
+		return expiredSessions.get(phase);
+	}
+
+	/**
+	 * @return scan results dropped by the transport because they arrived faster than they were consumed
+	 */
+	public long getScanOverflows() {
+		return transport.getScanOverflows();
+	}
+
+	/**
+	 * @return scan results merged by the transport with an earlier result of the same device
+	 */
+	public long getScanDuplicates() {
+		return transport.getScanDuplicates();
+	}
+
+	/**
+	 * @return number of times a peer failing repeatedly got its circuit breaker tripped
+	 */
+	public long getBreakerTrips() {
+		return breakerTrips.get();
+	}
+
 	/**
 	 * This method starts the service and periodically scans for users and tries to connect to them
 	 * @param service_uuid service id
@@ -155,34 +200,77 @@ public class BLEServiceDiscovery implements DiscoveryDriver{
 	 * @param idleTime idle time before starting another scan cycle
 	 */
 	@Override
-	public void start(String service_uuid,String peerInfo, long scanTime, long idleTime) {
+	public void start(final String service_uuid, final String peerInfo, final long scanTime, final long idleTime) {
 		if (notifier == null) {
 			Log.e(TAG, "notifier not found");
 			return ;
 		}
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				onStart(service_uuid, peerInfo, scanTime, idleTime);
+			}
+		});
+	}
+
+	private void onStart(String service_uuid, String peerInfo, long scanTime, long idleTime) {
 		exit=false;
+		updates.flush();
 		this.peerInfo = peerInfo;
-		startScanning(service_uuid);
-		mHandler.removeCallbacksAndMessages(null);
-		sHandler.removeCallbacksAndMessages(null);
+		this.activeScheduler = scanScheduler != null ? scanScheduler
+				: AdaptiveScanScheduler.fromDriverTimes(transport.getClock(), scanTime, idleTime);
+		scanCycle(service_uuid);
+	}
+
+	private void scanCycle(final String service_uuid) {
+		ScanWindow window = activeScheduler.nextWindow();
+		Log.d(TAG, "Scan cycle "+window);
+		startScanning(service_uuid, window.getScanMode());
+		cancelCycle();
 
-		sHandler.postDelayed(new Runnable() {
+		stopScanTask = new Runnable() {
 			@Override
 			public void run() {
 				Log.d(TAG, "Stop scan");
 				stopScanning();
+				reportCycle();
 				tryConnection();
-				mHandler.postDelayed(new Runnable() {
+				long idleTime = activeScheduler.nextWindow().getIdleTime();
+				startScanTask = new Runnable() {
 					@Override
 					public void run() {
 						if(!exit){
 							Log.d(TAG,"Start service");
-							start(service_uuid,peerInfo,scanTime,idleTime);
+							scanCycle(service_uuid);
 						}
 					}
-				}, idleTime);
+				};
+				transport.postDelayed(startScanTask, idleTime);
+			}
+		};
+		transport.postDelayed(stopScanTask, window.getScanTime());
+	}
+
+	private void cancelCycle() {
+		if (stopScanTask != null) transport.removeCallbacks(stopScanTask);
+		if (startScanTask != null) transport.removeCallbacks(startScanTask);
+	}
+
+	private void reportCycle() {
+		int seenPeers = 0, newPeers = 0, pendingPeers = 0;
+		byte[] statusDigest = topics.snapshot().getDigest();
+		for (int slot = 0; slot < peers.slots(); slot++) {
+			if (!peers.isUsed(slot)) continue;
+			if (peers.seenIn(slot, cycle)) {
+				seenPeers++;
+				if (peers.isNewIn(slot, cycle)) newPeers++;
 			}
-		}, scanTime);
+			if (peers.isPending(slot)
+					&& !peerCache.isInSync(peers.getName(slot), statusDigest, peers.getServiceData(slot))) pendingPeers++;
+		}
+		activeScheduler.onCycleCompleted(seenPeers, newPeers, pendingPeers);
+		peers.prune(transport.getClock().now() - PEER_TTL);
+		cycle++;
 	}
 
 
@@ -193,39 +281,74 @@ public class BLEServiceDiscovery implements DiscoveryDriver{
 	public void stop()
 	{
 		Log.d(TAG,"Stop");
-		exit=true;
-		stopScanning();
-		disconnect();
-
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				exit=true;
+				cancelCycle();
+				stopScanning();
+				disconnect();
+			}
+		});
 	}
 
 	/**
 	 * This method adds advertising information value for the specified "topic". In case "topic"
-	 * already exists information is updated
+	 * already exists information is updated. Changes are applied at the end of the update window.
 	 * @param characteristic topic id
 	 * @param info value advertised
 	 */
 	@Override
-	public void addAdvertisingInfo(String characteristic, String info){
+	public void addAdvertisingInfo(final String characteristic, final String info){
 		Log.d(TAG,"addAdvertisingInfo "+characteristic+" "+info);
-		advertisingInfo.put(UUID.nameUUIDFromBytes(characteristic.getBytes()),info);
-		convertedCharacteristics.put(UUID.nameUUIDFromBytes(characteristic.getBytes()),characteristic);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				if (topics.stage(characteristic, info)) updates.changed();
+			}
+		});
 	}
 
-	private void startScanning(String service_uuid)
+	/**
+	 * Sets the window in which topic changes are batched into a single update
+	 * @param window window in ms, zero to apply every change immediately
+	 */
+	public void setUpdateWindow(long window) {
+		updates.setWindow(window);
+	}
+
+	/**
+	 * Applies the topic changes waiting for the end of the update window
+	 */
+	public void flushAdvertisingInfo() {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				updates.flush();
+			}
+		});
+	}
+
+	/* Runs an event on the event loop, at once when already called from it */
+	private void execute(Runnable event) {
+		if (transport.isEventThread()) {
+			event.run();
+		} else {
+			transport.post(event);
+		}
+	}
+
+	private void startScanning(String service_uuid, int scanMode)
 	{
 		Log.d(TAG,"startScanning Service uuid:"+service_uuid+" "+started);
-		if(mBluetoothAdapter!=null&&!started) {
-			pendingWrite = 0;
-			sending = false;
+		if(!started) {
 			started = true;
-			mServiceUUID =new ParcelUuid(UUID.nameUUIDFromBytes(service_uuid.getBytes()));
-			results.clear();
-			mConnectionState = STATE_DISCONNECTED;
+			this.scanMode = scanMode;
+			mServiceUUID = UUID.nameUUIDFromBytes(service_uuid.getBytes());
 
-			if (!mBluetoothAdapter.isEnabled()) {
+			if (!transport.isEnabled()) {
 				Log.d(TAG, "Bluetooth is currently disabled...enabling ");
-				mBluetoothAdapter.enable();
+				transport.enable();
 			} else {
 				Log.d(TAG, "Bluetooth enabled...starting services");
 
@@ -237,394 +360,168 @@ public class BLEServiceDiscovery implements DiscoveryDriver{
 
 	private void stopScanning()
 	{
-		try {
-			mLEScanner.stopScan(mScanCallback);
-			mLEScanner.flushPendingScanResults(mScanCallback);
-		}catch (Exception e){Log.d(TAG,"Failed when stopping ble scanner "+e);}
+		started = false;
+		transport.removeCallbacks(mRetryScan);
+		transport.stopScan();
 	}
 
 	private void scanLeDevice() {
 
-		Log.d(TAG, "Start scan "+mConnectionState+" "+mServiceUUID);
-
-		results.clear();
-        mConnectionState=STATE_DISCONNECTED;
-		ScanSettings settings = new ScanSettings.Builder()
-				.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-				.build();
-		List<ScanFilter> filters = new ArrayList<ScanFilter>();
-			// Stops scanning after a pre-defined scan period.
-		ScanFilter scanFilter = new ScanFilter.Builder()
-				.setServiceUuid(mServiceUUID)
-		//		.setDeviceName("BLEDataHop")
-				.build();
-/*		ScanFilter scanFilter2 = new ScanFilter.Builder()
-				.setServiceUuid(mServiceUUID)
-				//.setDeviceName("BLEDataHop")
-				.build();*/
-		filters.add(scanFilter);
-	//	filters.add(scanFilter2);
-
-
-		if(mConnectionState==STATE_DISCONNECTED)
-		{
-		    try {
-				Log.d(TAG, "Scanning");
-                mLEScanner.startScan(filters, settings, mScanCallback);
-            }catch (IllegalStateException e){Log.d(TAG,"Exception "+e);}
+		Log.d(TAG, "Start scan "+sessions.size()+" "+mServiceUUID);
+
+		peers.clearPending();
+		Log.d(TAG, "Scanning");
+		if (!transport.startScan(mServiceUUID, scanMode, mScanListener)) {
+			Log.d(TAG, "Unable to start scan");
 		}
 
 	}
 
-	private ScanCallback mScanCallback = new ScanCallback() {
+	private final Runnable mRetryScan = new Runnable() {
 		@Override
-		public void onScanResult(int callbackType, ScanResult result) {
-
-			Log.d(TAG,"Scan result "+result.getScanRecord().getDeviceName());//+" "+result.getScanRecord().getServiceUuids()+" "+new String(result.getScanRecord().getManufacturerSpecificData(0)));
-
-			results.add(result.getDevice());
+		public void run() {
+			if(!started){
+				Log.d(TAG,"Not started cancelling");
+				return;
+			}
+			scanLeDevice();
 		}
+	};
 
+	private final BleTransport.ScanListener mScanListener = new BleTransport.ScanListener() {
 		@Override
-		public void onBatchScanResults(List<ScanResult> results) {
-			for (ScanResult sr : results) {
-				Log.d(TAG,"ScanResult - Results " +sr.toString());
+		public void onScanResult(String address, int rssi, byte[] serviceData) {
+
+			long key = PeerTable.pack(address);
+			if (key < 0) {
+				Log.d(TAG,"Invalid address "+address);
+				return;
 			}
+			int slot = peers.update(key, address, rssi, serviceData, transport.getClock().now(), cycle);
+
+			// Advertisers publish a digest of their topics in the scan response, there is
+			// no need to connect when it matches ours
+			boolean sameStatus = StatusDigest.matches(topics.snapshot().getDigest(), serviceData);
+			peers.setPending(slot, !sameStatus);
 		}
 
 		@Override
 		public void onScanFailed(int errorCode) {
 			Log.d(TAG,"Scan Failed Error Code: " + errorCode);
 			if(errorCode==2){
-				mBluetoothAdapter.disable();
-				mBluetoothAdapter.enable();
+				transport.disable();
+				transport.enable();
 			}
-			try{ sleep(2000);}catch (Exception e){}
-			if(!started){
-				Log.d(TAG,"Not started cancelling");
-				return;
-			}
-			scanLeDevice();
+			transport.postDelayed(mRetryScan, 2000);
 		}
 	};
 
 	private void tryConnection(){
-		Log.d(TAG,"TryConnection "+results.size()+" "+started+" "+mConnectionState);
-		if (mConnectionState == STATE_DISCONNECTED) {
-
-			for (BluetoothDevice res : results) {
-				//Log.d(TAG,"Connections "+res.getAddress()+" "+res.getAddress().hashCode()+" "+res.getUuids());
-				if (connect(res.getAddress())) {
-					Log.d(TAG,"Connect to "+res.getAddress());
-					results.remove(res);
-					break;
-				}
+		Log.d(TAG,"TryConnection "+peers.size()+" "+sessions.size()+"/"+maxConnections);
+		TopicRegistry.Snapshot snapshot = topics.snapshot();
+		byte[] statusDigest = snapshot.getDigest();
+		// Best candidates first, see ConnectionScheduler
+		connectionScheduler.rank(peers, transport.getClock().now(), snapshot.size());
+		int slot;
+		while (sessions.size() < maxConnections && (slot = connectionScheduler.poll()) >= 0) {
+			peers.setPending(slot, false);
+			String address = peers.getName(slot);
+			if (peerCache.isInSync(address, statusDigest, peers.getServiceData(slot))) {
+				Log.d(TAG,"Peer already in sync "+address);
+				continue;
+			}
+			if (peerCache.isBackingOff(address)) {
+				Log.d(TAG,"Peer busy, retrying later "+address);
+				continue;
+			}
+			if (connect(slot)) {
+				Log.d(TAG,"Connect to "+address);
 			}
 		}
 	}
 
 	/**
-	 * Connects to the GATT server hosted on the Bluetooth LE device.
+	 * Opens a new client session to the GATT server hosted on the Bluetooth LE device.
 	 *
-	 * @param address The device address of the destination device.
+	 * @param slot The slot of the destination device in the peer table, holding its address and
+	 *             the status digest it advertised.
 	 *
 	 * @return Return true if the connection is initiated successfully. The connection result
-	 *         is reported asynchronously through the
-	 *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-	 *         callback.
+	 *         is reported asynchronously through the {@link GattClientSession} callbacks.
 	 */
-	private boolean connect(final String address) {
-		if (mBluetoothAdapter == null || address == null) {
-			Log.d(TAG, "BluetoothAdapter not initialized or unspecified address.");
+	private boolean connect(int slot) {
+		if (peers.getState(slot) != PeerTable.STATE_IDLE) {
+			Log.d(TAG, "Session already open");
 			return false;
 		}
 
-		List<BluetoothDevice> devices = mBluetoothManager.getConnectedDevices(BluetoothProfile.GATT);
-		for (BluetoothDevice d : devices) {
-			if (d.getAddress().equals(address)) {
-				Log.d(TAG, "Device Connected");
-				return true;
-			}
-		}
-
-		device = mBluetoothAdapter.getRemoteDevice(address);
-		if (device == null) {
-			Log.d(TAG, "Device not found.  Unable to connect.");
+		String address = peers.getName(slot);
+		GattClientSession session = new GattClientSession(transport, address, peers.getServiceData(slot), mServiceUUID,
+				topics.snapshot(), peerInfo, password, mSessionListener);
+		sessions.put(address, session);
+		peers.setState(slot, PeerTable.STATE_CONNECTING);
+		peers.recordAttempt(slot, transport.getClock().now());
+		if (!session.connect()) {
+			sessions.remove(address);
+			setState(address, PeerTable.STATE_IDLE);
 			return false;
 		}
-		// We want to directly connect to the device, so we are setting the autoConnect
-		// parameter to false.
-		mBluetoothGatt = device.connectGatt(context, false, mGattCallback);
-
-		Log.d(TAG, "Trying to create a new connection to "+address);
-		mConnectionState = STATE_CONNECTING;
 		return true;
 	}
 
+	/* Slots move when peers are added or removed, so sessions find theirs by address */
+	private void setState(String address, int state) {
+		int slot = peers.find(PeerTable.pack(address));
+		if (slot >= 0) peers.setState(slot, state);
+	}
+
 	/**
-	 * Disconnects an existing connection or cancel a pending connection. The disconnection result
-	 * is reported asynchronously through the
-	 * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-	 * callback.
+	 * Closes every open client session. The disconnection of each session is reported
+	 * asynchronously through the {@link GattClientSession} callbacks.
 	 */
 	private void disconnect() {
 		Log.d(TAG,"Disconnect");
-		mInitialized = false;
-		started=false;
-		mConnectionState = STATE_DISCONNECTED;
-		if (mBluetoothAdapter == null ) {
-			Log.d(TAG, "BluetoothAdapter not initialized");
-			return;
-		}
-		if (mBluetoothGatt == null ) {
-			Log.d(TAG, "mBluetoothGatt not initialized");
-			return;
+		started = false;
+		peers.clearPending();
+		// Sessions remove themselves when closed
+		List<GattClientSession> open = new ArrayList<>(sessions.values());
+		for (GattClientSession session : open) {
+			session.close();
 		}
-		mBluetoothGatt.disconnect();
-		mBluetoothGatt.close();
-		mBluetoothGatt = null;
-		//try{LocalBroadcastManager.getInstance(context).unregisterReceiver(mBroadcastReceiver);}catch (IllegalArgumentException e){Log.d(TAG,"Unregister failed "+e);}
 	}
 
-
-
-	private void enableCharacteristicNotification(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-		boolean characteristicWriteSuccess = gatt.setCharacteristicNotification(characteristic, true);
-		if (characteristicWriteSuccess) {
-			//if (BluetoothUtils.isDataHopCharacteristic(characteristic)) {
-				if(!mInitialized){
-					Log.d(TAG, "Requesting MTU CHANGE");
-					mInitialized = true;
-					gatt.requestMtu(512);
-				}
-			//}
-		} else {
-			Log.d(TAG,"Characteristic notification set failure for " + characteristic.getUuid().toString());
-		}
-	}
-
-
-	private void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-
-        byte[] messageBytes = characteristic.getValue();
-        String message = new String(messageBytes);
-		Log.d(TAG, "Message from remote: " + message +" pending:"+pendingWrite);
-		sending=false;
-        if (message == null) {
-            Log.d(TAG, "Unable to convert bytes to string");
-            return;
-        }
-		pendingWrite--;
-		if (Arrays.equals(new byte[]{0x00}, messageBytes)){
-            notifier.discoveryPeerSameStatus(device.getName(),convertedCharacteristics.get(characteristic));
-            if (pendingWrite<=0)
-				disconnect();
-            tryConnection();
-        }else {
-			String msg;
-			//if(key!=null) msg = decryption(messageBytes);
-			//else msg =  new String(messageBytes);
-			msg = Encryption.decrypt(new String(messageBytes),"password");
-			Log.d(TAG, "Attempting to connect :"+msg);
-			String[] split = msg.split(":", 3);
-        	if(split.length==3) {
-				notifier.discoveryPeerDifferentStatus(device.getName(), convertedCharacteristics.get(characteristic), split[0], split[1], split[2]);
-				disconnect();
-			}else {
-				notifier.discoveryPeerSameStatus(device.getName(), convertedCharacteristics.get(characteristic));
-				if (pendingWrite <= 0)
-					disconnect();
-				tryConnection();
-			}
-			//started=false;
-			//close();
-			//results.clear();
-		}
-
-	}
-
-	private void sendMessage() {
-		if (mConnectionState != STATE_CONNECTED || !mInitialized) {
-			Log.d(TAG,"Not initialized.");
-			return;
-		}
-     	List<UUID> groups = new ArrayList();
-		groups.addAll(advertisingInfo.keySet());
-
-		List<BluetoothGattCharacteristic> characteristics = BluetoothUtils.findCharacteristics(mBluetoothGatt,mServiceUUID.getUuid(),groups);
-		pendingWrite+=characteristics.size();
-		Log.d(TAG,"Found "+pendingWrite+" characteristics. TryWriting");
-		Runnable r = new TryWriting(characteristics);
-		new Thread(r).start();
-
-	}
-
-	// Implements callback methods for GATT events that the app cares about.  For example,
-	// connection change and services discovered.
-	private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-		@Override
-		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-			if (newState == BluetoothProfile.STATE_CONNECTED&&mConnectionState!=BluetoothProfile.STATE_CONNECTED) {
-				mConnectionState = STATE_CONNECTED;
-				Log.d(TAG, "Connected to GATT server: "+gatt.getDevice().getAddress());
-//				int con = stats.getBtConnections();
-//				stats.setBtConnections(++con);
-				if(mBluetoothGatt!=null)mBluetoothGatt.discoverServices();
-
-			} else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-				mConnectionState = STATE_DISCONNECTED;
-				Log.d(TAG, "Disconnected from GATT server.");
-				if(mBluetoothGatt!=null)mBluetoothGatt.close();
-				//if(started)tryConnection();
-			}
-		}
-
-		@Override
-		public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-
-			super.onServicesDiscovered(gatt, status);
-
-			if (status != BluetoothGatt.GATT_SUCCESS) {
-				Log.d(TAG,"Device service discovery unsuccessful, status " + status);
-				disconnect();
-				return;
-			}
-
-			Log.d(TAG,"Gatt "+gatt.getServices().size());
-			List<UUID> groups = new ArrayList<>();
-			groups.addAll(advertisingInfo.keySet());
-			List<BluetoothGattCharacteristic> matchingCharacteristics = BluetoothUtils.findCharacteristics(gatt,mServiceUUID.getUuid(),groups);
-			if (matchingCharacteristics.isEmpty()) {
-				Log.d(TAG,"Unable to find characteristics.");
-				disconnect();
-				return;
-			}
-
-			for (BluetoothGattCharacteristic characteristic : matchingCharacteristics) {
-				Log.d(TAG, "characteristic: " + characteristic.getUuid().toString());
-				characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-				//subscribe(characteristic);
-				enableCharacteristicNotification(gatt, characteristic);
-
-			}
-		}
-
+	private final ClientSessionListener mSessionListener = new ClientSessionListener() {
 		@Override
-		public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-			super.onMtuChanged(gatt, mtu, status);
-			Log.d(TAG, "ON MTU CHANGED");
-			if (status == BluetoothGatt.GATT_SUCCESS) {
-				if(mInitialized)sendMessage();
-			}
+		public void sessionConnected(GattClientSession session) {
+			setState(session.getAddress(), PeerTable.STATE_CONNECTED);
 		}
 
-
 		@Override
-		public void onCharacteristicChanged(BluetoothGatt gatt,
-											BluetoothGattCharacteristic characteristic) {
-			Log.d(TAG, "onCharacteristicChanged received: "+characteristic.getUuid().toString());
-			readCharacteristic(characteristic);
-
+		public void sameStatusDiscovered(GattClientSession session, UUID characteristic) {
+			notifier.discoveryPeerSameStatus(session.getName(), topics.snapshot().getName(characteristic));
 		}
 
 		@Override
-		public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-			super.onDescriptorWrite(gatt, descriptor, status);
-
-			Log.d(TAG, "On Descriptor Write");
-			if(status == BluetoothGatt.GATT_SUCCESS){
-				Log.d(TAG, "On Descriptor Write - GATT SUCCESS");
-				//sendMessage(gatt);
-			}
+		public void differentStatusDiscovered(GattClientSession session, UUID characteristic, String network, String password, String info) {
+			notifier.discoveryPeerDifferentStatus(session.getName(), topics.snapshot().getName(characteristic), network, password, info);
 		}
 
-
 		@Override
-		public void onCharacteristicRead(BluetoothGatt gatt,
-										 BluetoothGattCharacteristic characteristic,
-										 int status) {
-			if (status == BluetoothGatt.GATT_SUCCESS) {
-				Log.d(TAG, "Characteristic Read");
-				//printIncoming(characteristic);
-			}
-		}
-	};
-
-
-	/*private String decryption(byte[] cText){
-		String strDecryptedText="";
-		try {
-			strDecryptedText = AESHelper.decrypt(cText,key);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return strDecryptedText;
-	}*/
-
-	private class TryWriting implements Runnable {
-
-		List<BluetoothGattCharacteristic> characteristics;
-
-		public TryWriting (List<BluetoothGattCharacteristic> characteristics)
-		{
-			this.characteristics = characteristics;
-		}
-
-		@Override
-		public void run() {
-
-			Log.d(TAG,"Trywriting "+characteristics.size()+" "+started+" "+advertisingInfo.size());
-			for (BluetoothGattCharacteristic characteristic : characteristics) {
-				//if (characteristic == null||!started) {
-				if (characteristic == null){
-					Log.d(TAG, "Unable to find echo characteristic.");
-					disconnect();
-					return;
-				}
-
-				if(!started)return;
-
-				byte[] messageBytes = null;
-
-				for(UUID uuid : advertisingInfo.keySet()){
-					Log.d(TAG,"Advertising info uuid "+uuid+" "+characteristic.getUuid());
-					if(characteristic.getUuid().equals(uuid))messageBytes=(advertisingInfo.get(uuid)+":"+peerInfo).getBytes();
-					break;
-				}
-
-				if(messageBytes!=null) {
-
-					Log.d(TAG, "Sending message: " + new String(messageBytes) + " " + messageBytes.length + " " + characteristic.getUuid().toString());
-
-					if (messageBytes.length == 0) {
-						Log.d(TAG, "Unable to convert message to bytes");
-						return;
-					}
-
-					characteristic.setValue(messageBytes);
-					mInitialized = false;
-					sending = true;
-
-					boolean success = mBluetoothGatt.writeCharacteristic(characteristic);
-					int tries = 0;
-					while (started && !success && tries < 5) {
-						try {
-							sleep(1000);
-							Log.d(TAG, "Failed retry " + tries);
-							success = mBluetoothGatt.writeCharacteristic(characteristic);
-							tries++;
-						} catch (InterruptedException e) {
-						}
-					}
-					if (started && !success) Log.d(TAG, "Failed to write data");
-					while (sending) try {
-						sleep(1000);
-					} catch (InterruptedException e) {
-					}
+		public void sessionClosed(GattClientSession session) {
+			peerCache.record(session.getAddress(), session.getStatusDigest(), session.getRemoteDigest(), session.getOutcome());
+			sessions.remove(session.getAddress());
+			if (session.getExpiredPhase() >= 0) expiredSessions.incrementAndGet(session.getExpiredPhase());
+			int slot = peers.find(PeerTable.pack(session.getAddress()));
+			if (slot >= 0) {
+				peers.setState(slot, PeerTable.STATE_IDLE);
+				if (peers.recordOutcome(slot, session.getOutcome(), session.getCommonTopics(), transport.getClock().now())) {
+					Log.d(TAG,"Circuit breaker tripped for "+session.getAddress()+" after "+peers.getConsecutiveFailures(slot)+" failures");
+					breakerTrips.incrementAndGet();
 				}
 			}
+			if (!exit) tryConnection();
 		}
-	}
+	};
 
 
 	//endregion
@@ -0,0 +1,113 @@
+package network.datahop.blediscovery;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Radio used by BLEServiceDiscovery and BLEAdvertising. It provides scanning, advertising, GATT client
+ * connections and the GATT server, plus the time source and task scheduling used by the drivers, so
+ * the discovery logic can run on Android ({@link AndroidBleTransport}) or against a simulated radio.
+ * Posted tasks and every callback of the transport run on a single event loop, so the state of the
+ * drivers is only accessed from one thread.
+ * Devices are identified by their address.
+ */
+public interface BleTransport {
+
+    /**
+     * Interface used to report scan results
+     */
+    interface ScanListener {
+        /**
+         * @param address device address
+         * @param rssi received signal strength in dBm
+         * @param serviceData service data advertised for the scanned service, or null
+         */
+        void onScanResult(String address, int rssi, byte[] serviceData);
+        void onScanFailed(int errorCode);
+    }
+
+    /**
+     * Interface used to report advertising failures
+     */
+    interface AdvertiseListener {
+        void onAdvertiseFailed(int errorCode);
+    }
+
+    Clock getClock();
+
+    /**
+     * @return true if the caller runs on the event loop executing the posted tasks and the callbacks
+     */
+    boolean isEventThread();
+
+    void post(Runnable task);
+
+    void postDelayed(Runnable task, long delay);
+
+    void removeCallbacks(Runnable task);
+
+    boolean isEnabled();
+
+    void enable();
+
+    void disable();
+
+    /**
+     * Starts scanning for devices advertising the service, replacing any previous scan
+     * @param serviceUuid service advertised
+     * @param scanMode one of the ScanSettings SCAN_MODE constants
+     * @param listener listener receiving the results
+     * @return false if the scan cannot be started
+     */
+    boolean startScan(UUID serviceUuid, int scanMode, ScanListener listener);
+
+    void stopScan();
+
+    /**
+     * @return scan results dropped because they arrived faster than the event loop consumed them
+     */
+    long getScanOverflows();
+
+    /**
+     * @return scan results merged with an earlier result of the same device before being delivered
+     */
+    long getScanDuplicates();
+
+    /**
+     * Starts a connectable advertisement of the service, replacing any previous one
+     * @param serviceUuid service advertised
+     * @param serviceData service data sent in the scan response, or null
+     * @param listener listener receiving the failures
+     * @return false if advertising is not supported
+     */
+    boolean startAdvertising(UUID serviceUuid, byte[] serviceData, AdvertiseListener listener);
+
+    /**
+     * Replaces the service data of the running advertisement without stopping it
+     * @param serviceData service data sent in the scan response, or null
+     * @return false if no advertisement is running
+     */
+    boolean updateAdvertisingData(byte[] serviceData);
+
+    void stopAdvertising();
+
+    /**
+     * Connects to the GATT server of a device. The connection result is reported through the callback.
+     * @param address device address
+     * @param serviceUuid service used by the link once services are discovered
+     * @param callback callback receiving the link events
+     * @return the link, or null if the connection cannot be initiated
+     */
+    GattClientLink connect(String address, UUID serviceUuid, GattClientLink.Callback callback);
+
+    /**
+     * @return addresses of the devices with an open GATT connection
+     */
+    List<String> getConnectedDevices();
+
+    /**
+     * @param callback callback receiving the requests of the clients
+     * @return the server, or null if it cannot be opened
+     */
+    GattServerLink openServer(GattServerLink.Callback callback);
+}
@@ -9,7 +9,9 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import static network.datahop.blediscovery.Constants.CHARACTERISTIC_DATAHOP_DIRECT;
@@ -24,48 +26,54 @@ public class BluetoothUtils {
     // Characteristics
     private static final String TAG="BluetoothUtils";
 
-    public static List<BluetoothGattCharacteristic> findCharacteristics(BluetoothGatt bluetoothGatt, UUID SERVICE_UUID,List<UUID> groups) {
-        List<BluetoothGattCharacteristic> matchingCharacteristics = new ArrayList<>();
-
-        List<BluetoothGattService> serviceList = bluetoothGatt.getServices();
-        BluetoothGattService service = BluetoothUtils.findService(serviceList,SERVICE_UUID);
+    /**
+     * Builds the lookup table of the characteristics of a service, once after the services are discovered
+     * or the service is added to the GATT server
+     * @param service service, or null for an empty index
+     */
+    public static CharacteristicIndex<BluetoothGattCharacteristic> indexCharacteristics(@Nullable BluetoothGattService service) {
         if (service == null) {
-            return matchingCharacteristics;
+            return CharacteristicIndex.empty();
         }
-        List<BluetoothGattCharacteristic> characteristicList = service.getCharacteristics();
-
-        for (UUID group : groups)
-        {
-            Log.d(TAG,"Groups "+group);
-            String CHARACTERISTIC_UUID = group.toString();
-            for (BluetoothGattCharacteristic characteristic : characteristicList) {
-                Log.d(TAG,"Characteristic "+characteristic.getUuid().toString()+" "+CHARACTERISTIC_UUID);
-
-                if(uuidMatches(characteristic.getUuid().toString(), CHARACTERISTIC_UUID))
-                {
-                //if (isMatchingCharacteristic(characteristic)) {
-                    matchingCharacteristics.add(characteristic);
-                }
+        Map<UUID, BluetoothGattCharacteristic> characteristics = new LinkedHashMap<>();
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+            if (!characteristics.containsKey(characteristic.getUuid())) {
+                characteristics.put(characteristic.getUuid(), characteristic);
             }
         }
-
-        return matchingCharacteristics;
+        return new CharacteristicIndex<>(characteristics);
     }
 
-    public static boolean matchAnyCharacteristic(UUID SERVICE_UUID,List<UUID> groups) {
+    /**
+     * @deprecated builds the index of the service on every call, use
+     * {@link #findCharacteristics(CharacteristicIndex, List)} with an index built once
+     */
+    @Deprecated
+    public static List<BluetoothGattCharacteristic> findCharacteristics(BluetoothGatt bluetoothGatt, UUID SERVICE_UUID,List<UUID> groups) {
+        return findCharacteristics(indexCharacteristics(bluetoothGatt.getService(SERVICE_UUID)), groups);
+    }
 
-        for (UUID group : groups)
-        {
-            String CHARACTERISTIC_UUID = group.toString();
-            if(uuidMatches(SERVICE_UUID.toString(), CHARACTERISTIC_UUID))
-            {
-                //if (isMatchingCharacteristic(characteristic)) {
-                return true;
+    public static List<BluetoothGattCharacteristic> findCharacteristics(CharacteristicIndex<BluetoothGattCharacteristic> index, List<UUID> groups) {
+        List<BluetoothGattCharacteristic> matchingCharacteristics = new ArrayList<>();
+        for (UUID group : groups) {
+            BluetoothGattCharacteristic characteristic = index.get(group);
+            if (characteristic != null) {
+                matchingCharacteristics.add(characteristic);
             }
-
         }
+        return matchingCharacteristics;
+    }
 
-        return false;
+    /**
+     * @deprecated use {@link #matchAnyCharacteristic(UUID, CharacteristicIndex)} with an index built once
+     */
+    @Deprecated
+    public static boolean matchAnyCharacteristic(UUID SERVICE_UUID,List<UUID> groups) {
+        return groups.contains(SERVICE_UUID);
+    }
+
+    public static boolean matchAnyCharacteristic(UUID characteristic, CharacteristicIndex<?> index) {
+        return index.contains(characteristic);
     }
 
     public static boolean matchDirectConnectionCharacteristic(BluetoothGattCharacteristic characteristic)
@@ -180,16 +188,10 @@ public class BluetoothUtils {
 
     // Service
 
-    private static boolean matchesServiceUuidString(String serviceIdString, UUID SERVICE_UUID) {
-        return uuidMatches(serviceIdString, SERVICE_UUID.toString());
-    }
-
     @Nullable
     private static BluetoothGattService findService(List<BluetoothGattService> serviceList, UUID SERVICE_UUID) {
         for (BluetoothGattService service : serviceList) {
-            String serviceIdString = service.getUuid()
-                    .toString();
-            if (matchesServiceUuidString(serviceIdString,SERVICE_UUID)) {
+            if (SERVICE_UUID.equals(service.getUuid())) {
                 return service;
             }
         }
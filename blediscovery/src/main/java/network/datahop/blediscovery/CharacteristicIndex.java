@@ -0,0 +1,109 @@
+package network.datahop.blediscovery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Immutable lookup table of the characteristics of a service keyed by UUID. It is built once when the
+ * service is discovered or added and reused for every read, write and notification afterwards.
+ * Keys are compared by the two halves of the UUID, stored in open addressing arrays with linear
+ * probing, so a lookup neither converts UUIDs to strings nor allocates.
+ * @param <T> value stored for each characteristic
+ */
+public final class CharacteristicIndex<T> {
+
+    private static final CharacteristicIndex<Object> EMPTY = new CharacteristicIndex<>(Collections.<UUID, Object>emptyMap());
+
+    private final long[] mostSignificant;
+    private final long[] leastSignificant;
+    private final Object[] values;
+    private final int mask;
+    private final List<UUID> uuids;
+
+    /**
+     * CharacteristicIndex class constructor
+     * @param characteristics values keyed by characteristic UUID, iterated in the order of the map
+     */
+    public CharacteristicIndex(Map<UUID, ? extends T> characteristics) {
+        int capacity = 2;
+        while (capacity < characteristics.size() * 2) {
+            capacity <<= 1;
+        }
+        mostSignificant = new long[capacity];
+        leastSignificant = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        List<UUID> keys = new ArrayList<>(characteristics.size());
+        for (Map.Entry<UUID, ? extends T> entry : characteristics.entrySet()) {
+            UUID uuid = entry.getKey();
+            if (entry.getValue() == null) {
+                throw new IllegalArgumentException("No value for characteristic " + uuid);
+            }
+            long msb = uuid.getMostSignificantBits();
+            long lsb = uuid.getLeastSignificantBits();
+            int slot = slot(msb, lsb);
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            mostSignificant[slot] = msb;
+            leastSignificant[slot] = lsb;
+            values[slot] = entry.getValue();
+            keys.add(uuid);
+        }
+        uuids = Collections.unmodifiableList(keys);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> CharacteristicIndex<T> empty() {
+        return (CharacteristicIndex<T>) EMPTY;
+    }
+
+    /**
+     * @return value of the characteristic, or null if the service does not have it
+     */
+    public T get(UUID uuid) {
+        if (uuid == null) return null;
+        return get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(long msb, long lsb) {
+        int slot = slot(msb, lsb);
+        Object value;
+        while ((value = values[slot]) != null) {
+            if (mostSignificant[slot] == msb && leastSignificant[slot] == lsb) {
+                return (T) value;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean contains(UUID uuid) {
+        return get(uuid) != null;
+    }
+
+    public int size() {
+        return uuids.size();
+    }
+
+    /**
+     * @return UUIDs of the indexed characteristics in insertion order
+     */
+    public List<UUID> getUuids() {
+        return uuids;
+    }
+
+    /* Name based UUIDs are already uniformly distributed, but 16-bit SIG UUIDs only differ in a few
+     * bits of the most significant half, so both halves are mixed */
+    private int slot(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+}
@@ -0,0 +1,14 @@
+package network.datahop.blediscovery;
+
+import java.util.UUID;
+
+/**
+ * Interface used to report events in a GATT client session.
+ */
+public interface ClientSessionListener {
+
+    void sessionConnected(GattClientSession session);
+    void sameStatusDiscovered(GattClientSession session, UUID characteristic);
+    void differentStatusDiscovered(GattClientSession session, UUID characteristic, String network, String password, String info);
+    void sessionClosed(GattClientSession session);
+}
@@ -0,0 +1,23 @@
+package network.datahop.blediscovery;
+
+/**
+ * Time source used by the discovery components. Components take a Clock instead of reading the
+ * system time so their policies can be driven by a deterministic clock on the JVM.
+ */
+public interface Clock {
+
+    /**
+     * Monotonic system clock
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long now() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+
+    /**
+     * @return current time in milliseconds
+     */
+    long now();
+}
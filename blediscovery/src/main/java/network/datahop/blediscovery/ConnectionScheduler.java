@@ -0,0 +1,120 @@
+package network.datahop.blediscovery;
+
+/**
+ * Orders the pending peers of a {@link PeerTable} by the expected value of connecting to them, so the
+ * limited client sessions go to the peers most likely to complete a useful exchange. The score adds:
+ * <ul>
+ * <li>Signal: smoothed RSSI between {@link #MIN_RSSI} and {@link #MAX_RSSI}, far peers fail more often.</li>
+ * <li>Staleness: time since the last exchange completed with the peer, up to {@link #STALENESS_HORIZON},
+ * peers never reconciled count as fully stale.</li>
+ * <li>Reliability: minus the failure rate of the past attempts, with a prior for new peers.</li>
+ * <li>Overlap: fraction of the local topics the peer advertised in the last exchange, half when unknown.</li>
+ * <li>Aging: time since the last attempt, or since the peer was first seen, per {@link #AGING_PERIOD}.
+ * It grows without bound, so a peer scoring low on everything else is eventually tried.</li>
+ * </ul>
+ * Ranking reuses its arrays between calls and only allocates when the table grows.
+ */
+public class ConnectionScheduler {
+
+    public static final double MIN_RSSI = -100;
+    public static final double MAX_RSSI = -50;
+    public static final long STALENESS_HORIZON = 5 * 60 * 1000;
+    public static final long AGING_PERIOD = 30 * 1000;
+
+    public static final double SIGNAL_WEIGHT = 1.0;
+    public static final double STALENESS_WEIGHT = 1.0;
+    public static final double RELIABILITY_WEIGHT = 1.5;
+    public static final double OVERLAP_WEIGHT = 1.0;
+    public static final double AGING_WEIGHT = 1.0;
+
+    /* Max-heap of the candidate slots by score */
+    private int[] heap = new int[0];
+    private double[] scores = new double[0];
+    private int size;
+
+    /**
+     * Scores a peer of the table
+     * @param table peer table
+     * @param slot slot of the peer
+     * @param now current time in ms
+     * @param localTopics number of topics advertised locally
+     * @return score, higher first
+     */
+    public static double score(PeerTable table, int slot, long now, int localTopics) {
+        double signal = (table.getSmoothedRssi(slot) - MIN_RSSI) / (MAX_RSSI - MIN_RSSI);
+        signal = Math.max(0, Math.min(1, signal));
+
+        long reconciled = table.getLastReconciled(slot);
+        double staleness = reconciled < 0 ? 1 : Math.min(1, (now - reconciled) / (double) STALENESS_HORIZON);
+
+        // One failure in four attempts expected from a new peer
+        double failureRate = (table.getFailures(slot) + 1) / (double) (table.getAttempts(slot) + 4);
+
+        int common = table.getCommonTopics(slot);
+        double overlap = common < 0 || localTopics == 0 ? 0.5 : Math.min(1, common / (double) localTopics);
+
+        long lastAttempt = table.getLastAttempt(slot);
+        long waiting = now - (lastAttempt >= 0 ? lastAttempt : table.getFirstSeen(slot));
+        double aging = Math.max(0, waiting) / (double) AGING_PERIOD;
+
+        return SIGNAL_WEIGHT * signal + STALENESS_WEIGHT * staleness - RELIABILITY_WEIGHT * failureRate
+                + OVERLAP_WEIGHT * overlap + AGING_WEIGHT * aging;
+    }
+
+    /**
+     * Ranks the idle pending peers of the table, to be taken in order with {@link #poll()}. Peers with a
+     * tripped circuit breaker are left out and stay pending until it closes.
+     * @param table peer table
+     * @param now current time in ms
+     * @param localTopics number of topics advertised locally
+     * @return number of candidates
+     */
+    public int rank(PeerTable table, long now, int localTopics) {
+        if (heap.length < table.slots()) {
+            heap = new int[table.slots()];
+            scores = new double[table.slots()];
+        }
+        size = 0;
+        for (int slot = 0; slot < table.slots(); slot++) {
+            if (!table.isUsed(slot) || !table.isPending(slot) || table.getState(slot) != PeerTable.STATE_IDLE
+                    || table.isBlocked(slot, now)) continue;
+            heap[size] = slot;
+            scores[size] = score(table, slot, now, localTopics);
+            size++;
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        return size;
+    }
+
+    /**
+     * @return slot of the best remaining candidate, or -1 when none is left
+     */
+    public int poll() {
+        if (size == 0) return -1;
+        int best = heap[0];
+        size--;
+        heap[0] = heap[size];
+        scores[0] = scores[size];
+        siftDown(0);
+        return best;
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1, right = left + 1;
+            if (left < size && scores[left] > scores[largest]) largest = left;
+            if (right < size && scores[right] > scores[largest]) largest = right;
+            if (largest == i) return;
+            int slot = heap[i];
+            double score = scores[i];
+            heap[i] = heap[largest];
+            scores[i] = scores[largest];
+            heap[largest] = slot;
+            scores[largest] = score;
+            i = largest;
+        }
+    }
+}
@@ -14,6 +14,12 @@ public class Constants {
 
     public static final String CLIENT_CONFIGURATION_DESCRIPTOR_SHORT_ID = "2902";
 
+    /* Same value as BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, available off Android */
+    public static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+
+    /* ATT application error answered by a GATT server turning a client away, which should retry later */
+    public static final int GATT_STATUS_BUSY = 0x81;
+
     /* DataHop service Laptop */
     public static String CHARACTERISTIC_DATAHOP_STRING = "ffffffff-ffff-ffff-ffff-fffffffffff1";
     public static String CHARACTERISTIC_DATAHOP_DIRECT = "ffffffff-ffff-ffff-ffff-fffffffffff2";
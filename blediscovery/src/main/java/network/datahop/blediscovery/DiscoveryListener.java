@@ -8,5 +8,11 @@ import java.util.UUID;
 public interface DiscoveryListener {
 
     void sameStatusDiscovered(UUID characteristic);
+
+    /**
+     * @param value UTF-8 topic value sent by the peer
+     * @param characteristic topic characteristic
+     * @param peerId peer identifier
+     */
     void differentStatusDiscovered(byte[] value, UUID characteristic,String peerId);
 }
\ No newline at end of file
@@ -5,12 +5,13 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Base64;
 
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
-import java.security.spec.KeySpec;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -18,6 +19,7 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -31,9 +33,54 @@ public class Encryption {
     private static final int PKCS5_SALT_LENGTH = 32;
     public static final String DELIMITER = "]";
     private static final SecureRandom random = new SecureRandom();
+    private static final KeyCache keyCache = new KeyCache(KeyCache.DEFAULT_CAPACITY);
+
+    /* Binary session mode: version | salt | iv | ciphertext and tag */
+    public static final byte GCM_VERSION = (byte) 0xFD;
+    private static final String GCM_CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+    private static final int GCM_SALT_LENGTH = 16;
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 16;
+    public static final int GCM_OVERHEAD = 1 + GCM_SALT_LENGTH + GCM_IV_LENGTH + GCM_TAG_LENGTH;
+
+    /**
+     * Key derived once for a session of the binary mode, together with the salt sent in every message
+     */
+    public static class SessionKey {
+        private final byte[] salt;
+        private final SecretKey key;
+
+        private SessionKey(byte[] salt, SecretKey key) {
+            this.salt = salt;
+            this.key = key;
+        }
+
+        public byte[] getSalt() {
+            return salt.clone();
+        }
+    }
 
     public static String encrypt(String plaintext, String password) {
-        byte[] salt  = generateSalt();
+        try {
+            return encrypt(plaintext.getBytes("UTF-8"), password);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String encrypt(byte[] plaintext, String password) {
+        return encrypt(plaintext, password, generateSalt());
+    }
+
+    /**
+     * Encrypts using a salt chosen by the caller. Senders reusing one salt for a whole session
+     * let both sides derive the key once and hit the key cache afterwards.
+     * @param plaintext message
+     * @param password passphrase
+     * @param salt salt used for the key derivation
+     * @return salt, iv and ciphertext in Base64 separated by {@link #DELIMITER}
+     */
+    public static String encrypt(byte[] plaintext, String password, byte[] salt) {
         SecretKey key = deriveKey(password, salt);
 
         try {
@@ -41,7 +88,7 @@ public class Encryption {
             byte[] iv = generateIv(cipher.getBlockSize());
             IvParameterSpec ivParams = new IvParameterSpec(iv);
             cipher.init(Cipher.ENCRYPT_MODE, key, ivParams);
-            byte[] cipherText = cipher.doFinal(plaintext.getBytes("UTF-8"));
+            byte[] cipherText = cipher.doFinal(plaintext);
 
             if(salt != null) {
                 return String.format("%s%s%s%s%s",
@@ -58,8 +105,6 @@ public class Encryption {
                     toBase64(cipherText));
         } catch (GeneralSecurityException e) {
             throw new RuntimeException(e);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -98,6 +143,14 @@ public class Encryption {
 
 
     public static String decrypt(String ciphertext, String password) {
+        try {
+            return new String(decryptBytes(ciphertext, password), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static byte[] decryptBytes(String ciphertext, String password) {
         String[] fields = ciphertext.split(DELIMITER);
         if(fields.length != 3) {
             throw new IllegalArgumentException("Invalid encypted text format");
@@ -111,12 +164,9 @@ public class Encryption {
             Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
             IvParameterSpec ivParams = new IvParameterSpec(iv);
             cipher.init(Cipher.DECRYPT_MODE, key, ivParams);
-            byte[] plaintext = cipher.doFinal(cipherBytes);
-            return new String(plaintext, "UTF-8");
+            return cipher.doFinal(cipherBytes);
         } catch (GeneralSecurityException e) {
             throw new RuntimeException(e);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -144,6 +194,76 @@ public class Encryption {
     }
 
 
+    /**
+     * Derives a session key for the binary mode with a new random salt
+     * @param password passphrase
+     * @return session key
+     */
+    public static SessionKey createSessionKey(String password) {
+        byte[] salt = new byte[GCM_SALT_LENGTH];
+        random.nextBytes(salt);
+        return new SessionKey(salt, deriveKey(password, salt));
+    }
+
+    /**
+     * @param message received message
+     * @return true if the message was encrypted with the binary session mode
+     */
+    public static boolean isSessionMessage(byte[] message) {
+        return message != null && message.length >= GCM_OVERHEAD && message[0] == GCM_VERSION;
+    }
+
+    /**
+     * Encrypts with AES-GCM into a caller supplied buffer, which needs
+     * {@link #GCM_OVERHEAD} bytes more than the plaintext
+     * @param sessionKey session key
+     * @param plaintext message
+     * @param out buffer receiving the encrypted message at its current position
+     * @return number of bytes written
+     */
+    public static int encrypt(SessionKey sessionKey, byte[] plaintext, ByteBuffer out) {
+        byte[] iv = generateIv(GCM_IV_LENGTH);
+        try {
+            Cipher cipher = Cipher.getInstance(GCM_CIPHER_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, sessionKey.key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+            int start = out.position();
+            out.put(GCM_VERSION).put(sessionKey.salt).put(iv);
+            cipher.doFinal(ByteBuffer.wrap(plaintext), out);
+            return out.position() - start;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static byte[] encrypt(SessionKey sessionKey, byte[] plaintext) {
+        ByteBuffer out = ByteBuffer.allocate(plaintext.length + GCM_OVERHEAD);
+        encrypt(sessionKey, plaintext, out);
+        return out.array();
+    }
+
+    /**
+     * Decrypts a message of the binary session mode. The key is derived from the salt of the
+     * message, so only the first message of a session runs the key derivation.
+     * @param message encrypted message
+     * @param password passphrase
+     * @return plaintext
+     */
+    public static byte[] decrypt(byte[] message, String password) {
+        if (!isSessionMessage(message)) {
+            throw new IllegalArgumentException("Invalid encrypted message format");
+        }
+        byte[] salt = Arrays.copyOfRange(message, 1, 1 + GCM_SALT_LENGTH);
+        SecretKey key = deriveKey(password, salt);
+        try {
+            Cipher cipher = Cipher.getInstance(GCM_CIPHER_ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, message, 1 + GCM_SALT_LENGTH, GCM_IV_LENGTH));
+            int offset = 1 + GCM_SALT_LENGTH + GCM_IV_LENGTH;
+            return cipher.doFinal(message, offset, message.length - offset);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static byte[] generateSalt() {
         byte[] b = new byte[PKCS5_SALT_LENGTH];
         random.nextBytes(b);
@@ -156,15 +276,36 @@ public class Encryption {
         return b;
     }
 
+    /**
+     * Derives the AES key for a password and salt, using the key cache when possible
+     * @param password passphrase
+     * @param salt salt
+     * @return AES key
+     */
     public static SecretKey deriveKey(String password, byte[] salt) {
-        try {
-            KeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, ITERATION_COUNT, KEY_LENGTH);
-            SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(PBKDF2_DERIVATION_ALGORITHM);
-            byte[] keyBytes = keyFactory.generateSecret(keySpec).getEncoded();
-            return new SecretKeySpec(keyBytes, "AES");
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
+        byte[] keyBytes = keyCache.get(password, salt);
+        if (keyBytes == null) {
+            PBEKeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, ITERATION_COUNT, KEY_LENGTH);
+            try {
+                SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(PBKDF2_DERIVATION_ALGORITHM);
+                keyBytes = keyFactory.generateSecret(keySpec).getEncoded();
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            } finally {
+                keySpec.clearPassword();
+            }
+            keyCache.put(password, salt, keyBytes);
         }
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+        Arrays.fill(keyBytes, (byte) 0);
+        return key;
+    }
+
+    /**
+     * Removes every derived key from the cache, wiping the key bytes
+     */
+    public static void clearKeyCache() {
+        keyCache.clear();
     }
 
     public static String toBase64(byte[] bytes) {
@@ -0,0 +1,163 @@
+package network.datahop.blediscovery;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Frames of the multi-topic exchange. The client writes all its "topic" values in a single request
+ * frame on the DataHop characteristic and the server answers with a single response frame telling,
+ * for every topic it also advertises, whether the values differ, plus the network information if any.
+ * A topic whose value differs is answered without network information when the server application has
+ * none to share, which is told apart from a reply that never came.
+ * Frames are encoded with {@link WireCodec}:
+ * <pre>
+ * request:  header | count | count x (topic uuid | value length | value) | peer info length | peer info
+ * response: header | count | count x (topic uuid | status) | info length | info
+ * </pre>
+ * Counts and statuses are one byte and UUIDs are sixteen bytes.
+ */
+public class ExchangeFrame {
+
+    public static final byte STATUS_SAME = 0;
+    public static final byte STATUS_DIFFERENT = 1;
+    /* Values differ but the application has no network information to share. Earlier versions read
+     * every status other than STATUS_DIFFERENT as the same status, as the per-topic writes do */
+    public static final byte STATUS_DIFFERENT_NO_INFO = 2;
+
+    private static final int MAX_TOPICS = 255;
+
+    /**
+     * Exchange request sent by the client
+     */
+    public static class Request {
+        private final LinkedHashMap<UUID, byte[]> topics;
+        private final String peerInfo;
+
+        Request(LinkedHashMap<UUID, byte[]> topics, String peerInfo) {
+            this.topics = topics;
+            this.peerInfo = peerInfo;
+        }
+
+        /**
+         * @return UTF-8 topic values keyed by topic UUID
+         */
+        public Map<UUID, byte[]> getTopics() {
+            return topics;
+        }
+
+        public String getPeerInfo() {
+            return peerInfo;
+        }
+    }
+
+    /**
+     * Exchange response sent by the server
+     */
+    public static class Response {
+        private final LinkedHashMap<UUID, Byte> topics;
+        private final byte[] info;
+
+        Response(LinkedHashMap<UUID, Byte> topics, byte[] info) {
+            this.topics = topics;
+            this.info = info;
+        }
+
+        /**
+         * @return topics compared by the server, mapped to their STATUS constant
+         */
+        public Map<UUID, Byte> getTopics() {
+            return topics;
+        }
+
+        /**
+         * @return network information, or null when every topic has the same value
+         */
+        public byte[] getInfo() {
+            return info;
+        }
+    }
+
+    /**
+     * @param topics UTF-8 topic values keyed by topic UUID
+     * @param peerInfo UTF-8 peer identifier
+     * @return request frame
+     */
+    public static byte[] encodeRequest(Map<UUID, byte[]> topics, byte[] peerInfo) {
+        checkCount(topics.size());
+        int size = WireCodec.HEADER_LENGTH + 1 + WireCodec.fieldSize(peerInfo);
+        for (byte[] value : topics.values()) {
+            size += 16 + WireCodec.fieldSize(value);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        WireCodec.putHeader(buffer, WireCodec.TYPE_EXCHANGE_REQUEST);
+        buffer.put((byte) topics.size());
+        for (Map.Entry<UUID, byte[]> entry : topics.entrySet()) {
+            WireCodec.putUuid(buffer, entry.getKey());
+            WireCodec.putField(buffer, entry.getValue());
+        }
+        WireCodec.putField(buffer, peerInfo);
+        return buffer.array();
+    }
+
+    public static Request decodeRequest(byte[] frame) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            WireCodec.checkHeader(buffer, WireCodec.TYPE_EXCHANGE_REQUEST);
+            int count = buffer.get() & 0xFF;
+            LinkedHashMap<UUID, byte[]> topics = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                UUID topic = WireCodec.getUuid(buffer);
+                topics.put(topic, WireCodec.getField(buffer));
+            }
+            return new Request(topics, WireCodec.getString(buffer));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated exchange request");
+        }
+    }
+
+    /**
+     * @param topics topics compared, mapped to their STATUS constant
+     * @param info network information, or null if none
+     * @return response frame
+     */
+    public static byte[] encodeResponse(Map<UUID, Byte> topics, byte[] info) {
+        checkCount(topics.size());
+        ByteBuffer buffer = ByteBuffer.allocate(WireCodec.HEADER_LENGTH + 1 + topics.size() * 17 + WireCodec.fieldSize(info));
+        WireCodec.putHeader(buffer, WireCodec.TYPE_EXCHANGE_RESPONSE);
+        buffer.put((byte) topics.size());
+        for (Map.Entry<UUID, Byte> entry : topics.entrySet()) {
+            WireCodec.putUuid(buffer, entry.getKey());
+            buffer.put(entry.getValue());
+        }
+        WireCodec.putField(buffer, info);
+        return buffer.array();
+    }
+
+    public static Response decodeResponse(byte[] frame) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            WireCodec.checkHeader(buffer, WireCodec.TYPE_EXCHANGE_RESPONSE);
+            int count = buffer.get() & 0xFF;
+            LinkedHashMap<UUID, Byte> topics = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                UUID topic = WireCodec.getUuid(buffer);
+                byte status = buffer.get();
+                // Statuses added by later versions are read as the same status
+                topics.put(topic, status == STATUS_DIFFERENT || status == STATUS_DIFFERENT_NO_INFO ? status : STATUS_SAME);
+            }
+            byte[] info = WireCodec.getField(buffer);
+            return new Response(topics, info.length > 0 ? info : null);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated exchange response");
+        }
+    }
+
+    private static void checkCount(int count) {
+        if (count > MAX_TOPICS) {
+            throw new IllegalArgumentException("Too many topics " + count);
+        }
+    }
+}
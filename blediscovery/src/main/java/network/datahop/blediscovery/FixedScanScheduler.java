@@ -0,0 +1,33 @@
+package network.datahop.blediscovery;
+
+import android.bluetooth.le.ScanSettings;
+
+/**
+ * ScanScheduler that repeats the same scan and idle time forever using low latency scanning.
+ */
+public class FixedScanScheduler implements ScanScheduler {
+
+    private final ScanWindow window;
+
+    /**
+     * FixedScanScheduler class constructor
+     * @param scanTime duration of the scanning phase
+     * @param idleTime idle time before starting another scan cycle
+     */
+    public FixedScanScheduler(long scanTime, long idleTime) {
+        this.window = new ScanWindow(scanTime, idleTime, ScanSettings.SCAN_MODE_LOW_LATENCY);
+    }
+
+    @Override
+    public ScanWindow nextWindow() {
+        return window;
+    }
+
+    @Override
+    public void onCycleCompleted(int peersSeen, int newPeers, int pendingPeers) {
+    }
+
+    @Override
+    public void onTopicsChanged() {
+    }
+}
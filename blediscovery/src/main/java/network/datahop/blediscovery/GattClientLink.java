@@ -0,0 +1,54 @@
+package network.datahop.blediscovery;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * GATT client connection to the service of a remote device, created by {@link BleTransport#connect}.
+ * Operations return false when they cannot be started, their result is reported through the {@link Callback}.
+ */
+public interface GattClientLink {
+
+    /**
+     * Interface used to report the events of the connection
+     */
+    interface Callback {
+        void onConnectionStateChange(int status, int newState);
+        void onServicesDiscovered(int status);
+        void onMtuChanged(int mtu, int status);
+        void onCharacteristicWrite(UUID characteristic, int status);
+        void onCharacteristicChanged(UUID characteristic, byte[] value);
+        void onCharacteristicRead(UUID characteristic, byte[] value, int status);
+        void onDescriptorWrite(UUID characteristic, UUID descriptor, int status);
+    }
+
+    String getAddress();
+
+    /**
+     * @return name of the remote device, or null if unknown
+     */
+    String getName();
+
+    boolean discoverServices();
+
+    /**
+     * @return characteristics of the service found on the remote device, empty if the service was not found
+     */
+    List<UUID> getCharacteristics();
+
+    boolean hasDescriptor(UUID characteristic, UUID descriptor);
+
+    boolean setCharacteristicNotification(UUID characteristic, boolean enable);
+
+    boolean writeCharacteristic(UUID characteristic, byte[] value);
+
+    boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value);
+
+    boolean readCharacteristic(UUID characteristic);
+
+    boolean requestMtu(int mtu);
+
+    void disconnect();
+
+    void close();
+}
@@ -0,0 +1,445 @@
+package network.datahop.blediscovery;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothProfile;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static network.datahop.blediscovery.Constants.CLIENT_CONFIGURATION_DESCRIPTOR_UUID;
+
+/**
+ * GattClientSession receives the events of a {@link GattClientLink} and holds the state of a single connection
+ * to a remote GATT server: connection state, queued GATT operations and the topics sent to the server.
+ * BLEServiceDiscovery runs several sessions at the same time so that all the advertisers found
+ * in a scan cycle can be visited within that cycle.
+ * Each phase of the session has a deadline: a stack that never reports the connection, the discovered
+ * services or the end of the exchange gets the link disconnected and closed when it expires, so a single
+ * unresponsive peer cannot hold a session forever. The GATT operations of the exchange, MTU request included,
+ * also have their own timeout in the {@link GattOperationQueue}.
+ */
+public class GattClientSession implements GattClientLink.Callback {
+
+    private static final String TAG = "GattClientSession";
+
+    static final int STATE_DISCONNECTED = 0;
+    static final int STATE_CONNECTING = 1;
+    static final int STATE_CONNECTED = 2;
+
+    public static final int PHASE_CONNECT = 0;
+    public static final int PHASE_DISCOVERY = 1;
+    public static final int PHASE_EXCHANGE = 2;
+    public static final int PHASES = 3;
+
+    public static final long DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final long DEFAULT_DISCOVERY_TIMEOUT = 5000;
+    public static final long DEFAULT_EXCHANGE_TIMEOUT = 15000;
+
+    private final BleTransport transport;
+    private final String address;
+    private final byte[] remoteDigest;
+    private final UUID mServiceUUID;
+    private final TopicRegistry.Snapshot topics;
+    private final String peerInfo;
+    private final String password;
+    private final ClientSessionListener listener;
+
+    private volatile GattClientLink link;
+    private GattOperationQueue operations;
+    private volatile int mConnectionState = STATE_DISCONNECTED;
+    private volatile boolean exchangeStarted;
+    private volatile boolean closed;
+    private int outcome = PeerCache.OUTCOME_FAILED;
+    /* Topics also advertised by the server, -1 until it answers */
+    private int commonTopics = -1;
+    private volatile int phase = -1;
+    /* Phase whose deadline closed the session, -1 if none */
+    private volatile int expiredPhase = -1;
+
+    private final Runnable watchdog = new Runnable() {
+        @Override
+        public void run() {
+            onDeadline();
+        }
+    };
+
+    /**
+     * GattClientSession class constructor
+     * @param transport transport used for the connection
+     * @param address address of the remote device hosting the GATT server
+     * @param remoteDigest status digest advertised by the device, null when not advertised
+     * @param serviceUuid service id
+     * @param topics topic values sent to the server during this session
+     * @param peerInfo peer identifier
+     * @param password passphrase used for decrypting network information, or null
+     * @param listener listener receiving the session events
+     */
+    public GattClientSession(BleTransport transport, String address, byte[] remoteDigest, UUID serviceUuid,
+                             TopicRegistry.Snapshot topics, String peerInfo, String password,
+                             ClientSessionListener listener) {
+        this.transport = transport;
+        this.address = address;
+        this.remoteDigest = remoteDigest;
+        this.mServiceUUID = serviceUuid;
+        this.topics = topics;
+        this.peerInfo = peerInfo;
+        this.password = password;
+        this.listener = listener;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return name of the remote device, or null if unknown
+     */
+    public String getName() {
+        GattClientLink current = link;
+        return current != null ? current.getName() : null;
+    }
+
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    public byte[] getRemoteDigest() {
+        return remoteDigest;
+    }
+
+    /**
+     * @return status digest of the topic values sent during this session
+     */
+    public byte[] getStatusDigest() {
+        return topics.getDigest();
+    }
+
+    /**
+     * @return outcome of the exchange, one of the {@link PeerCache} OUTCOME constants
+     */
+    public int getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return number of topics the server also advertises, -1 if it did not answer
+     */
+    public int getCommonTopics() {
+        return commonTopics;
+    }
+
+    /**
+     * @return phase whose deadline closed the session, one of the PHASE constants, or -1 if none expired
+     */
+    public int getExpiredPhase() {
+        return expiredPhase;
+    }
+
+    /**
+     * Connects to the GATT server hosted on the remote device. The connection result
+     * is reported asynchronously through {@link #onConnectionStateChange(int, int)}.
+     * When the connection cannot be initiated the session is discarded without notifying the listener.
+     * @return true if the connection is initiated successfully
+     */
+    public boolean connect() {
+        mConnectionState = STATE_CONNECTING;
+        arm(PHASE_CONNECT, DEFAULT_CONNECT_TIMEOUT);
+        link = transport.connect(address, mServiceUUID, this);
+        if (link == null) {
+            Log.d(TAG, "connect failed for " + address);
+            transport.removeCallbacks(watchdog);
+            mConnectionState = STATE_DISCONNECTED;
+            closed = true;
+            return false;
+        }
+        Log.d(TAG, "Trying to create a new connection to " + address);
+        return true;
+    }
+
+    /**
+     * Disconnects and releases the connection. The listener is notified once per session.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        Log.d(TAG, "Close " + address);
+        transport.removeCallbacks(watchdog);
+        mConnectionState = STATE_DISCONNECTED;
+        if (operations != null) {
+            operations.close();
+        }
+        GattClientLink current = link;
+        if (current != null) {
+            current.disconnect();
+            current.close();
+        }
+        listener.sessionClosed(this);
+    }
+
+    /* Starts the deadline of a phase, replacing the one of the previous phase */
+    private void arm(int phase, long timeout) {
+        transport.removeCallbacks(watchdog);
+        this.phase = phase;
+        transport.postDelayed(watchdog, timeout);
+    }
+
+    private void onDeadline() {
+        if (closed) return;
+        Log.d(TAG, "Deadline of phase " + phase + " expired for " + address);
+        expiredPhase = phase;
+        close();
+    }
+
+    private void enableCharacteristicNotification(UUID characteristic, List<GattOperationQueue.Operation> exchange) {
+        boolean characteristicWriteSuccess = link.setCharacteristicNotification(characteristic, true);
+        if (characteristicWriteSuccess) {
+            if (link.hasDescriptor(characteristic, CLIENT_CONFIGURATION_DESCRIPTOR_UUID)) {
+                exchange.add(GattOperationQueue.Operation.writeDescriptor(characteristic, CLIENT_CONFIGURATION_DESCRIPTOR_UUID,
+                        Constants.ENABLE_NOTIFICATION_VALUE));
+            }
+        } else {
+            Log.d(TAG, "Characteristic notification set failure for " + characteristic.toString());
+        }
+    }
+
+    private void readCharacteristic(UUID characteristic, byte[] messageBytes) {
+
+        if (messageBytes == null) {
+            Log.d(TAG, "Unable to convert bytes to string");
+            return;
+        }
+        if (Constants.CHARACTERISTIC_DATAHOP_UUID.equals(characteristic)) {
+            readExchangeResponse(messageBytes);
+            return;
+        }
+        Log.d(TAG, "Message from remote: " + messageBytes.length + " bytes pending:" + (operations != null ? operations.size() : 0));
+        commonTopics = Math.max(commonTopics, 0) + 1;
+        WireCodec.NetworkInfo info = null;
+        if (!Arrays.equals(new byte[]{0x00}, messageBytes)) {
+            info = decodeNetworkInfo(messageBytes);
+            if (info == null) {
+                // Network information that cannot be decoded, the status still differs
+                outcome = PeerCache.OUTCOME_FAILED;
+                close();
+                return;
+            }
+        }
+        if (info != null) {
+            outcome = PeerCache.OUTCOME_DIFFERENT_STATUS;
+            listener.differentStatusDiscovered(this, characteristic, info.getNetwork(), info.getPassword(), info.getPeerInfo());
+            close();
+        } else {
+            if (outcome == PeerCache.OUTCOME_FAILED) outcome = PeerCache.OUTCOME_SAME_STATUS;
+            listener.sameStatusDiscovered(this, characteristic);
+        }
+    }
+
+    private void readExchangeResponse(byte[] messageBytes) {
+        ExchangeFrame.Response response;
+        try {
+            response = ExchangeFrame.decodeResponse(messageBytes);
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "Invalid exchange response " + e.getMessage());
+            return;
+        }
+        WireCodec.NetworkInfo info = response.getInfo() != null ? decodeNetworkInfo(response.getInfo()) : null;
+        commonTopics = response.getTopics().size();
+        if (info == null && response.getTopics().containsValue(ExchangeFrame.STATUS_DIFFERENT)) {
+            // The server found a difference but its reply was dropped or cannot be decoded, so the peer
+            // is not in sync: the session fails and the peer is visited again
+            Log.d(TAG, "Different status without network information from " + address);
+            outcome = PeerCache.OUTCOME_FAILED;
+            close();
+            return;
+        }
+        if (outcome == PeerCache.OUTCOME_FAILED) outcome = PeerCache.OUTCOME_SAME_STATUS;
+        for (Map.Entry<UUID, Byte> topic : response.getTopics().entrySet()) {
+            // Differing topics the server has no network information for are reported as the same status,
+            // as the per-topic writes answered with an empty value
+            if (topic.getValue() == ExchangeFrame.STATUS_DIFFERENT) {
+                outcome = PeerCache.OUTCOME_DIFFERENT_STATUS;
+                listener.differentStatusDiscovered(this, topic.getKey(), info.getNetwork(), info.getPassword(), info.getPeerInfo());
+            } else {
+                listener.sameStatusDiscovered(this, topic.getKey());
+            }
+        }
+    }
+
+    private WireCodec.NetworkInfo decodeNetworkInfo(byte[] messageBytes) {
+        try {
+            byte[] msg = messageBytes;
+            if (password != null) {
+                msg = Encryption.isSessionMessage(messageBytes)
+                        ? Encryption.decrypt(messageBytes, password)
+                        : Encryption.decryptBytes(new String(messageBytes), password);
+            }
+            return WireCodec.decodeNetworkInfo(msg);
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Unable to decode network information " + e.getMessage());
+            return null;
+        }
+    }
+
+    /* One write per topic, each one completed by the notification replying to it */
+    private void sendMessage(List<UUID> characteristics, List<GattOperationQueue.Operation> exchange) {
+        Log.d(TAG, "Found " + characteristics.size() + " characteristics. Writing");
+        for (UUID characteristic : characteristics) {
+            TopicRegistry.Entry topic = topics.get(characteristic);
+            if (topic == null) continue;
+            // Servers without the exchange characteristic only parse the legacy text format
+            byte[] messageBytes = WireCodec.encodeLegacyTopic(topic.getValueBytes(), WireCodec.utf8(peerInfo));
+            Log.d(TAG, "Sending message: " + messageBytes.length + " bytes " + characteristic.toString());
+            exchange.add(GattOperationQueue.Operation.write(characteristic, messageBytes, true));
+        }
+    }
+
+    private final GattOperationQueue.Callback mQueueCallback = new GattOperationQueue.Callback() {
+        @Override
+        public void onQueueDrained() {
+            if (exchangeStarted) {
+                Log.d(TAG, "Exchange completed with " + address);
+                close();
+            }
+        }
+
+        @Override
+        public void onOperationFailed(GattOperationQueue.Operation operation) {
+            Log.d(TAG, "Operation failed " + operation);
+            close();
+        }
+    };
+
+    @Override
+    public void onConnectionStateChange(int status, int newState) {
+        if (newState == BluetoothProfile.STATE_CONNECTED && mConnectionState != STATE_CONNECTED) {
+            mConnectionState = STATE_CONNECTED;
+            Log.d(TAG, "Connected to GATT server: " + address);
+            listener.sessionConnected(this);
+            arm(PHASE_DISCOVERY, DEFAULT_DISCOVERY_TIMEOUT);
+            GattClientLink current = link;
+            if (current == null || !current.discoverServices()) {
+                close();
+            }
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            Log.d(TAG, "Disconnected from GATT server.");
+            close();
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(int status) {
+
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.d(TAG, "Device service discovery unsuccessful, status " + status);
+            close();
+            return;
+        }
+
+        List<UUID> characteristics = link.getCharacteristics();
+        Log.d(TAG, "Characteristics " + characteristics.size());
+        if (characteristics.contains(Constants.CHARACTERISTIC_DATAHOP_UUID)) {
+            startExchange(Constants.CHARACTERISTIC_DATAHOP_UUID);
+            return;
+        }
+
+        // Servers without the exchange characteristic only understand one write per topic
+        List<UUID> matchingCharacteristics = new ArrayList<>();
+        for (UUID characteristic : characteristics) {
+            if (topics.contains(characteristic)) {
+                matchingCharacteristics.add(characteristic);
+            }
+        }
+        if (matchingCharacteristics.isEmpty()) {
+            Log.d(TAG, "Unable to find characteristics.");
+            close();
+            return;
+        }
+
+        List<GattOperationQueue.Operation> exchange = new ArrayList<>();
+        for (UUID characteristic : matchingCharacteristics) {
+            Log.d(TAG, "characteristic: " + characteristic.toString());
+            enableCharacteristicNotification(characteristic, exchange);
+        }
+        Log.d(TAG, "Requesting MTU CHANGE");
+        exchange.add(GattOperationQueue.Operation.requestMtu(512));
+        sendMessage(matchingCharacteristics, exchange);
+
+        enqueueExchange(exchange);
+    }
+
+    /* All the topics are sent in a single frame, answered with a single notification */
+    private void startExchange(UUID characteristic) {
+        Log.d(TAG, "Sending exchange frame with " + topics.size() + " topics");
+        List<GattOperationQueue.Operation> exchange = new ArrayList<>();
+        enableCharacteristicNotification(characteristic, exchange);
+        exchange.add(GattOperationQueue.Operation.requestMtu(512));
+        exchange.add(GattOperationQueue.Operation.write(characteristic,
+                ExchangeFrame.encodeRequest(topics.getValueBytes(), WireCodec.utf8(peerInfo)), true));
+        enqueueExchange(exchange);
+    }
+
+    private void enqueueExchange(List<GattOperationQueue.Operation> exchange) {
+        synchronized (this) {
+            if (closed) return;
+            operations = new GattOperationQueue(link, transport, mQueueCallback);
+        }
+        arm(PHASE_EXCHANGE, DEFAULT_EXCHANGE_TIMEOUT);
+        exchangeStarted = true;
+        operations.enqueueAll(exchange);
+    }
+
+    @Override
+    public void onMtuChanged(int mtu, int status) {
+        Log.d(TAG, "ON MTU CHANGED");
+        if (operations != null) operations.onMtuChanged(mtu, status);
+    }
+
+    @Override
+    public void onCharacteristicWrite(UUID characteristic, int status) {
+        if (status == Constants.GATT_STATUS_BUSY) {
+            onBusy();
+            return;
+        }
+        if (operations != null) operations.onCharacteristicWrite(characteristic, status);
+    }
+
+    @Override
+    public void onCharacteristicChanged(UUID characteristic, byte[] value) {
+        Log.d(TAG, "onCharacteristicChanged received: " + characteristic.toString());
+        readCharacteristic(characteristic, value);
+        if (operations != null) operations.onCharacteristicChanged(characteristic);
+    }
+
+    @Override
+    public void onDescriptorWrite(UUID characteristic, UUID descriptor, int status) {
+        Log.d(TAG, "On Descriptor Write");
+        if (status == Constants.GATT_STATUS_BUSY) {
+            onBusy();
+            return;
+        }
+        if (operations != null) operations.onDescriptorWrite(descriptor, status);
+    }
+
+    /* The server has no room for this client, retrying now would only be turned away again */
+    private void onBusy() {
+        Log.d(TAG, "GATT server busy: " + address);
+        if (outcome == PeerCache.OUTCOME_FAILED) outcome = PeerCache.OUTCOME_BUSY;
+        close();
+    }
+
+    @Override
+    public void onCharacteristicRead(UUID characteristic, byte[] value, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            Log.d(TAG, "Characteristic Read");
+        }
+        if (operations != null) operations.onCharacteristicRead(characteristic, status);
+    }
+}
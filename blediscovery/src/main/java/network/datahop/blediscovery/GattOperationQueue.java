@@ -0,0 +1,299 @@
+package network.datahop.blediscovery;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Serialized queue of GATT client operations. Android only accepts one outstanding GATT operation
+ * per connection, so operations are executed one at a time and the next one starts as soon as the
+ * completion callback of the current one arrives. Operations that cannot be started, fail or time out
+ * are retried with exponential backoff before the whole queue is reported as failed.
+ * A write awaiting a notification is never written again once the server acknowledged it: the server
+ * application may take longer than the timeout to reply, so the reply is awaited until the deadline
+ * of the caller, which closes the queue.
+ */
+public class GattOperationQueue {
+
+    private static final String TAG = "GattOperationQueue";
+
+    public static final int OP_WRITE = 0;
+    public static final int OP_WRITE_DESCRIPTOR = 1;
+    public static final int OP_REQUEST_MTU = 2;
+    public static final int OP_READ = 3;
+
+    public static final long DEFAULT_TIMEOUT = 5000;
+    public static final long DEFAULT_BACKOFF = 100;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /**
+     * Interface used to report the end of the queued operations
+     */
+    public interface Callback {
+        void onQueueDrained();
+        void onOperationFailed(Operation operation);
+    }
+
+    /**
+     * A single GATT operation
+     */
+    public static class Operation {
+        final int type;
+        final UUID characteristic;
+        final UUID descriptor;
+        final byte[] value;
+        final int mtu;
+        final boolean awaitNotification;
+        int attempts;
+
+        private Operation(int type, UUID characteristic, UUID descriptor,
+                          byte[] value, int mtu, boolean awaitNotification) {
+            this.type = type;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+            this.mtu = mtu;
+            this.awaitNotification = awaitNotification;
+        }
+
+        /**
+         * Characteristic write. When {@code awaitNotification} is set the operation completes when the
+         * server notifies the reply on the same characteristic instead of on the write acknowledgement.
+         */
+        public static Operation write(UUID characteristic, byte[] value, boolean awaitNotification) {
+            return new Operation(OP_WRITE, characteristic, null, value, 0, awaitNotification);
+        }
+
+        public static Operation writeDescriptor(UUID characteristic, UUID descriptor, byte[] value) {
+            return new Operation(OP_WRITE_DESCRIPTOR, characteristic, descriptor, value, 0, false);
+        }
+
+        public static Operation requestMtu(int mtu) {
+            return new Operation(OP_REQUEST_MTU, null, null, null, mtu, false);
+        }
+
+        public static Operation read(UUID characteristic) {
+            return new Operation(OP_READ, characteristic, null, null, 0, false);
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public UUID getUuid() {
+            if (descriptor != null) return descriptor;
+            return characteristic;
+        }
+
+        @Override
+        public String toString() {
+            return "Operation{type=" + type + ", uuid=" + getUuid() + ", attempts=" + attempts + "}";
+        }
+    }
+
+    private final GattClientLink link;
+    private final BleTransport transport;
+    private final Callback callback;
+    private final long timeout;
+    private final long backoff;
+    private final int maxAttempts;
+
+    private final ArrayDeque<Operation> queue;
+    private Operation current;
+    private boolean currentWritten;
+    private boolean closed;
+
+    private final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    private final Runnable executeTask = new Runnable() {
+        @Override
+        public void run() {
+            execute();
+        }
+    };
+
+    /**
+     * GattOperationQueue class constructor
+     * @param link connection the operations are executed on
+     * @param transport transport used for timeouts and retries
+     * @param callback callback receiving the queue events
+     */
+    public GattOperationQueue(GattClientLink link, BleTransport transport, Callback callback) {
+        this(link, transport, callback, DEFAULT_TIMEOUT, DEFAULT_BACKOFF, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * GattOperationQueue class constructor
+     * @param link connection the operations are executed on
+     * @param transport transport used for timeouts and retries
+     * @param callback callback receiving the queue events
+     * @param timeout time in ms to wait for the completion of an operation, or for the acknowledgement
+     *                of a write awaiting a notification
+     * @param backoff delay in ms before the first retry, doubled on every retry
+     * @param maxAttempts maximum number of attempts for each operation
+     */
+    public GattOperationQueue(GattClientLink link, BleTransport transport, Callback callback, long timeout, long backoff, int maxAttempts) {
+        this.link = link;
+        this.transport = transport;
+        this.callback = callback;
+        this.timeout = timeout;
+        this.backoff = backoff;
+        this.maxAttempts = maxAttempts;
+        this.queue = new ArrayDeque<>();
+    }
+
+    /**
+     * Adds an operation to the queue, starting it immediately if the queue is idle
+     * @param operation operation to execute
+     */
+    public synchronized void enqueue(Operation operation) {
+        if (closed) return;
+        queue.add(operation);
+        if (current == null) {
+            next();
+        }
+    }
+
+    /**
+     * Adds several operations to the queue at once, so the queue is not reported as drained
+     * before the last one is added
+     * @param operations operations to execute in order
+     */
+    public synchronized void enqueueAll(List<Operation> operations) {
+        if (closed) return;
+        queue.addAll(operations);
+        if (current == null) {
+            next();
+        }
+    }
+
+    /**
+     * Cancels the pending operations and timers. No more callbacks are invoked.
+     */
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+        current = null;
+        transport.removeCallbacks(timeoutTask);
+        transport.removeCallbacks(executeTask);
+    }
+
+    public synchronized int size() {
+        return queue.size() + (current != null ? 1 : 0);
+    }
+
+    public synchronized void onCharacteristicWrite(UUID uuid, int status) {
+        if (!isCurrent(OP_WRITE, uuid)) return;
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.d(TAG, "Write failed with status " + status);
+            retry();
+        } else if (current.awaitNotification) {
+            // Received by the server, only its reply is awaited now
+            transport.removeCallbacks(timeoutTask);
+            currentWritten = true;
+        } else {
+            complete();
+        }
+    }
+
+    public synchronized void onCharacteristicChanged(UUID uuid) {
+        if (isCurrent(OP_WRITE, uuid) && current.awaitNotification) {
+            complete();
+        }
+    }
+
+    public synchronized void onCharacteristicRead(UUID uuid, int status) {
+        if (!isCurrent(OP_READ, uuid)) return;
+        if (status != BluetoothGatt.GATT_SUCCESS) retry();
+        else complete();
+    }
+
+    public synchronized void onDescriptorWrite(UUID uuid, int status) {
+        if (!isCurrent(OP_WRITE_DESCRIPTOR, uuid)) return;
+        if (status != BluetoothGatt.GATT_SUCCESS) retry();
+        else complete();
+    }
+
+    /* A failed MTU negotiation is not fatal, the default MTU is used */
+    public synchronized void onMtuChanged(int mtu, int status) {
+        if (current == null || current.type != OP_REQUEST_MTU) return;
+        Log.d(TAG, "MTU " + mtu + " status " + status);
+        complete();
+    }
+
+    private boolean isCurrent(int type, UUID uuid) {
+        return !closed && current != null && current.type == type && current.getUuid().equals(uuid);
+    }
+
+    private void complete() {
+        transport.removeCallbacks(timeoutTask);
+        current = null;
+        next();
+    }
+
+    private void next() {
+        current = queue.poll();
+        if (current == null) {
+            callback.onQueueDrained();
+            return;
+        }
+        execute();
+    }
+
+    private synchronized void execute() {
+        if (closed || current == null) return;
+        currentWritten = false;
+        current.attempts++;
+        boolean started;
+        switch (current.type) {
+            case OP_WRITE:
+                started = link.writeCharacteristic(current.characteristic, current.value);
+                break;
+            case OP_WRITE_DESCRIPTOR:
+                started = link.writeDescriptor(current.characteristic, current.descriptor, current.value);
+                break;
+            case OP_REQUEST_MTU:
+                started = link.requestMtu(current.mtu);
+                break;
+            case OP_READ:
+                started = link.readCharacteristic(current.characteristic);
+                break;
+            default:
+                started = false;
+        }
+        if (started) {
+            transport.postDelayed(timeoutTask, timeout);
+        } else {
+            Log.d(TAG, "Unable to start " + current);
+            retry();
+        }
+    }
+
+    private synchronized void onTimeout() {
+        if (closed || current == null) return;
+        Log.d(TAG, "Timeout " + current + " written:" + currentWritten);
+        retry();
+    }
+
+    private void retry() {
+        transport.removeCallbacks(timeoutTask);
+        if (current.attempts >= maxAttempts) {
+            Operation failed = current;
+            current = null;
+            queue.clear();
+            callback.onOperationFailed(failed);
+            return;
+        }
+        long delay = backoff << (current.attempts - 1);
+        Log.d(TAG, "Retrying " + current + " in " + delay);
+        transport.postDelayed(executeTask, delay);
+    }
+}
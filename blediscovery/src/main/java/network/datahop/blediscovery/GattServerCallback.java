@@ -1,54 +1,89 @@
 package network.datahop.blediscovery;
 
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattServer;
-import android.bluetooth.BluetoothGattServerCallback;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
-import android.content.Context;
-import android.os.ParcelUuid;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+import static network.datahop.blediscovery.Constants.CHARACTERISTIC_DATAHOP_UUID;
 import static network.datahop.blediscovery.Constants.CLIENT_CONFIGURATION_DESCRIPTOR_UUID;
 
 
 /**
- * GattServerCallback extends BluetoothGattServerCallback and overwrites all functions required to
+ * GattServerCallback implements GattServerLink.Callback and all functions required to
  * accept GATT connections and read/write characteristics.
+ * Callbacks arrive on binder threads while the application replies from its own thread, so the state of
+ * each connection is kept in a concurrent map and the topics in immutable snapshots, read without locking.
  */
-public class GattServerCallback extends BluetoothGattServerCallback {
+public class GattServerCallback implements GattServerLink.Callback {
 
-    private BluetoothGattServer mGattServer;
-    private List<BluetoothDevice> mDevices;
-    private Map<String, byte[]> mClientConfigurations;
+    private volatile GattServerLink mGattServer;
+    /* State of the connected clients, keyed by device address */
+    private final ConcurrentHashMap<String, ClientState> mClients;
 
     String network, password;
-    private Context mContext;
-    BluetoothGattCharacteristic mCharacteristic;
-    ParcelUuid mServiceUUID;
+    UUID mServiceUUID;
     private static final String TAG = "GattServerCallback";
-    private HashMap<UUID, String> advertisingInfo;
+    /* Topic values served by this GATT server. The UTF-8 values are compared with the received messages
+     * without decoding them, through an index built with the snapshot and reused for every write request */
+    private volatile TopicRegistry.Snapshot topics;
+    private volatile CharacteristicIndex<TopicRegistry.Entry> topicValues;
 
     DiscoveryListener listener;
 
-    public GattServerCallback(Context context, String parcelUuid, HashMap<UUID, String> advertisingInfo, DiscoveryListener listener) {//WifiDirectHotSpot hotspot, HashMap<UUID,ContentAdvertisement> ca, ParcelUuid service_uuid,StatsHandler stats,List<String> groups) {
+    /* Kinds of reply expected from the listener */
+    public static final int REPLY_TOPIC = 1;
+    public static final int REPLY_EXCHANGE = 2;
+
+    /* Replies expected from the listener, each one routed to the device that sent the request.
+     * Topic writes are tagged with null, the topics of exchange frames with their PendingExchange */
+    private final PendingReplyLedger replies;
+    /* Notifications sent one at a time to each device */
+    private final NotificationQueue notifications;
+    /* Clients served at the same time and the order in which their writes are processed */
+    private final AdmissionControl admission;
+
+    private static final class ClientState {
+        /* Value of the client configuration descriptor, null until written */
+        volatile byte[] configuration;
+    }
+
+    private static class PendingExchange {
+        final String device;
+        /* STATUS of each topic in common, in the ExchangeFrame constants */
+        final LinkedHashMap<UUID, Byte> topics;
+        int pendingReplies;
+        byte[] info;
+        /* Set when the client sent the frame again, the new frame gets the response instead */
+        boolean superseded;
+
+        PendingExchange(String device) {
+            this.device = device;
+            this.topics = new LinkedHashMap<>();
+        }
+    }
+
+    public GattServerCallback(String parcelUuid, TopicRegistry.Snapshot topics, BleTransport transport, DiscoveryListener listener) {//WifiDirectHotSpot hotspot, HashMap<UUID,ContentAdvertisement> ca, ParcelUuid service_uuid,StatsHandler stats,List<String> groups) {
 
-        mDevices = new ArrayList<>();
-        mClientConfigurations = new HashMap<>();
-        mContext = context;
+        mClients = new ConcurrentHashMap<>();
+        replies = new PendingReplyLedger(transport.getClock(), PendingReplyLedger.DEFAULT_CAPACITY, PendingReplyLedger.DEFAULT_TTL,
+                mDroppedReplies);
+        notifications = new NotificationQueue(transport, NotificationQueue.DEFAULT_CAPACITY, NotificationQueue.DEFAULT_DEADLINE);
+        admission = new AdmissionControl(transport, mAdmissionCallback);
 
         network = null;
-        mServiceUUID = new ParcelUuid(UUID.nameUUIDFromBytes(parcelUuid.getBytes()));
-        this.advertisingInfo = advertisingInfo;
+        mServiceUUID = UUID.nameUUIDFromBytes(parcelUuid.getBytes());
+        this.topics = topics;
+        this.topicValues = topics.getIndex();
         Log.d(TAG, "Service uuid:" + mServiceUUID + " " + parcelUuid);
         this.listener = listener;
 
@@ -56,142 +91,374 @@ public class GattServerCallback extends BluetoothGattServerCallback {
 
     public void stop() {
 
-        if(mGattServer!=null)mGattServer.close();
-        network = password = null;
+        GattServerLink server = mGattServer;
         mGattServer = null;
+        if(server!=null)server.close();
+        network = password = null;
+        replies.clear();
+        notifications.clear();
+        admission.clear();
     }
 
-    public void setServer(BluetoothGattServer gattServer) {
+    public void setServer(GattServerLink gattServer) {
         mGattServer = gattServer;
+        notifications.setServer(gattServer);
+    }
+
+    /**
+     * @return queue of the notifications sent to each device, with their depth and drop counts
+     */
+    public NotificationQueue getNotifications() {
+        return notifications;
+    }
+
+    /**
+     * @return addresses of the connected clients at the time of the call, not updated afterwards
+     */
+    public List<String> getConnectedDevices() {
+        return Collections.unmodifiableList(new ArrayList<>(mClients.keySet()));
+    }
+
+    /**
+     * @return admission control of the clients, to configure its limits
+     */
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    /**
+     * @return BluetoothGattCharacteristic PROPERTY flags of the characteristics of the service, keyed by UUID:
+     * one writable characteristic per topic plus the exchange characteristic
+     */
+    public Map<UUID, Integer> getCharacteristics() {
+        Map<UUID, Integer> characteristics = new LinkedHashMap<>();
+        for (UUID uuid : topicValues.getUuids()) {
+            characteristics.put(uuid, BluetoothGattCharacteristic.PROPERTY_WRITE);
+        }
+        characteristics.put(CHARACTERISTIC_DATAHOP_UUID,
+                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+        return characteristics;
+    }
+
+    public UUID getServiceUuid() {
+        return mServiceUUID;
+    }
+
+    /**
+     * @return topic values served
+     */
+    public TopicRegistry.Snapshot getTopics() {
+        return topics;
+    }
+
+    /**
+     * Serves new topic values. Values are replaced in place, the service is only rebuilt when the set of
+     * topics changes, and in both cases the GATT server and its connected clients are kept.
+     * @param snapshot topic values
+     * @return false if the server is not running or the service cannot be rebuilt
+     */
+    public boolean updateTopics(TopicRegistry.Snapshot snapshot) {
+        GattServerLink server = mGattServer;
+        if (server == null) return false;
+        boolean sameTopics = topics.hasSameTopics(snapshot);
+        topics = snapshot;
+        topicValues = snapshot.getIndex();
+        if (sameTopics) {
+            return true;
+        }
+        Log.d(TAG, "Rebuilding service with " + snapshot.size() + " topics");
+        server.removeService(mServiceUUID);
+        return server.addService(mServiceUUID, getCharacteristics());
     }
 
 
     @Override
-    public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
-        super.onConnectionStateChange(device, status, newState);
+    public void onConnectionStateChange(String device, int status, int newState) {
 
         if (newState == BluetoothProfile.STATE_CONNECTED) {
-            mDevices.add(device);
+            mClients.putIfAbsent(device, new ClientState());
+            if (!admission.connected(device)) {
+                Log.d(TAG, "Server busy, " + device + " will be turned away");
+            }
             //       int con = stats.getBtConnections();
             //       stats.setBtConnections(++con);
         } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-            mDevices.remove(device);
-            mClientConfigurations.remove(device.getAddress());
-            mCharacteristic = null;
+            mClients.remove(device);
+            notifications.remove(device);
+            admission.disconnected(device);
         }
     }
 
     @Override
-    public void onCharacteristicReadRequest(BluetoothDevice device,
+    public void onCharacteristicReadRequest(String device,
                                             int requestId,
                                             int offset,
-                                            BluetoothGattCharacteristic characteristic) {
-        super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
+                                            UUID characteristic,
+                                            int properties) {
 
 
-        if (BluetoothUtils.requiresResponse(characteristic)) {
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)
+                != BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) {
             // Unknown read characteristic requiring response, send failure
-            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+            GattServerLink server = mGattServer;
+            if (server != null) server.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
         }
     }
 
     @Override
-    public void onCharacteristicWriteRequest(BluetoothDevice device,
+    public void onCharacteristicWriteRequest(String device,
                                              int requestId,
-                                             BluetoothGattCharacteristic characteristic,
+                                             UUID characteristic,
                                              boolean preparedWrite,
                                              boolean responseNeeded,
                                              int offset,
                                              byte[] value) {
-        super.onCharacteristicWriteRequest(device,
-                requestId,
-                characteristic,
-                preparedWrite,
-                responseNeeded,
-                offset,
-                value);
 
+        Log.d(TAG, "onCharacteristicWriteRequest");
+        admission.write(device, requestId, characteristic, value);
+    }
+
+    /* Write requests of the admitted clients, in round-robin order */
+    private final AdmissionControl.Callback mAdmissionCallback = new AdmissionControl.Callback() {
+        @Override
+        public void onWriteRequest(String device, int requestId, UUID characteristic, byte[] value) {
+            processWriteRequest(device, requestId, characteristic, value);
+        }
 
-        List<UUID> groups = new ArrayList<>();
-        groups.addAll(advertisingInfo.keySet());
+        @Override
+        public void onRejected(String device, int requestId) {
+            GattServerLink server = mGattServer;
+            if (server != null) server.sendResponse(device, requestId, Constants.GATT_STATUS_BUSY, 0, null);
+        }
 
-        Log.d(TAG, "onCharacteristicWriteRequest");
-        if (BluetoothUtils.matchAnyCharacteristic(characteristic.getUuid(), groups)) {
-            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
-            String valueString = new String(value).split(":")[0];
-            String peerId = new String(value).split(":")[1];
-            String valueString2 = new String(advertisingInfo.get(characteristic.getUuid()));
-            Log.d(TAG, "Characteristic check " + characteristic.getUuid().toString() + " " + network + " " + valueString2 + " " + valueString);
-            if (!valueString.equals(valueString2)) {
+        @Override
+        public void onDisconnect(String device) {
+            GattServerLink server = mGattServer;
+            if (server != null) server.cancelConnection(device);
+        }
+    };
+
+    /* Reads the server and the topic values once, so a request is served by a single snapshot even when
+     * the topics are updated or the server stopped meanwhile */
+    private void processWriteRequest(String device, int requestId, UUID characteristic, byte[] value) {
+        GattServerLink server = mGattServer;
+        if (server == null) return;
+        CharacteristicIndex<TopicRegistry.Entry> values = topicValues;
+        if (CHARACTERISTIC_DATAHOP_UUID.equals(characteristic)) {
+            onExchangeRequest(server, values, device, requestId, value);
+        } else if (BluetoothUtils.matchAnyCharacteristic(characteristic, values)) {
+            WireCodec.Topic topic;
+            try {
+                topic = WireCodec.decodeTopic(value);
+            } catch (IllegalArgumentException e) {
+                Log.d(TAG, "Invalid topic message " + e.getMessage());
+                server.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+                return;
+            }
+            server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            Log.d(TAG, "Characteristic check " + characteristic.toString() + " " + network);
+            if (replies.add(device, characteristic, null) != null) {
+                Log.d(TAG, "Reply already pending for " + device);
+                return;
+            }
+            if (!topic.valueEquals(values.get(characteristic).getValueBytes())) {
                 Log.d(TAG, "Connecting");
-                listener.differentStatusDiscovered(value,characteristic.getUuid(),peerId);
+                listener.differentStatusDiscovered(topic.copyValue(), characteristic, topic.getPeerInfo());
 
             } else {
                 Log.d(TAG, "Not Connecting");
-                listener.sameStatusDiscovered(characteristic.getUuid());
+                listener.sameStatusDiscovered(characteristic);
+            }
+
+        }
+
+    }
+
+    /* Compares every topic of the frame at once and replies with a single response frame once the
+     * listener has answered for all the topics also advertised locally */
+    private void onExchangeRequest(GattServerLink server, CharacteristicIndex<TopicRegistry.Entry> values,
+                                   String device, int requestId, byte[] value) {
+        ExchangeFrame.Request request;
+        try {
+            request = ExchangeFrame.decodeRequest(value);
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "Invalid exchange frame " + e.getMessage());
+            server.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+            return;
+        }
+        server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+
+        PendingExchange exchange = new PendingExchange(device);
+        for (Map.Entry<UUID, byte[]> topic : request.getTopics().entrySet()) {
+            TopicRegistry.Entry local = values.get(topic.getKey());
+            if (local != null) {
+                exchange.topics.put(topic.getKey(), Arrays.equals(local.getValueBytes(), topic.getValue())
+                        ? ExchangeFrame.STATUS_SAME : ExchangeFrame.STATUS_DIFFERENT);
+            }
+        }
+        Log.d(TAG, "Exchange frame with " + request.getTopics().size() + " topics, " + exchange.topics.size() + " in common");
+        if (exchange.topics.isEmpty()) {
+            sendExchangeResponse(exchange);
+            return;
+        }
+        exchange.pendingReplies = exchange.topics.size();
+        for (Map.Entry<UUID, Byte> topic : exchange.topics.entrySet()) {
+            // A reply already pending for the device now answers this frame, and the frame sent
+            // before is discarded without a response
+            PendingReplyLedger.Reply previous = replies.add(device, topic.getKey(), exchange);
+            if (previous != null) {
+                if (previous.getTag() instanceof PendingExchange) {
+                    supersede((PendingExchange) previous.getTag());
+                }
+                continue;
+            }
+            if (topic.getValue() == ExchangeFrame.STATUS_DIFFERENT) {
+                listener.differentStatusDiscovered(request.getTopics().get(topic.getKey()), topic.getKey(), request.getPeerInfo());
+            } else {
+                listener.sameStatusDiscovered(topic.getKey());
             }
+        }
+    }
+
+    /**
+     * Takes the oldest reply expected from the listener. The reply is removed from the ledger at once,
+     * so its device and kind cannot change while the value answering it is encoded.
+     * @return the reply, to be answered with {@link #reply(PendingReplyLedger.Reply, byte[])} or
+     * {@link #replyEmpty(PendingReplyLedger.Reply)}, or null if none is expected
+     */
+    public PendingReplyLedger.Reply takeReply() {
+        return replies.poll();
+    }
+
+    /**
+     * @return kind of a reply taken with {@link #takeReply()}, one of the REPLY constants
+     */
+    public static int getReplyKind(PendingReplyLedger.Reply reply) {
+        return reply.getTag() instanceof PendingExchange ? REPLY_EXCHANGE : REPLY_TOPIC;
+    }
+
+    /**
+     * Answers a reply taken with {@link #takeReply()}. Topic writes are answered with a notification sent
+     * only to the device that wrote them, exchange frames with a single response frame once all the topics
+     * of the frame have been answered.
+     * @param reply reply taken
+     * @param value network information encoded for the kind of the reply, or null when it cannot be
+     *              encoded, so a differing topic of an exchange frame is answered as a failed reply
+     */
+    public void reply(PendingReplyLedger.Reply reply, byte[] value) {
+        if (reply.getTag() instanceof PendingExchange) {
+            answered((PendingExchange) reply.getTag(), reply.getTopic(), value, false);
+        } else {
+            notifyDevice(reply.getDevice(), reply.getTopic(), value);
+        }
+    }
 
+    /**
+     * Answers a reply taken with {@link #takeReply()} when the listener has no network information to
+     * share. A differing topic is then reported as such to the client, which does not retry it, the same
+     * way the per-topic writes are answered.
+     * @param reply reply taken
+     */
+    public void replyEmpty(PendingReplyLedger.Reply reply) {
+        if (reply.getTag() instanceof PendingExchange) {
+            answered((PendingExchange) reply.getTag(), reply.getTopic(), null, true);
+        } else {
+            notifyDevice(reply.getDevice(), reply.getTopic(), new byte[]{0x00});
         }
+    }
 
+    /* Replies dropped by the ledger still count for their exchange frame, so the client gets a response
+     * for the topics answered. A differing topic left unanswered fails the session of the client */
+    private final PendingReplyLedger.Listener mDroppedReplies = new PendingReplyLedger.Listener() {
+        @Override
+        public void onDropped(PendingReplyLedger.Reply reply) {
+            Log.d(TAG, "Reply to " + reply.getDevice() + " dropped");
+            if (reply.getTag() instanceof PendingExchange) {
+                answered((PendingExchange) reply.getTag(), reply.getTopic(), null, false);
+            }
+        }
+    };
+
+    private void answered(PendingExchange exchange, UUID topic, byte[] info, boolean empty) {
+        synchronized (exchange) {
+            if (info != null) {
+                exchange.info = info;
+            } else if (empty && Byte.valueOf(ExchangeFrame.STATUS_DIFFERENT).equals(exchange.topics.get(topic))) {
+                exchange.topics.put(topic, ExchangeFrame.STATUS_DIFFERENT_NO_INFO);
+            }
+            if (--exchange.pendingReplies > 0 || exchange.superseded) {
+                return;
+            }
+        }
+        sendExchangeResponse(exchange);
     }
 
+    private void supersede(PendingExchange exchange) {
+        synchronized (exchange) {
+            if (!exchange.superseded) {
+                Log.d(TAG, "Exchange frame from " + exchange.device + " sent again");
+                exchange.superseded = true;
+            }
+        }
+    }
 
-    @Override
-    public void onDescriptorReadRequest(BluetoothDevice device,
-                                        int requestId,
-                                        int offset,
-                                        BluetoothGattDescriptor descriptor) {
-        super.onDescriptorReadRequest(device, requestId, offset, descriptor);
+    private void sendExchangeResponse(PendingExchange exchange) {
+        if (mGattServer == null) return;
+        byte[] response = ExchangeFrame.encodeResponse(exchange.topics, exchange.info);
+        Log.d(TAG, "Exchange response to " + exchange.device + " " + response.length + " bytes");
+        notifyDevice(exchange.device, CHARACTERISTIC_DATAHOP_UUID, response);
     }
 
     @Override
-    public void onDescriptorWriteRequest(BluetoothDevice device,
+    public void onDescriptorWriteRequest(String device,
                                          int requestId,
-                                         BluetoothGattDescriptor descriptor,
+                                         UUID characteristic,
+                                         UUID descriptor,
                                          boolean preparedWrite,
                                          boolean responseNeeded,
                                          int offset,
                                          byte[] value) {
-        super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value);
         Log.d(TAG,"onDescriptorWriteRequest");
-        if (CLIENT_CONFIGURATION_DESCRIPTOR_UUID.equals(descriptor.getUuid())) {
+        if (!admission.isAdmitted(device)) {
+            admission.reject(device, requestId);
+            return;
+        }
+        if (CLIENT_CONFIGURATION_DESCRIPTOR_UUID.equals(descriptor)) {
             Log.d(TAG,"onDescriptorWriteRequest");
-            mClientConfigurations.put(device.getAddress(), value);
-            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            ClientState client = mClients.get(device);
+            // Written by a client already disconnected, nothing to keep
+            if (client != null) client.configuration = value != null ? value.clone() : null;
+            GattServerLink server = mGattServer;
+            if (server != null) server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
         }
     }
 
     @Override
-    public void onNotificationSent(BluetoothDevice device, int status) {
-        super.onNotificationSent(device, status);
+    public void onNotificationSent(String device, int status) {
+        notifications.onNotificationSent(device, status);
     }
 
-    public void notifyCharacteristic(byte[] value, UUID uuid) {
-        BluetoothGattService service = mGattServer.getService(mServiceUUID.getUuid());
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
-
-        characteristic.setValue(value);
-        boolean confirm = BluetoothUtils.requiresConfirmation(characteristic);
-        for (BluetoothDevice device : mDevices) {
-            if (clientEnabledNotifications(device, characteristic)) {
-                mGattServer.notifyCharacteristicChanged(device, characteristic, confirm);
-            }
+    private void notifyDevice(String device, UUID uuid, byte[] value) {
+        if (mGattServer != null && clientEnabledNotifications(device)) {
+            notifications.send(device, uuid, value);
         }
     }
 
-    private boolean clientEnabledNotifications(BluetoothDevice device, BluetoothGattCharacteristic characteristic) {
-        List<BluetoothGattDescriptor> descriptorList = characteristic.getDescriptors();
-        BluetoothGattDescriptor descriptor = BluetoothUtils.findClientConfigurationDescriptor(descriptorList);
-        if (descriptor == null) {
-            return true;
+    /* Connected clients that did not write the configuration descriptor are notified, as the service
+     * characteristics are created without it. Replies to clients already gone are dropped, their
+     * notification queue was removed on disconnection and would otherwise be created again */
+    private boolean clientEnabledNotifications(String device) {
+        ClientState client = mClients.get(device);
+        if (client == null) {
+            Log.d(TAG, "Reply to disconnected " + device + " dropped");
+            return false;
         }
-        String deviceAddress = device.getAddress();
-        byte[] clientConfiguration = mClientConfigurations.get(deviceAddress);
+        byte[] clientConfiguration = client.configuration;
         if (clientConfiguration == null) {
-            return false;
+            return true;
         }
 
-        byte[] notificationEnabled = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        byte[] notificationEnabled = Constants.ENABLE_NOTIFICATION_VALUE;
         return clientConfiguration.length == notificationEnabled.length
                 && (clientConfiguration[0] & notificationEnabled[0]) == notificationEnabled[0]
                 && (clientConfiguration[1] & notificationEnabled[1]) == notificationEnabled[1];
@@ -0,0 +1,49 @@
+package network.datahop.blediscovery;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * GATT server hosted by the local device, created by {@link BleTransport#openServer}.
+ * Clients are identified by their address.
+ */
+public interface GattServerLink {
+
+    /**
+     * Interface used to report the requests of the clients
+     */
+    interface Callback {
+        void onConnectionStateChange(String device, int status, int newState);
+        void onCharacteristicReadRequest(String device, int requestId, int offset, UUID characteristic, int properties);
+        void onCharacteristicWriteRequest(String device, int requestId, UUID characteristic, boolean preparedWrite,
+                                          boolean responseNeeded, int offset, byte[] value);
+        void onDescriptorWriteRequest(String device, int requestId, UUID characteristic, UUID descriptor,
+                                      boolean preparedWrite, boolean responseNeeded, int offset, byte[] value);
+        void onNotificationSent(String device, int status);
+    }
+
+    /**
+     * Adds a primary service
+     * @param serviceUuid service id
+     * @param characteristics BluetoothGattCharacteristic PROPERTY flags keyed by characteristic UUID,
+     *                        characteristics are writable
+     * @return false if the service cannot be added
+     */
+    boolean addService(UUID serviceUuid, Map<UUID, Integer> characteristics);
+
+    /**
+     * Removes a service added by {@link #addService}. Connected clients stay connected and are
+     * told to discover the services again.
+     * @param serviceUuid service id
+     * @return false if the service is not hosted
+     */
+    boolean removeService(UUID serviceUuid);
+
+    boolean sendResponse(String device, int requestId, int status, int offset, byte[] value);
+
+    boolean notifyCharacteristicChanged(String device, UUID characteristic, byte[] value, boolean confirm);
+
+    void cancelConnection(String device);
+
+    void close();
+}
@@ -0,0 +1,95 @@
+package network.datahop.blediscovery;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the keys derived by {@link Encryption}. Key derivation runs PBKDF2 and dominates
+ * the cost of encrypting or decrypting a message, while senders reusing a salt for a whole session
+ * produce the same password and salt pair for every message.
+ * Entries are evicted in least recently used order and the key bytes are wiped when evicted.
+ */
+public class KeyCache {
+
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private static class CacheKey {
+        final String password;
+        final byte[] salt;
+        final int hash;
+
+        CacheKey(String password, byte[] salt) {
+            this.password = password;
+            this.salt = salt;
+            this.hash = 31 * password.hashCode() + Arrays.hashCode(salt);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) return false;
+            CacheKey other = (CacheKey) o;
+            return password.equals(other.password) && Arrays.equals(salt, other.salt);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final LinkedHashMap<CacheKey, byte[]> keys;
+
+    /**
+     * KeyCache class constructor
+     * @param capacity maximum number of keys remembered
+     */
+    public KeyCache(final int capacity) {
+        this.keys = new LinkedHashMap<CacheKey, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, byte[]> eldest) {
+                if (size() > capacity) {
+                    Arrays.fill(eldest.getValue(), (byte) 0);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param password passphrase
+     * @param salt salt used for the derivation
+     * @return copy of the cached key bytes, or null if not cached
+     */
+    public synchronized byte[] get(String password, byte[] salt) {
+        byte[] key = keys.get(new CacheKey(password, salt));
+        return key != null ? key.clone() : null;
+    }
+
+    /**
+     * @param password passphrase
+     * @param salt salt used for the derivation
+     * @param key derived key bytes, copied into the cache
+     */
+    public synchronized void put(String password, byte[] salt, byte[] key) {
+        byte[] previous = keys.put(new CacheKey(password, salt.clone()), key.clone());
+        if (previous != null) {
+            Arrays.fill(previous, (byte) 0);
+        }
+    }
+
+    /**
+     * Removes every entry, wiping the key bytes
+     */
+    public synchronized void clear() {
+        for (byte[] key : keys.values()) {
+            Arrays.fill(key, (byte) 0);
+        }
+        keys.clear();
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+}
@@ -0,0 +1,248 @@
+package network.datahop.blediscovery;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Outbound notifications of the GATT server, queued per device. The Bluetooth stack only accepts a new
+ * notification for a device once the previous one is reported by onNotificationSent, and refuses or
+ * silently drops the ones sent in between, so each device has a single notification in flight.
+ * Notifications refused by the stack are retried until their deadline, notifications reported as failed
+ * are resent a bounded number of times, and the ones that cannot be delivered in time are dropped
+ * and counted.
+ */
+public class NotificationQueue {
+
+    private static final String TAG = "NotificationQueue";
+
+    public static final int DEFAULT_CAPACITY = 16;
+    public static final long DEFAULT_DEADLINE = 5000;
+    /* Delay in ms before sending again a notification refused by the stack */
+    public static final long RETRY_DELAY = 20;
+    /* Times a notification is sent when onNotificationSent reports a failure */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static final class Notification {
+        final UUID characteristic;
+        final byte[] value;
+        final long deadline;
+        int attempts;
+
+        Notification(UUID characteristic, byte[] value, long deadline) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.deadline = deadline;
+        }
+    }
+
+    private final class DeviceQueue {
+        final String device;
+        final ArrayDeque<Notification> pending = new ArrayDeque<>();
+        boolean inFlight;
+        boolean retryScheduled;
+        int sent;
+        int dropped;
+
+        /* Notification refused by the stack */
+        final Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (NotificationQueue.this) {
+                    retryScheduled = false;
+                    pump(DeviceQueue.this);
+                }
+            }
+        };
+
+        /* onNotificationSent not received before the deadline */
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (NotificationQueue.this) {
+                    if (!inFlight) return;
+                    inFlight = false;
+                    drop(DeviceQueue.this);
+                    pump(DeviceQueue.this);
+                }
+            }
+        };
+
+        DeviceQueue(String device) {
+            this.device = device;
+        }
+    }
+
+    private final BleTransport transport;
+    private final int capacity;
+    private final long deadline;
+    private final Map<String, DeviceQueue> queues;
+    private GattServerLink server;
+    /* Drops of the devices already removed */
+    private int removedDrops;
+
+    /**
+     * NotificationQueue class constructor
+     * @param transport transport providing the clock and scheduling the retries
+     * @param capacity maximum number of notifications queued per device
+     * @param deadline time in ms given to each notification to be delivered
+     */
+    public NotificationQueue(BleTransport transport, int capacity, long deadline) {
+        this.transport = transport;
+        this.capacity = capacity;
+        this.deadline = deadline;
+        this.queues = new HashMap<>();
+    }
+
+    public synchronized void setServer(GattServerLink server) {
+        this.server = server;
+    }
+
+    /**
+     * Queues a notification for a device, sent once the previous ones are delivered
+     * @param device device address
+     * @param characteristic characteristic notified
+     * @param value value notified
+     * @return false if the queue of the device is full and the notification is dropped
+     */
+    public synchronized boolean send(String device, UUID characteristic, byte[] value) {
+        DeviceQueue queue = queues.get(device);
+        if (queue == null) {
+            queue = new DeviceQueue(device);
+            queues.put(device, queue);
+        }
+        if (queue.pending.size() >= capacity) {
+            queue.dropped++;
+            Log.d(TAG, "Queue full for " + device + ", notification dropped");
+            return false;
+        }
+        queue.pending.add(new Notification(characteristic, value, transport.getClock().now() + deadline));
+        pump(queue);
+        return true;
+    }
+
+    /**
+     * Completes the notification in flight for a device and sends the next one
+     * @param device device address
+     * @param status status reported by the stack
+     */
+    public synchronized void onNotificationSent(String device, int status) {
+        DeviceQueue queue = queues.get(device);
+        if (queue == null || !queue.inFlight) return;
+        queue.inFlight = false;
+        transport.removeCallbacks(queue.timeout);
+        Notification head = queue.pending.peek();
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            queue.pending.poll();
+            queue.sent++;
+        } else if (head != null && head.attempts >= MAX_ATTEMPTS) {
+            Log.d(TAG, "Notification to " + device + " failed with status " + status);
+            drop(queue);
+        }
+        pump(queue);
+    }
+
+    /**
+     * Drops the notifications of a disconnected device
+     * @param device device address
+     */
+    public synchronized void remove(String device) {
+        DeviceQueue queue = queues.remove(device);
+        if (queue == null) return;
+        cancel(queue);
+        removedDrops += queue.dropped + queue.pending.size();
+    }
+
+    /**
+     * Drops every queued notification
+     */
+    public synchronized void clear() {
+        for (DeviceQueue queue : queues.values()) {
+            cancel(queue);
+            removedDrops += queue.dropped + queue.pending.size();
+        }
+        queues.clear();
+    }
+
+    /**
+     * @return number of devices with a notification queue
+     */
+    public synchronized int getDevices() {
+        return queues.size();
+    }
+
+    /**
+     * @return notifications queued for the device, including the one in flight
+     */
+    public synchronized int getDepth(String device) {
+        DeviceQueue queue = queues.get(device);
+        return queue != null ? queue.pending.size() : 0;
+    }
+
+    /**
+     * @return notifications delivered to the device
+     */
+    public synchronized int getSent(String device) {
+        DeviceQueue queue = queues.get(device);
+        return queue != null ? queue.sent : 0;
+    }
+
+    /**
+     * @return notifications dropped for the device
+     */
+    public synchronized int getDropped(String device) {
+        DeviceQueue queue = queues.get(device);
+        return queue != null ? queue.dropped : 0;
+    }
+
+    /**
+     * @return notifications dropped for all the devices, including the ones no longer connected
+     */
+    public synchronized int getDropped() {
+        int dropped = removedDrops;
+        for (DeviceQueue queue : queues.values()) {
+            dropped += queue.dropped;
+        }
+        return dropped;
+    }
+
+    private void pump(DeviceQueue queue) {
+        while (!queue.inFlight && !queue.retryScheduled) {
+            Notification next = queue.pending.peek();
+            if (next == null) return;
+            long now = transport.getClock().now();
+            if (now >= next.deadline) {
+                Log.d(TAG, "Notification to " + queue.device + " expired");
+                drop(queue);
+                continue;
+            }
+            GattServerLink current = server;
+            if (current == null) return;
+            if (current.notifyCharacteristicChanged(queue.device, next.characteristic, next.value, false)) {
+                next.attempts++;
+                queue.inFlight = true;
+                transport.postDelayed(queue.timeout, next.deadline - now);
+                return;
+            }
+            // The stack is busy with a notification sent outside the queue
+            queue.retryScheduled = true;
+            transport.postDelayed(queue.retry, Math.min(RETRY_DELAY, next.deadline - now));
+        }
+    }
+
+    private void drop(DeviceQueue queue) {
+        queue.pending.poll();
+        queue.dropped++;
+    }
+
+    private void cancel(DeviceQueue queue) {
+        transport.removeCallbacks(queue.retry);
+        transport.removeCallbacks(queue.timeout);
+        queue.inFlight = false;
+        queue.retryScheduled = false;
+    }
+}
@@ -0,0 +1,115 @@
+package network.datahop.blediscovery;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the peers already reconciled by BLEServiceDiscovery. For each peer it records
+ * the status digest of both sides at the time of the exchange and its outcome, so peers known to be
+ * in sync are not contacted again until one of the two sides changes or the entry expires.
+ * Entries are evicted in least recently used order when the cache is full and after the time to live.
+ */
+public class PeerCache {
+
+    public static final int OUTCOME_FAILED = 0;
+    public static final int OUTCOME_SAME_STATUS = 1;
+    public static final int OUTCOME_DIFFERENT_STATUS = 2;
+    /* The peer turned the connection away with Constants.GATT_STATUS_BUSY */
+    public static final int OUTCOME_BUSY = 3;
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final long DEFAULT_TTL = 10 * 60 * 1000;
+    /* Time in ms during which a busy peer is not contacted again */
+    public static final long BUSY_BACKOFF = 5000;
+
+    private static class Entry {
+        final byte[] localDigest;
+        final byte[] remoteDigest;
+        final int outcome;
+        final long timestamp;
+
+        Entry(byte[] localDigest, byte[] remoteDigest, int outcome, long timestamp) {
+            this.localDigest = localDigest;
+            this.remoteDigest = remoteDigest;
+            this.outcome = outcome;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final Clock clock;
+    private final long ttl;
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * PeerCache class constructor
+     * @param clock time source
+     * @param capacity maximum number of peers remembered
+     * @param ttl time in ms after which a peer is contacted again even if nothing changed
+     */
+    public PeerCache(Clock clock, final int capacity, long ttl) {
+        this.clock = clock;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Records the outcome of an exchange with a peer
+     * @param address peer address
+     * @param localDigest local status digest sent during the exchange
+     * @param remoteDigest digest advertised by the peer, null when not advertised
+     * @param outcome one of the OUTCOME constants
+     */
+    public synchronized void record(String address, byte[] localDigest, byte[] remoteDigest, int outcome) {
+        entries.put(address, new Entry(localDigest, remoteDigest, outcome, clock.now()));
+    }
+
+    /**
+     * Checks whether a peer was found with the same status in a previous exchange and neither side
+     * changed since then.
+     * @param address peer address
+     * @param localDigest current local status digest
+     * @param remoteDigest digest currently advertised by the peer, null when not advertised
+     * @return true if there is no need to contact the peer
+     */
+    public synchronized boolean isInSync(String address, byte[] localDigest, byte[] remoteDigest) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            return false;
+        }
+        if (clock.now() - entry.timestamp >= ttl) {
+            entries.remove(address);
+            return false;
+        }
+        return entry.outcome == OUTCOME_SAME_STATUS
+                && Arrays.equals(entry.localDigest, localDigest)
+                && Arrays.equals(entry.remoteDigest, remoteDigest);
+    }
+
+    /**
+     * Checks whether a peer turned the last connection away as busy, recently enough to let it serve
+     * its current clients before trying again.
+     * @param address peer address
+     * @return true if the peer should not be contacted yet
+     */
+    public synchronized boolean isBackingOff(String address) {
+        Entry entry = entries.get(address);
+        return entry != null && entry.outcome == OUTCOME_BUSY && clock.now() - entry.timestamp < BUSY_BACKOFF;
+    }
+
+    /**
+     * Removes every entry
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,460 @@
+package network.datahop.blediscovery;
+
+import java.util.Arrays;
+
+/**
+ * Peers found by BLEServiceDiscovery, keyed by their 48-bit Bluetooth address packed into a long.
+ * The table uses open addressing with linear probing over primitive arrays, so looking up and updating
+ * a peer on every scan result allocates nothing. Each peer keeps its last and smoothed RSSI, the first and
+ * last time it was seen, the scan cycles in which it was seen, its connection state, whether it is pending,
+ * meaning found in the current scan with a status that may differ from ours, and the history of the
+ * connections to it used by the {@link ConnectionScheduler}.
+ * Peers failing {@link #BREAKER_THRESHOLD} connections in a row trip a circuit breaker: they are blocked for
+ * {@link #BREAKER_BACKOFF}, doubled on every further failure up to {@link #MAX_BREAKER_BACKOFF}, and a single
+ * successful exchange closes the breaker again.
+ * Peers are addressed by slot index, valid until the next insertion or removal.
+ */
+public class PeerTable {
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    public static final int BREAKER_THRESHOLD = 3;
+    public static final long BREAKER_BACKOFF = 5 * 1000;
+    public static final long MAX_BREAKER_BACKOFF = 5 * 60 * 1000;
+
+    /* Weight of a new sample in the smoothed RSSI, as a shift: 1/4 */
+    private static final int RSSI_SMOOTHING_SHIFT = 2;
+    /* The connection history is halved past this number of attempts, so old failures fade */
+    private static final int MAX_ATTEMPTS_HISTORY = 16;
+
+    /* Set in every stored key, so zero marks an empty slot */
+    private static final long USED = 1L << 48;
+
+    private long[] keys;
+    private String[] addresses;
+    private byte[][] serviceData;
+    private int[] rssis;
+    /* Exponentially weighted moving average of the RSSI, in 1/16 dBm */
+    private int[] smoothedRssis;
+    private long[] firstSeen;
+    private long[] lastSeen;
+    private int[] cycles;
+    private int[] previousCycles;
+    private byte[] states;
+    private boolean[] pending;
+    private int[] attempts;
+    private int[] failures;
+    private long[] lastAttempts;
+    private long[] lastReconciled;
+    /* Topics in common found by the last exchange, -1 when unknown */
+    private int[] commonTopics;
+    private int[] consecutiveFailures;
+    /* End of the backoff of a tripped breaker, zero when closed */
+    private long[] blockedUntil;
+    private int mask;
+    private int size;
+
+    /**
+     * PeerTable class constructor
+     * @param capacity expected number of peers, the table grows beyond it
+     */
+    public PeerTable(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1) << 1;
+        allocate(slots);
+    }
+
+    private void allocate(int slots) {
+        keys = new long[slots];
+        addresses = new String[slots];
+        serviceData = new byte[slots][];
+        rssis = new int[slots];
+        smoothedRssis = new int[slots];
+        firstSeen = new long[slots];
+        lastSeen = new long[slots];
+        cycles = new int[slots];
+        previousCycles = new int[slots];
+        states = new byte[slots];
+        pending = new boolean[slots];
+        attempts = new int[slots];
+        failures = new int[slots];
+        lastAttempts = new long[slots];
+        lastReconciled = new long[slots];
+        commonTopics = new int[slots];
+        consecutiveFailures = new int[slots];
+        blockedUntil = new long[slots];
+        mask = slots - 1;
+    }
+
+    /**
+     * Packs a Bluetooth address of the form XX:XX:XX:XX:XX:XX into a long without allocating
+     * @return the packed address, or -1 if the address is malformed
+     */
+    public static long pack(String address) {
+        if (address == null || address.length() != 17) return -1;
+        long packed = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return -1;
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) return -1;
+            packed = packed << 4 | digit;
+        }
+        return packed;
+    }
+
+    /**
+     * Records a scan result, adding the peer when first seen
+     * @param address packed address
+     * @param name address as reported by the transport, kept to connect to the peer
+     * @param rssi received signal strength in dBm
+     * @param data service data advertised, or null
+     * @param now current time in ms
+     * @param cycle number of the current scan cycle
+     * @return slot of the peer
+     */
+    public int update(long address, String name, int rssi, byte[] data, long now, int cycle) {
+        int slot = find(address);
+        if (slot < 0) {
+            if ((size + 1) * 2 > keys.length) resize(keys.length * 2);
+            slot = probe(address);
+            keys[slot] = address | USED;
+            addresses[slot] = name;
+            firstSeen[slot] = now;
+            // Never seen before, so not seen in the previous cycle either
+            previousCycles[slot] = cycle - 2;
+            cycles[slot] = cycle - 2;
+            smoothedRssis[slot] = rssi << 4;
+            attempts[slot] = 0;
+            failures[slot] = 0;
+            lastAttempts[slot] = -1;
+            lastReconciled[slot] = -1;
+            commonTopics[slot] = -1;
+            consecutiveFailures[slot] = 0;
+            blockedUntil[slot] = 0;
+            size++;
+        }
+        rssis[slot] = rssi;
+        smoothedRssis[slot] += ((rssi << 4) - smoothedRssis[slot]) >> RSSI_SMOOTHING_SHIFT;
+        serviceData[slot] = data;
+        lastSeen[slot] = now;
+        if (cycles[slot] != cycle) {
+            previousCycles[slot] = cycles[slot];
+            cycles[slot] = cycle;
+        }
+        return slot;
+    }
+
+    /**
+     * @return slot of the peer, or -1 if unknown
+     */
+    public int find(long address) {
+        int slot = probe(address);
+        return keys[slot] != 0 ? slot : -1;
+    }
+
+    /* Slot holding the address, or the empty slot ending its probe sequence */
+    private int probe(long address) {
+        long key = address | USED;
+        int slot = hash(address) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long address) {
+        long h = address * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32);
+    }
+
+    /**
+     * Removes a peer, shifting back the following peers of its probe sequence
+     * @return false if the peer is unknown
+     */
+    public boolean remove(long address) {
+        int slot = find(address);
+        if (slot < 0) return false;
+        removeSlot(slot);
+        return true;
+    }
+
+    private void removeSlot(int slot) {
+        size--;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != 0) {
+            int home = hash(keys[next] & ~USED) & mask;
+            // Move the peer into the hole unless its home slot lies after the hole
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        clear(hole);
+    }
+
+    private void move(int from, int to) {
+        keys[to] = keys[from];
+        addresses[to] = addresses[from];
+        serviceData[to] = serviceData[from];
+        rssis[to] = rssis[from];
+        smoothedRssis[to] = smoothedRssis[from];
+        firstSeen[to] = firstSeen[from];
+        lastSeen[to] = lastSeen[from];
+        cycles[to] = cycles[from];
+        previousCycles[to] = previousCycles[from];
+        states[to] = states[from];
+        pending[to] = pending[from];
+        attempts[to] = attempts[from];
+        failures[to] = failures[from];
+        lastAttempts[to] = lastAttempts[from];
+        lastReconciled[to] = lastReconciled[from];
+        commonTopics[to] = commonTopics[from];
+        consecutiveFailures[to] = consecutiveFailures[from];
+        blockedUntil[to] = blockedUntil[from];
+    }
+
+    private void clear(int slot) {
+        keys[slot] = 0;
+        addresses[slot] = null;
+        serviceData[slot] = null;
+        states[slot] = STATE_IDLE;
+        pending[slot] = false;
+    }
+
+    private void resize(int slots) {
+        long[] oldKeys = keys;
+        String[] oldAddresses = addresses;
+        byte[][] oldServiceData = serviceData;
+        int[] oldRssis = rssis;
+        int[] oldSmoothedRssis = smoothedRssis;
+        long[] oldFirstSeen = firstSeen;
+        long[] oldLastSeen = lastSeen;
+        int[] oldCycles = cycles;
+        int[] oldPreviousCycles = previousCycles;
+        byte[] oldStates = states;
+        boolean[] oldPending = pending;
+        int[] oldAttempts = attempts;
+        int[] oldFailures = failures;
+        long[] oldLastAttempts = lastAttempts;
+        long[] oldLastReconciled = lastReconciled;
+        int[] oldCommonTopics = commonTopics;
+        int[] oldConsecutiveFailures = consecutiveFailures;
+        long[] oldBlockedUntil = blockedUntil;
+        allocate(slots);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) continue;
+            int slot = probe(oldKeys[i] & ~USED);
+            keys[slot] = oldKeys[i];
+            addresses[slot] = oldAddresses[i];
+            serviceData[slot] = oldServiceData[i];
+            rssis[slot] = oldRssis[i];
+            smoothedRssis[slot] = oldSmoothedRssis[i];
+            firstSeen[slot] = oldFirstSeen[i];
+            lastSeen[slot] = oldLastSeen[i];
+            cycles[slot] = oldCycles[i];
+            previousCycles[slot] = oldPreviousCycles[i];
+            states[slot] = oldStates[i];
+            pending[slot] = oldPending[i];
+            attempts[slot] = oldAttempts[i];
+            failures[slot] = oldFailures[i];
+            lastAttempts[slot] = oldLastAttempts[i];
+            lastReconciled[slot] = oldLastReconciled[i];
+            commonTopics[slot] = oldCommonTopics[i];
+            consecutiveFailures[slot] = oldConsecutiveFailures[i];
+            blockedUntil[slot] = oldBlockedUntil[i];
+        }
+    }
+
+    /**
+     * Removes the idle peers not seen since the given time
+     * @return number of peers removed
+     */
+    public int prune(long seenBefore) {
+        int removed = 0;
+        int slot = 0;
+        while (slot < keys.length) {
+            if (keys[slot] != 0 && lastSeen[slot] < seenBefore && states[slot] == STATE_IDLE) {
+                // The slot may now hold a shifted peer, check it again
+                removeSlot(slot);
+                removed++;
+            } else {
+                slot++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Clears the pending flag of every peer
+     */
+    public void clearPending() {
+        Arrays.fill(pending, false);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of slots, to iterate over the peers with {@link #isUsed(int)}
+     */
+    public int slots() {
+        return keys.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return keys[slot] != 0;
+    }
+
+    public long getAddress(int slot) {
+        return keys[slot] & ~USED;
+    }
+
+    /**
+     * @return address as reported by the transport
+     */
+    public String getName(int slot) {
+        return addresses[slot];
+    }
+
+    public byte[] getServiceData(int slot) {
+        return serviceData[slot];
+    }
+
+    public int getRssi(int slot) {
+        return rssis[slot];
+    }
+
+    /**
+     * @return RSSI smoothed over the scan results, in dBm
+     */
+    public double getSmoothedRssi(int slot) {
+        return smoothedRssis[slot] / 16.0;
+    }
+
+    public long getFirstSeen(int slot) {
+        return firstSeen[slot];
+    }
+
+    public long getLastSeen(int slot) {
+        return lastSeen[slot];
+    }
+
+    /**
+     * @return true if the peer was seen in the scan cycle
+     */
+    public boolean seenIn(int slot, int cycle) {
+        return cycles[slot] == cycle;
+    }
+
+    /**
+     * @return true if the peer was seen in the scan cycle but not in the previous one
+     */
+    public boolean isNewIn(int slot, int cycle) {
+        return cycles[slot] == cycle && previousCycles[slot] != cycle - 1;
+    }
+
+    /**
+     * @return one of the STATE constants
+     */
+    public int getState(int slot) {
+        return states[slot];
+    }
+
+    public void setState(int slot, int state) {
+        states[slot] = (byte) state;
+    }
+
+    public boolean isPending(int slot) {
+        return pending[slot];
+    }
+
+    public void setPending(int slot, boolean value) {
+        pending[slot] = value;
+    }
+
+    /**
+     * Records a connection attempt to the peer
+     */
+    public void recordAttempt(int slot, long now) {
+        if (attempts[slot] >= MAX_ATTEMPTS_HISTORY) {
+            attempts[slot] >>= 1;
+            failures[slot] >>= 1;
+        }
+        attempts[slot]++;
+        lastAttempts[slot] = now;
+    }
+
+    /**
+     * Records the end of the session opened by the last attempt
+     * @param outcome one of the {@link PeerCache} OUTCOME constants
+     * @param common topics in common found by the exchange, -1 when unknown
+     * @return true if the failure tripped the circuit breaker of the peer
+     */
+    public boolean recordOutcome(int slot, int outcome, int common, long now) {
+        if (common >= 0) commonTopics[slot] = common;
+        if (outcome == PeerCache.OUTCOME_BUSY) return false;
+        if (outcome != PeerCache.OUTCOME_FAILED) {
+            lastReconciled[slot] = now;
+            consecutiveFailures[slot] = 0;
+            blockedUntil[slot] = 0;
+            return false;
+        }
+        failures[slot]++;
+        int consecutive = ++consecutiveFailures[slot];
+        if (consecutive < BREAKER_THRESHOLD) return false;
+        // Probed once the backoff is over, every failed probe doubles it
+        long backoff = BREAKER_BACKOFF << Math.min(consecutive - BREAKER_THRESHOLD, 16);
+        blockedUntil[slot] = now + Math.min(backoff, MAX_BREAKER_BACKOFF);
+        return true;
+    }
+
+    /**
+     * @return true if the circuit breaker of the peer is open at the given time
+     */
+    public boolean isBlocked(int slot, long now) {
+        return now < blockedUntil[slot];
+    }
+
+    public int getConsecutiveFailures(int slot) {
+        return consecutiveFailures[slot];
+    }
+
+    public int getAttempts(int slot) {
+        return attempts[slot];
+    }
+
+    public int getFailures(int slot) {
+        return failures[slot];
+    }
+
+    /**
+     * @return time of the last connection attempt, -1 if never attempted
+     */
+    public long getLastAttempt(int slot) {
+        return lastAttempts[slot];
+    }
+
+    /**
+     * @return time of the last exchange completed with the peer, -1 if never reconciled
+     */
+    public long getLastReconciled(int slot) {
+        return lastReconciled[slot];
+    }
+
+    /**
+     * @return topics in common found by the last exchange, -1 when unknown
+     */
+    public int getCommonTopics(int slot) {
+        return commonTopics[slot];
+    }
+}
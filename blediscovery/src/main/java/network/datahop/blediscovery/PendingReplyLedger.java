@@ -0,0 +1,199 @@
+package network.datahop.blediscovery;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Replies expected from the application for the requests received by the GATT server, one per device
+ * and topic. The application answers the status events in the order they were reported, without saying
+ * which request it answers, so replies are matched in arrival order and each one is routed only to
+ * the device that sent the request.
+ * A request repeated while its reply is pending is answered by that reply instead of expecting a new one,
+ * and the superseded request is handed back to the caller rather than reported as dropped.
+ * Replies are dropped when the application does not answer them within the time to live, or when the
+ * ledger is full, so memory stays bounded whatever the uptime.
+ */
+public class PendingReplyLedger {
+
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_TTL = 30 * 1000;
+
+    /**
+     * Interface used to report the replies that will not be answered
+     */
+    public interface Listener {
+        /**
+         * @param reply reply expired or evicted
+         */
+        void onDropped(Reply reply);
+    }
+
+    /**
+     * Reply expected for the request of a device on a topic
+     */
+    public static final class Reply {
+        private final String device;
+        private final UUID topic;
+        private final Object tag;
+        private final long deadline;
+
+        private Reply(String device, UUID topic, Object tag, long deadline) {
+            this.device = device;
+            this.topic = topic;
+            this.tag = tag;
+            this.deadline = deadline;
+        }
+
+        public String getDevice() {
+            return device;
+        }
+
+        public UUID getTopic() {
+            return topic;
+        }
+
+        /**
+         * @return object attached by the caller to the request
+         */
+        public Object getTag() {
+            return tag;
+        }
+    }
+
+    private static final class Key {
+        final String device;
+        final UUID topic;
+
+        Key(String device, UUID topic) {
+            this.device = device;
+            this.topic = topic;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return device.equals(other.device) && topic.equals(other.topic);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * device.hashCode() + topic.hashCode();
+        }
+    }
+
+    private final Clock clock;
+    private final int capacity;
+    private final long ttl;
+    private final Listener listener;
+    /* Insertion ordered, so deadlines are increasing from the eldest entry */
+    private final LinkedHashMap<Key, Reply> replies;
+
+    /**
+     * PendingReplyLedger class constructor
+     * @param clock time source
+     * @param capacity maximum number of pending replies
+     * @param ttl time in ms after which a reply is no longer expected
+     * @param listener listener receiving the dropped replies
+     */
+    public PendingReplyLedger(Clock clock, int capacity, long ttl, Listener listener) {
+        this.clock = clock;
+        this.capacity = capacity;
+        this.ttl = ttl;
+        this.listener = listener;
+        this.replies = new LinkedHashMap<>();
+    }
+
+    /**
+     * Registers the reply expected for a request. When a reply is already pending for the device
+     * and topic it keeps its place but now answers the new request, and is returned with the tag of
+     * the previous request, which is not reported to the listener.
+     * @param device address of the device sending the request
+     * @param topic topic characteristic
+     * @param tag object attached to the request, returned with the reply
+     * @return reply superseded by the request, or null if a new reply is expected
+     */
+    public Reply add(String device, UUID topic, Object tag) {
+        List<Reply> dropped = new ArrayList<>(0);
+        Reply previous;
+        synchronized (this) {
+            long now = clock.now();
+            expire(now, dropped);
+            Key key = new Key(device, topic);
+            previous = replies.get(key);
+            // Repeated requests keep the deadline of the pending reply, so deadlines stay ordered
+            replies.put(key, new Reply(device, topic, tag, previous != null ? previous.deadline : now + ttl));
+            if (previous == null && replies.size() > capacity) {
+                Iterator<Reply> eldest = replies.values().iterator();
+                dropped.add(eldest.next());
+                eldest.remove();
+            }
+        }
+        notifyDropped(dropped);
+        return previous;
+    }
+
+    /**
+     * @return oldest pending reply, or null if none is expected
+     */
+    public Reply peek() {
+        List<Reply> dropped = new ArrayList<>(0);
+        Reply reply;
+        synchronized (this) {
+            expire(clock.now(), dropped);
+            Iterator<Reply> it = replies.values().iterator();
+            reply = it.hasNext() ? it.next() : null;
+        }
+        notifyDropped(dropped);
+        return reply;
+    }
+
+    /**
+     * Removes the oldest pending reply, which the application is answering
+     * @return the reply, or null if none is expected
+     */
+    public Reply poll() {
+        List<Reply> dropped = new ArrayList<>(0);
+        Reply reply = null;
+        synchronized (this) {
+            expire(clock.now(), dropped);
+            Iterator<Reply> it = replies.values().iterator();
+            if (it.hasNext()) {
+                reply = it.next();
+                it.remove();
+            }
+        }
+        notifyDropped(dropped);
+        return reply;
+    }
+
+    public synchronized int size() {
+        return replies.size();
+    }
+
+    /**
+     * Forgets every pending reply without reporting them
+     */
+    public synchronized void clear() {
+        replies.clear();
+    }
+
+    private void expire(long now, List<Reply> dropped) {
+        Iterator<Reply> it = replies.values().iterator();
+        while (it.hasNext()) {
+            Reply reply = it.next();
+            if (reply.deadline > now) break;
+            dropped.add(reply);
+            it.remove();
+        }
+    }
+
+    private void notifyDropped(List<Reply> dropped) {
+        for (Reply reply : dropped) {
+            listener.onDropped(reply);
+        }
+    }
+}
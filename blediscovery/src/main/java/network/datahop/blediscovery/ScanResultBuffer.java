@@ -0,0 +1,206 @@
+package network.datahop.blediscovery;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring buffer between the threads delivering scan results and the event loop consuming them.
+ * Producers claim a slot with a single compare-and-set and write the raw result into preallocated arrays,
+ * so offering a result takes no lock and allocates nothing. Results arriving while the buffer is full are
+ * dropped and counted in {@link #getOverflows()}.
+ * The single consumer drains the buffer in batches: results of the same device in a batch are merged,
+ * keeping the strongest RSSI and the latest service data, and the devices are delivered by decreasing RSSI.
+ */
+public class ScanResultBuffer {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Interface receiving the results of a batch
+     */
+    public interface Consumer {
+        void onScanResult(String address, int rssi, byte[] serviceData);
+    }
+
+    private final int capacity;
+    private final int mask;
+    /* Sequence of each slot: equal to the position when free, position + 1 once written */
+    private final AtomicLongArray sequences;
+    private final String[] addresses;
+    private final int[] rssis;
+    private final byte[][] serviceData;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    /* Consumer state, only accessed from the consumer thread */
+    private long head;
+    private final String[] batchAddresses;
+    private final int[] batchRssis;
+    private final byte[][] batchServiceData;
+    private final int[] order;
+    private final int[] batchSlots;
+    /* Open addressing table of batch index + 1 by address hash, zero when empty */
+    private final int[] batchTable;
+    private long duplicates;
+    private long dropped;
+
+    /**
+     * ScanResultBuffer class constructor
+     * @param capacity number of results buffered, rounded up to a power of two
+     */
+    public ScanResultBuffer(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.addresses = new String[size];
+        this.rssis = new int[size];
+        this.serviceData = new byte[size][];
+        this.batchAddresses = new String[size];
+        this.batchRssis = new int[size];
+        this.batchServiceData = new byte[size][];
+        this.order = new int[size];
+        this.batchSlots = new int[size];
+        this.batchTable = new int[size * 2];
+    }
+
+    /**
+     * Adds a result, from any thread
+     * @return false if the buffer is full and the result is dropped
+     */
+    public boolean offer(String address, int rssi, byte[] data) {
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+                position = tail.get();
+            } else if (difference < 0) {
+                overflows.incrementAndGet();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+        addresses[index] = address;
+        rssis[index] = rssi;
+        serviceData[index] = data;
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Delivers the results buffered so far as a single batch of at most the capacity of the buffer,
+     * from the consumer thread only
+     * @param consumer consumer of the batch, or null to discard the results
+     * @return number of devices delivered
+     */
+    public int drain(Consumer consumer) {
+        int size = 0;
+        for (int polled = 0; polled < capacity; polled++) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) break;
+            String address = addresses[index];
+            int rssi = rssis[index];
+            byte[] data = serviceData[index];
+            addresses[index] = null;
+            serviceData[index] = null;
+            sequences.lazySet(index, head + capacity);
+            head++;
+            if (consumer == null || address == null) {
+                dropped++;
+                continue;
+            }
+            size = merge(address, rssi, data, size);
+        }
+        if (size == 0) return 0;
+
+        // Insertion sort by decreasing RSSI, batches are small
+        for (int i = 0; i < size; i++) {
+            int current = order[i] = i;
+            int j = i;
+            while (j > 0 && batchRssis[order[j - 1]] < batchRssis[current]) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = current;
+        }
+        for (int i = 0; i < size; i++) {
+            int entry = order[i];
+            consumer.onScanResult(batchAddresses[entry], batchRssis[entry], batchServiceData[entry]);
+        }
+        for (int i = 0; i < size; i++) {
+            batchTable[batchSlots[i]] = 0;
+            batchAddresses[i] = null;
+            batchServiceData[i] = null;
+        }
+        return size;
+    }
+
+    /* Adds a result to the batch, merging it with a previous result of the same device */
+    private int merge(String address, int rssi, byte[] data, int size) {
+        int slot = slot(address);
+        int entry = batchTable[slot] - 1;
+        if (entry >= 0) {
+            duplicates++;
+            if (rssi > batchRssis[entry]) batchRssis[entry] = rssi;
+            if (data != null) batchServiceData[entry] = data;
+            return size;
+        }
+        batchTable[slot] = size + 1;
+        batchSlots[size] = slot;
+        batchAddresses[size] = address;
+        batchRssis[size] = rssi;
+        batchServiceData[size] = data;
+        return size + 1;
+    }
+
+    /* Slot of the address in the batch table, either holding it or empty */
+    private int slot(String address) {
+        int tableMask = batchTable.length - 1;
+        int slot = (address.hashCode() * 0x9E3779B9) >>> 16 & tableMask;
+        while (batchTable[slot] != 0 && !batchAddresses[batchTable[slot] - 1].equals(address)) {
+            slot = (slot + 1) & tableMask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return true if results are waiting to be drained, from the consumer thread only
+     */
+    public boolean hasPending() {
+        return sequences.get((int) head & mask) == head + 1;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return results dropped because the buffer was full
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    /**
+     * @return results discarded by the consumer, from the consumer thread only
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return results merged with a previous result of the same device, from the consumer thread only
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+}
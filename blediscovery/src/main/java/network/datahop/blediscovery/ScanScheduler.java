@@ -0,0 +1,28 @@
+package network.datahop.blediscovery;
+
+/**
+ * Interface used by BLEServiceDiscovery to decide the duration and scan mode of each scan cycle.
+ * BLEServiceDiscovery asks for the next window at the start of every cycle, reports what it
+ * observed at the end of the scanning phase and asks again to decide the idle time, so the idle
+ * time reacts to that cycle. {@link #nextWindow()} must not have side effects.
+ */
+public interface ScanScheduler {
+
+    /**
+     * @return parameters of the next scan cycle
+     */
+    ScanWindow nextWindow();
+
+    /**
+     * Reports the result of the scanning phase of a cycle
+     * @param peersSeen number of distinct advertisers seen
+     * @param newPeers number of advertisers not seen in the previous cycle
+     * @param pendingPeers number of advertisers with a different status that need a connection
+     */
+    void onCycleCompleted(int peersSeen, int newPeers, int pendingPeers);
+
+    /**
+     * Reports a change in the local "topics"
+     */
+    void onTopicsChanged();
+}
@@ -0,0 +1,41 @@
+package network.datahop.blediscovery;
+
+/**
+ * Parameters of a single scan cycle: how long to scan, the {@code ScanSettings} scan mode
+ * used while scanning and how long to stay idle afterwards.
+ */
+public class ScanWindow {
+
+    private final long scanTime;
+    private final long idleTime;
+    private final int scanMode;
+
+    /**
+     * ScanWindow class constructor
+     * @param scanTime duration of the scanning phase
+     * @param idleTime idle time before starting another scan cycle
+     * @param scanMode {@code ScanSettings} scan mode
+     */
+    public ScanWindow(long scanTime, long idleTime, int scanMode) {
+        this.scanTime = scanTime;
+        this.idleTime = idleTime;
+        this.scanMode = scanMode;
+    }
+
+    public long getScanTime() {
+        return scanTime;
+    }
+
+    public long getIdleTime() {
+        return idleTime;
+    }
+
+    public int getScanMode() {
+        return scanMode;
+    }
+
+    @Override
+    public String toString() {
+        return "ScanWindow{scan=" + scanTime + ", idle=" + idleTime + ", mode=" + scanMode + "}";
+    }
+}
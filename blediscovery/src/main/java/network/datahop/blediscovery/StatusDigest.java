@@ -0,0 +1,61 @@
+package network.datahop.blediscovery;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Compact digest of the "topic" values of a node. The digest is advertised as service data next to
+ * the service UUID so discoverers can skip the GATT connection when both sides have the same status.
+ */
+public class StatusDigest {
+
+    /* Number of bytes of the SHA-256 hash advertised */
+    public static final int DIGEST_LENGTH = 8;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * Computes the digest of the advertised topics. The digest does not depend on the iteration order of the map.
+     * @param advertisingInfo topic values keyed by topic UUID
+     * @return truncated hash of the topic values
+     */
+    public static byte[] compute(Map<UUID, String> advertisingInfo) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        ByteBuffer header = ByteBuffer.allocate(20);
+        for (Map.Entry<UUID, String> entry : new TreeMap<>(advertisingInfo).entrySet()) {
+            byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            header.clear();
+            header.putLong(entry.getKey().getMostSignificantBits());
+            header.putLong(entry.getKey().getLeastSignificantBits());
+            header.putInt(value.length);
+            md.update(header.array());
+            md.update(value);
+        }
+        byte[] digest = new byte[DIGEST_LENGTH];
+        System.arraycopy(md.digest(), 0, digest, 0, DIGEST_LENGTH);
+        return digest;
+    }
+
+    /**
+     * Compares a digest received in a scan record with the local one.
+     * @param local local digest
+     * @param remote digest advertised by the remote device, null when not advertised
+     * @return true only when both digests are present and equal
+     */
+    public static boolean matches(byte[] local, byte[] remote) {
+        if (local == null || remote == null || local.length != remote.length) {
+            return false;
+        }
+        return MessageDigest.isEqual(local, remote);
+    }
+}
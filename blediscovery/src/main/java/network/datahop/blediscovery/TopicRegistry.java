@@ -0,0 +1,246 @@
+package network.datahop.blediscovery;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Values advertised for each "topic". Topic names are interned in a table shared by every registry,
+ * so the characteristic UUID of a topic is computed only once per process.
+ * Every change of a value increases the version of the registry and publishes a new immutable
+ * {@link Snapshot}, which each GATT session keeps for its whole lifetime. Readers compare
+ * versions to know whether the values changed instead of comparing the values themselves.
+ */
+public class TopicRegistry {
+
+    private static final ConcurrentHashMap<String, Topic> TOPICS = new ConcurrentHashMap<>();
+
+    /**
+     * Interned topic name with its characteristic UUID
+     */
+    public static final class Topic {
+        private final String name;
+        private final UUID uuid;
+
+        private Topic(String name) {
+            this.name = name;
+            this.uuid = UUID.nameUUIDFromBytes(name.getBytes());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public UUID getUuid() {
+            return uuid;
+        }
+    }
+
+    /**
+     * Value of a topic and the registry version in which it was last changed
+     */
+    public static final class Entry {
+        private final Topic topic;
+        private final String value;
+        private final byte[] valueBytes;
+        private final long version;
+
+        private Entry(Topic topic, String value, long version) {
+            this.topic = topic;
+            this.value = value;
+            this.valueBytes = WireCodec.utf8(value);
+            this.version = version;
+        }
+
+        public Topic getTopic() {
+            return topic;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * @return UTF-8 value, shared by every reader and never modified
+         */
+        public byte[] getValueBytes() {
+            return valueBytes;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * Immutable view of the values of a registry at a given version
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final Map<UUID, Entry> entries;
+        private final Map<UUID, String> values;
+        private final Map<UUID, byte[]> valueBytes;
+        private final CharacteristicIndex<Entry> index;
+        private final byte[] digest;
+
+        private Snapshot(long version, Map<UUID, Entry> entries) {
+            this.version = version;
+            this.entries = Collections.unmodifiableMap(entries);
+            Map<UUID, String> values = new LinkedHashMap<>();
+            Map<UUID, byte[]> valueBytes = new LinkedHashMap<>();
+            for (Entry entry : entries.values()) {
+                values.put(entry.topic.uuid, entry.value);
+                valueBytes.put(entry.topic.uuid, entry.valueBytes);
+            }
+            this.values = Collections.unmodifiableMap(values);
+            this.valueBytes = Collections.unmodifiableMap(valueBytes);
+            this.index = new CharacteristicIndex<>(entries);
+            this.digest = StatusDigest.compute(values);
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        public boolean contains(UUID uuid) {
+            return index.contains(uuid);
+        }
+
+        /**
+         * @return true if both snapshots have the same topics, whatever their values
+         */
+        public boolean hasSameTopics(Snapshot other) {
+            if (other.size() != size()) return false;
+            for (UUID uuid : other.index.getUuids()) {
+                if (!index.contains(uuid)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return entry of the topic with the characteristic UUID, or null if not registered
+         */
+        public Entry get(UUID uuid) {
+            return index.get(uuid);
+        }
+
+        /**
+         * @return topic name of the characteristic UUID, or null if not registered
+         */
+        public String getName(UUID uuid) {
+            Entry entry = index.get(uuid);
+            return entry != null ? entry.topic.name : null;
+        }
+
+        /**
+         * @return values keyed by characteristic UUID in registration order
+         */
+        public Map<UUID, String> getValues() {
+            return values;
+        }
+
+        /**
+         * @return UTF-8 values keyed by characteristic UUID in registration order
+         */
+        public Map<UUID, byte[]> getValueBytes() {
+            return valueBytes;
+        }
+
+        /**
+         * @return entries indexed by characteristic UUID
+         */
+        public CharacteristicIndex<Entry> getIndex() {
+            return index;
+        }
+
+        /**
+         * @return {@link StatusDigest} of the values, computed once per snapshot
+         */
+        public byte[] getDigest() {
+            return digest;
+        }
+    }
+
+    private final LinkedHashMap<UUID, Entry> entries;
+    private volatile Snapshot snapshot;
+    private boolean staged;
+
+    /**
+     * TopicRegistry class constructor
+     */
+    public TopicRegistry() {
+        this.entries = new LinkedHashMap<>();
+        this.snapshot = new Snapshot(0, new LinkedHashMap<UUID, Entry>());
+    }
+
+    /**
+     * @return interned topic, created on first use
+     */
+    public static Topic topic(String name) {
+        Topic topic = TOPICS.get(name);
+        if (topic == null) {
+            Topic created = new Topic(name);
+            topic = TOPICS.putIfAbsent(name, created);
+            if (topic == null) topic = created;
+        }
+        return topic;
+    }
+
+    /**
+     * Sets the value of a topic and publishes it at once
+     * @param name topic name
+     * @param value value advertised
+     * @return true if the value changed
+     */
+    public synchronized boolean put(String name, String value) {
+        return stage(name, value) && publish();
+    }
+
+    /**
+     * Sets the value of a topic without publishing it, so several changes can be published
+     * atomically in a single snapshot by {@link #publish()}
+     * @param name topic name
+     * @param value value advertised
+     * @return true if the value changed
+     */
+    public synchronized boolean stage(String name, String value) {
+        Topic topic = topic(name);
+        Entry previous = entries.get(topic.uuid);
+        if (previous != null && previous.value.equals(value)) {
+            return false;
+        }
+        entries.put(topic.uuid, new Entry(topic, value, snapshot.version + 1));
+        staged = true;
+        return true;
+    }
+
+    /**
+     * Publishes the staged changes in a new snapshot
+     * @return false if there were no staged changes
+     */
+    public synchronized boolean publish() {
+        if (!staged) {
+            return false;
+        }
+        staged = false;
+        snapshot = new Snapshot(snapshot.version + 1, new LinkedHashMap<>(entries));
+        return true;
+    }
+
+    /**
+     * @return values published by the last change
+     */
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    public long getVersion() {
+        return snapshot.version;
+    }
+}
@@ -0,0 +1,87 @@
+package network.datahop.blediscovery;
+
+/**
+ * Batches the topic changes made by the application into a single publish. The first change of a batch
+ * schedules the publish one window later and the changes arriving until then join the same batch, so
+ * a burst of {@code addAdvertisingInfo} calls results in one new snapshot and one advertising update.
+ * Latency-critical changes can be published at once with {@link #flush()}.
+ * With a window of zero every change is published immediately.
+ */
+public class UpdateCoalescer {
+
+    /* Default batching window in ms */
+    public static final long DEFAULT_WINDOW = 100;
+
+    private final BleTransport transport;
+    private final Runnable publish;
+    private long window;
+    private boolean pending;
+
+    private final Runnable publishTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * UpdateCoalescer class constructor
+     * @param transport transport scheduling the publish
+     * @param window batching window in ms
+     * @param publish task publishing the batched changes
+     */
+    public UpdateCoalescer(BleTransport transport, long window, Runnable publish) {
+        this.transport = transport;
+        this.window = window;
+        this.publish = publish;
+    }
+
+    /**
+     * Sets the batching window, applied from the next batch
+     * @param window batching window in ms, zero to publish every change immediately
+     */
+    public synchronized void setWindow(long window) {
+        if (window < 0) throw new IllegalArgumentException("Negative window " + window);
+        this.window = window;
+    }
+
+    public synchronized long getWindow() {
+        return window;
+    }
+
+    /**
+     * Records a change, published at the end of the current batching window
+     */
+    public void changed() {
+        synchronized (this) {
+            if (pending) return;
+            pending = true;
+            if (window > 0) {
+                transport.postDelayed(publishTask, window);
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Publishes the pending changes now
+     * @return false if there were no pending changes
+     */
+    public boolean flush() {
+        synchronized (this) {
+            if (!pending) return false;
+            pending = false;
+            transport.removeCallbacks(publishTask);
+        }
+        publish.run();
+        return true;
+    }
+
+    /**
+     * @return true if changes are waiting to be published
+     */
+    public synchronized boolean isPending() {
+        return pending;
+    }
+}
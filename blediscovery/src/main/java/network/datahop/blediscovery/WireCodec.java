@@ -0,0 +1,295 @@
+package network.datahop.blediscovery;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Binary codec of the messages exchanged between BLEServiceDiscovery and BLEAdvertising.
+ * Every message starts with a three bytes header followed by length-prefixed fields:
+ * <pre>
+ * header:       magic | version | type
+ * topic:        header | value length | value | peer info length | peer info
+ * network info: header | network length | network | password length | password | peer info length | peer info
+ * </pre>
+ * Lengths are two bytes big endian. The magic byte never appears in UTF-8 text, so decoders also
+ * accept the legacy colon separated text messages ("value:peer" and "network:password:peer").
+ */
+public class WireCodec {
+
+    public static final byte MAGIC = (byte) 0xFE;
+    public static final byte VERSION = 1;
+
+    public static final byte TYPE_TOPIC = 1;
+    public static final byte TYPE_EXCHANGE_REQUEST = 2;
+    public static final byte TYPE_EXCHANGE_RESPONSE = 3;
+    public static final byte TYPE_NETWORK_INFO = 4;
+
+    public static final int HEADER_LENGTH = 3;
+    public static final int MAX_FIELD_LENGTH = 0xFFFF;
+
+    private static final byte SEPARATOR = ':';
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Topic value written by a client on a topic characteristic. The value and the peer info are views
+     * over the received message, so the value can be compared without copying and the peer info is only
+     * decoded when the values differ.
+     */
+    public static class Topic {
+        private final byte[] message;
+        private final int valueOffset;
+        private final int valueLength;
+        private final int peerInfoOffset;
+        private final int peerInfoLength;
+
+        Topic(byte[] message, int valueOffset, int valueLength, int peerInfoOffset, int peerInfoLength) {
+            this.message = message;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+            this.peerInfoOffset = peerInfoOffset;
+            this.peerInfoLength = peerInfoLength;
+        }
+
+        public boolean valueEquals(byte[] value) {
+            return rangeEquals(message, valueOffset, valueLength, value);
+        }
+
+        public byte[] copyValue() {
+            byte[] value = new byte[valueLength];
+            System.arraycopy(message, valueOffset, value, 0, valueLength);
+            return value;
+        }
+
+        /**
+         * @return peer info, decoded on every call
+         */
+        public String getPeerInfo() {
+            return new String(message, peerInfoOffset, peerInfoLength, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Network information replied by a server that has a different status
+     */
+    public static class NetworkInfo {
+        private final String network;
+        private final String password;
+        private final String peerInfo;
+
+        NetworkInfo(String network, String password, String peerInfo) {
+            this.network = network;
+            this.password = password;
+            this.peerInfo = peerInfo;
+        }
+
+        public String getNetwork() {
+            return network;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public String getPeerInfo() {
+            return peerInfo;
+        }
+    }
+
+    /**
+     * @param message received message
+     * @return true if the message starts with the binary header, false for legacy text messages
+     */
+    public static boolean isBinary(byte[] message) {
+        return message != null && message.length >= HEADER_LENGTH && message[0] == MAGIC;
+    }
+
+    public static byte[] utf8(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : EMPTY;
+    }
+
+    public static byte[] encodeTopic(byte[] value, byte[] peerInfo) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + fieldSize(value) + fieldSize(peerInfo));
+        putHeader(buffer, TYPE_TOPIC);
+        putField(buffer, value);
+        putField(buffer, peerInfo);
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a topic value in the legacy "value:peer" format understood by older servers
+     */
+    public static byte[] encodeLegacyTopic(byte[] value, byte[] peerInfo) {
+        return joinLegacy(value, peerInfo);
+    }
+
+    public static Topic decodeTopic(byte[] message) {
+        if (isBinary(message)) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(message);
+                checkHeader(buffer, TYPE_TOPIC);
+                int valueLength = getLength(buffer);
+                int valueOffset = buffer.position();
+                buffer.position(valueOffset + valueLength);
+                int peerInfoLength = getLength(buffer);
+                return new Topic(message, valueOffset, valueLength, buffer.position(), peerInfoLength);
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated topic message");
+            }
+        }
+        // Legacy "value:peer", the peer ends at the next separator
+        int first = indexOf(message, SEPARATOR, 0);
+        if (first < 0) {
+            throw new IllegalArgumentException("Invalid topic message");
+        }
+        int second = indexOf(message, SEPARATOR, first + 1);
+        int peerEnd = second < 0 ? message.length : second;
+        return new Topic(message, 0, first, first + 1, peerEnd - first - 1);
+    }
+
+    public static byte[] encodeNetworkInfo(byte[] network, byte[] password, byte[] peerInfo) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + fieldSize(network) + fieldSize(password) + fieldSize(peerInfo));
+        putHeader(buffer, TYPE_NETWORK_INFO);
+        putField(buffer, network);
+        putField(buffer, password);
+        putField(buffer, peerInfo);
+        return buffer.array();
+    }
+
+    /**
+     * Encodes network information in the legacy "network:password:peer" format understood by older clients
+     */
+    public static byte[] encodeLegacyNetworkInfo(byte[] network, byte[] password, byte[] peerInfo) {
+        return joinLegacy(network, password, peerInfo);
+    }
+
+    /**
+     * @param message received message
+     * @return network information, or null if the message does not carry network information
+     */
+    public static NetworkInfo decodeNetworkInfo(byte[] message) {
+        if (isBinary(message)) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(message);
+                checkHeader(buffer, TYPE_NETWORK_INFO);
+                return new NetworkInfo(getString(buffer), getString(buffer), getString(buffer));
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated network info message");
+            }
+        }
+        // Legacy "network:password:peer", the peer takes the rest of the message
+        int first = indexOf(message, SEPARATOR, 0);
+        int second = first < 0 ? -1 : indexOf(message, SEPARATOR, first + 1);
+        if (second < 0) {
+            return null;
+        }
+        return new NetworkInfo(new String(message, 0, first, StandardCharsets.UTF_8),
+                new String(message, first + 1, second - first - 1, StandardCharsets.UTF_8),
+                new String(message, second + 1, message.length - second - 1, StandardCharsets.UTF_8));
+    }
+
+    static void putHeader(ByteBuffer buffer, byte type) {
+        buffer.put(MAGIC).put(VERSION).put(type);
+    }
+
+    static void checkHeader(ByteBuffer buffer, byte type) {
+        if (buffer.get() != MAGIC) {
+            throw new IllegalArgumentException("Not a binary message");
+        }
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported message version " + version);
+        }
+        byte messageType = buffer.get();
+        if (messageType != type) {
+            throw new IllegalArgumentException("Unexpected message type " + messageType);
+        }
+    }
+
+    static int fieldSize(byte[] field) {
+        int length = field != null ? field.length : 0;
+        if (length > MAX_FIELD_LENGTH) {
+            throw new IllegalArgumentException("Field too long " + length);
+        }
+        return 2 + length;
+    }
+
+    static void putField(ByteBuffer buffer, byte[] field) {
+        if (field == null) {
+            buffer.putShort((short) 0);
+            return;
+        }
+        buffer.putShort((short) field.length).put(field);
+    }
+
+    /* Reads a field length, checking the field is complete */
+    static int getLength(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return length;
+    }
+
+    static byte[] getField(ByteBuffer buffer) {
+        byte[] field = new byte[getLength(buffer)];
+        buffer.get(field);
+        return field;
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = getLength(buffer);
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    static void putUuid(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+    }
+
+    static UUID getUuid(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    static boolean rangeEquals(byte[] array, int offset, int length, byte[] other) {
+        if (other == null || other.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (array[offset + i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] joinLegacy(byte[]... fields) {
+        int size = fields.length - 1;
+        for (byte[] field : fields) {
+            size += field != null ? field.length : 0;
+        }
+        byte[] message = new byte[size];
+        int position = 0;
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                message[position++] = SEPARATOR;
+            }
+            if (fields[i] != null) {
+                System.arraycopy(fields[i], 0, message, position, fields[i].length);
+                position += fields[i].length;
+            }
+        }
+        return message;
+    }
+
+    private static int indexOf(byte[] array, byte value, int from) {
+        for (int i = from; i < array.length; i++) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
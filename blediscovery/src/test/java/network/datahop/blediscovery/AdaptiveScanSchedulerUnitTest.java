@@ -0,0 +1,92 @@
+package network.datahop.blediscovery;
+
+import android.bluetooth.le.ScanSettings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class AdaptiveScanSchedulerUnitTest {
+
+    private static final long MIN_SCAN = 2000, MAX_SCAN = 5000, MIN_IDLE = 4000, MAX_IDLE = 32000;
+
+    private long now;
+    private AdaptiveScanScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        scheduler = new AdaptiveScanScheduler(new Clock() {
+            @Override
+            public long now() {
+                return now;
+            }
+        }, MIN_SCAN, MAX_SCAN, MIN_IDLE, MAX_IDLE);
+    }
+
+    /* Runs one cycle the way BLEServiceDiscovery does, reporting the observations */
+    private ScanWindow cycle(int peersSeen, int newPeers, int pendingPeers) {
+        ScanWindow window = scheduler.nextWindow();
+        now += window.getScanTime();
+        scheduler.onCycleCompleted(peersSeen, newPeers, pendingPeers);
+        now += scheduler.nextWindow().getIdleTime();
+        return window;
+    }
+
+    @Test
+    public void startsWithBurst() {
+        ScanWindow window = scheduler.nextWindow();
+        assertEquals(MIN_SCAN, window.getScanTime());
+        assertEquals(MIN_IDLE, window.getIdleTime());
+        assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, window.getScanMode());
+    }
+
+    @Test
+    public void stableNeighbourhoodBacksOffToLowPower() {
+        ScanWindow window = null;
+        long previousIdle = 0;
+        for (int i = 0; i < 20; i++) {
+            window = cycle(2, 0, 0);
+            assertTrue(window.getIdleTime() >= previousIdle);
+            previousIdle = window.getIdleTime();
+        }
+        assertEquals(MAX_IDLE, window.getIdleTime());
+        assertEquals(MAX_SCAN, window.getScanTime());
+        assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, window.getScanMode());
+    }
+
+    @Test
+    public void newPeersTriggerBurst() {
+        for (int i = 0; i < 20; i++) {
+            cycle(2, 0, 0);
+        }
+        cycle(3, 1, 0);
+        ScanWindow window = scheduler.nextWindow();
+        assertEquals(MIN_IDLE, window.getIdleTime());
+        assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, window.getScanMode());
+    }
+
+    @Test
+    public void topicChangeTriggersBurst() {
+        for (int i = 0; i < 20; i++) {
+            cycle(2, 0, 0);
+        }
+        scheduler.onTopicsChanged();
+        assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, scheduler.nextWindow().getScanMode());
+        now += MAX_IDLE;
+        assertEquals(ScanSettings.SCAN_MODE_BALANCED, scheduler.nextWindow().getScanMode());
+    }
+
+    @Test
+    public void denseNeighbourhoodCapsIdleTime() {
+        ScanWindow window = null;
+        for (int i = 0; i < 20; i++) {
+            window = cycle(AdaptiveScanScheduler.DENSE_NEIGHBOURHOOD, 0, 0);
+        }
+        assertEquals((MIN_IDLE + MAX_IDLE) / 2, window.getIdleTime());
+        assertEquals(ScanSettings.SCAN_MODE_BALANCED, window.getScanMode());
+    }
+}
@@ -0,0 +1,106 @@
+package network.datahop.blediscovery;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class AdmissionControlUnitTest {
+
+    private static final UUID TOPIC = UUID.nameUUIDFromBytes("topic".getBytes());
+
+    private SimulatedRadio radio;
+    private AdmissionControl admission;
+    private List<String> processed;
+    private List<String> rejected;
+    private List<String> disconnected;
+
+    @Before
+    public void setUp() {
+        radio = new SimulatedRadio(1);
+        SimulatedTransport transport = radio.addNode("00:00:00:00:00:01", 0, 0);
+        processed = new ArrayList<>();
+        rejected = new ArrayList<>();
+        disconnected = new ArrayList<>();
+        admission = new AdmissionControl(transport, new AdmissionControl.Callback() {
+            @Override
+            public void onWriteRequest(String device, int requestId, UUID characteristic, byte[] value) {
+                processed.add(device + "/" + requestId);
+            }
+
+            @Override
+            public void onRejected(String device, int requestId) {
+                rejected.add(device + "/" + requestId);
+            }
+
+            @Override
+            public void onDisconnect(String device) {
+                disconnected.add(device);
+            }
+        });
+        admission.setMaxClients(2);
+        admission.setExchangeDeadline(1000);
+    }
+
+    @Test
+    public void clientsAboveLimitAreTurnedAway() {
+        assertTrue(admission.connected("a"));
+        assertTrue(admission.connected("b"));
+        assertFalse(admission.connected("c"));
+        assertEquals(2, admission.getAdmitted());
+
+        admission.write("c", 1, TOPIC, new byte[0]);
+        assertEquals(1, rejected.size());
+        assertEquals("c/1", rejected.get(0));
+        assertEquals("c", disconnected.get(0));
+
+        // A slot freed by a disconnection goes to the next client
+        admission.disconnected("a");
+        admission.disconnected("c");
+        assertTrue(admission.connected("c"));
+    }
+
+    @Test
+    public void slowClientsAreDisconnectedAtDeadline() {
+        admission.connected("a");
+        radio.runFor(500);
+        admission.connected("b");
+        radio.runFor(600);
+        assertEquals(1, disconnected.size());
+        assertEquals("a", disconnected.get(0));
+
+        // No deadline for clients gone in time
+        admission.disconnected("b");
+        radio.runFor(1000);
+        assertEquals(1, disconnected.size());
+    }
+
+    @Test
+    public void writesAreProcessedRoundRobin() {
+        admission.setMaxQueuedRequests(2);
+        admission.connected("a");
+        admission.connected("b");
+        admission.write("a", 1, TOPIC, new byte[0]);
+        admission.write("a", 2, TOPIC, new byte[0]);
+        admission.write("a", 3, TOPIC, new byte[0]);
+        admission.write("b", 1, TOPIC, new byte[0]);
+        assertTrue(processed.isEmpty());
+        assertEquals(1, rejected.size());
+        assertEquals("a/3", rejected.get(0));
+        // Queue overflow answers busy without disconnecting an admitted client
+        assertTrue(disconnected.isEmpty());
+
+        radio.runFor(10);
+        assertEquals(3, processed.size());
+        assertEquals("a/1", processed.get(0));
+        assertEquals("b/1", processed.get(1));
+        assertEquals("a/2", processed.get(2));
+    }
+}
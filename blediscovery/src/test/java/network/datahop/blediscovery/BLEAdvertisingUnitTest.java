@@ -0,0 +1,138 @@
+package network.datahop.blediscovery;
+
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.ScanSettings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import datahop.AdvertisementNotifier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class BLEAdvertisingUnitTest {
+
+    private static final String SERVICE = "datahop-test";
+    private static final UUID SERVICE_UUID = UUID.nameUUIDFromBytes(SERVICE.getBytes());
+
+    private SimulatedRadio radio;
+    private SimulatedTransport advertiserRadio, clientRadio;
+    private BLEAdvertising advertising;
+    private final List<Integer> states = new ArrayList<>();
+    private int discoveries;
+
+    @Before
+    public void setUp() {
+        radio = new SimulatedRadio(1);
+        advertiserRadio = radio.addNode("00:00:00:00:00:01", 0, 0);
+        clientRadio = radio.addNode("00:00:00:00:00:02", 5, 0);
+        advertising = new BLEAdvertising(advertiserRadio);
+        advertising.setNotifier(new AdvertisementNotifier() {
+            @Override
+            public void advertiserPeerDifferentStatus(String topic, byte[] value, String peerInfo) {
+            }
+
+            @Override
+            public void advertiserPeerSameStatus() {
+            }
+        });
+        advertising.addAdvertisingInfo("topic", "v1");
+        advertising.start(SERVICE, "peer");
+    }
+
+    @Test
+    public void valueChangeKeepsClients() {
+        GattClientLink link = connect();
+
+        advertising.addAdvertisingInfo("topic", "v2");
+        radio.runFor(1000);
+
+        // Restarting would have closed the GATT server and disconnected the client
+        assertEquals(1, states.size());
+        Map<UUID, String> expected = new HashMap<>();
+        expected.put(TopicRegistry.topic("topic").getUuid(), "v2");
+        assertArrayEquals(StatusDigest.compute(expected), scan());
+        assertTrue(link.discoverServices());
+    }
+
+    @Test
+    public void topicSetChangeRebuildsService() {
+        GattClientLink link = connect();
+
+        advertising.addAdvertisingInfo("other", "v1");
+        radio.runFor(1000);
+        assertTrue(link.discoverServices());
+        radio.runFor(1000);
+
+        assertEquals(1, states.size());
+        assertEquals(2, discoveries);
+        // Both topics plus the exchange characteristic
+        assertEquals(3, link.getCharacteristics().size());
+        assertTrue(link.getCharacteristics().contains(TopicRegistry.topic("other").getUuid()));
+    }
+
+    private GattClientLink connect() {
+        GattClientLink link = clientRadio.connect(advertiserRadio.getAddress(), SERVICE_UUID, new GattClientLink.Callback() {
+            @Override
+            public void onConnectionStateChange(int status, int newState) {
+                states.add(newState);
+            }
+
+            @Override
+            public void onServicesDiscovered(int status) {
+                discoveries++;
+            }
+
+            @Override
+            public void onMtuChanged(int mtu, int status) {
+            }
+
+            @Override
+            public void onCharacteristicWrite(UUID characteristic, int status) {
+            }
+
+            @Override
+            public void onCharacteristicChanged(UUID characteristic, byte[] value) {
+            }
+
+            @Override
+            public void onCharacteristicRead(UUID characteristic, byte[] value, int status) {
+            }
+
+            @Override
+            public void onDescriptorWrite(UUID characteristic, UUID descriptor, int status) {
+            }
+        });
+        radio.runFor(1000);
+        assertEquals(Integer.valueOf(BluetoothProfile.STATE_CONNECTED), states.get(0));
+        assertTrue(link.discoverServices());
+        radio.runFor(1000);
+        return link;
+    }
+
+    private byte[] scan() {
+        final byte[][] serviceData = new byte[1][];
+        clientRadio.startScan(SERVICE_UUID, ScanSettings.SCAN_MODE_LOW_LATENCY, new BleTransport.ScanListener() {
+            @Override
+            public void onScanResult(String address, int rssi, byte[] data) {
+                serviceData[0] = data;
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+            }
+        });
+        radio.runFor(2000);
+        clientRadio.stopScan();
+        return serviceData[0];
+    }
+}
@@ -0,0 +1,58 @@
+package network.datahop.blediscovery;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class CharacteristicIndexUnitTest {
+
+    @Test
+    public void lookupByBits() {
+        Map<UUID, Integer> topics = new LinkedHashMap<>();
+        for (int i = 0; i < 50; i++) {
+            topics.put(UUID.nameUUIDFromBytes(("topic" + i).getBytes()), i);
+        }
+        CharacteristicIndex<Integer> index = new CharacteristicIndex<>(topics);
+        assertEquals(50, index.size());
+        for (int i = 0; i < 50; i++) {
+            UUID copy = UUID.fromString(UUID.nameUUIDFromBytes(("topic" + i).getBytes()).toString());
+            assertEquals(Integer.valueOf(i), index.get(copy));
+        }
+        assertFalse(index.contains(UUID.nameUUIDFromBytes("missing".getBytes())));
+        assertNull(index.get(null));
+        assertEquals(topics.keySet().iterator().next(), index.getUuids().get(0));
+    }
+
+    @Test
+    public void shortUuidsDoNotCollide() {
+        // 16-bit SIG UUIDs share the base UUID and only differ in the most significant half
+        Map<UUID, String> characteristics = new LinkedHashMap<>();
+        for (int i = 0; i < 16; i++) {
+            characteristics.put(UUID.fromString(String.format("0000%04x-0000-1000-8000-00805f9b34fb", 0x2a00 + i)), "c" + i);
+        }
+        CharacteristicIndex<String> index = new CharacteristicIndex<>(characteristics);
+        for (Map.Entry<UUID, String> entry : characteristics.entrySet()) {
+            assertEquals(entry.getValue(), index.get(entry.getKey()));
+        }
+        assertNull(index.get(UUID.fromString("00002b00-0000-1000-8000-00805f9b34fb")));
+    }
+
+    @Test
+    public void matchesWrittenCharacteristic() {
+        UUID topic = UUID.nameUUIDFromBytes("topic".getBytes());
+        Map<UUID, byte[]> values = new LinkedHashMap<>();
+        values.put(topic, new byte[]{1});
+        CharacteristicIndex<byte[]> index = new CharacteristicIndex<>(values);
+        assertTrue(BluetoothUtils.matchAnyCharacteristic(topic, index));
+        assertFalse(BluetoothUtils.matchAnyCharacteristic(Constants.CHARACTERISTIC_DATAHOP_UUID, index));
+        assertEquals(0, CharacteristicIndex.empty().size());
+    }
+}
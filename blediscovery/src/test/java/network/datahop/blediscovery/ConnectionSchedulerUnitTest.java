@@ -0,0 +1,97 @@
+package network.datahop.blediscovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class ConnectionSchedulerUnitTest {
+
+    private final PeerTable table = new PeerTable(8);
+    private final ConnectionScheduler scheduler = new ConnectionScheduler();
+
+    private int add(String address, int rssi, long now) {
+        int slot = table.update(PeerTable.pack(address), address, rssi, null, now, 0);
+        table.setPending(slot, true);
+        return slot;
+    }
+
+    @Test
+    public void strongerPeersComeFirst() {
+        int far = add("00:00:00:00:00:01", -95, 0);
+        int near = add("00:00:00:00:00:02", -55, 0);
+        int middle = add("00:00:00:00:00:03", -75, 0);
+
+        assertEquals(3, scheduler.rank(table, 0, 4));
+        assertEquals(near, scheduler.poll());
+        assertEquals(middle, scheduler.poll());
+        assertEquals(far, scheduler.poll());
+        assertEquals(-1, scheduler.poll());
+    }
+
+    @Test
+    public void onlyIdlePendingPeersAreRanked() {
+        int a = add("00:00:00:00:00:01", -60, 0);
+        int b = add("00:00:00:00:00:02", -60, 0);
+        int c = add("00:00:00:00:00:03", -60, 0);
+        int d = add("00:00:00:00:00:04", -60, 0);
+        table.setPending(b, false);
+        table.setState(c, PeerTable.STATE_CONNECTING);
+        for (int i = 0; i < PeerTable.BREAKER_THRESHOLD; i++) {
+            table.recordOutcome(d, PeerCache.OUTCOME_FAILED, -1, 0);
+        }
+
+        assertEquals(1, scheduler.rank(table, 0, 4));
+        assertEquals(a, scheduler.poll());
+        assertEquals(-1, scheduler.poll());
+    }
+
+    @Test
+    public void failingPeersArePenalized() {
+        int flaky = add("00:00:00:00:00:01", -60, 0);
+        int reliable = add("00:00:00:00:00:02", -60, 0);
+        for (int i = 0; i < 4; i++) {
+            table.recordAttempt(flaky, 0);
+            table.recordOutcome(flaky, PeerCache.OUTCOME_FAILED, -1, 0);
+            table.recordAttempt(reliable, 0);
+            table.recordOutcome(reliable, PeerCache.OUTCOME_SAME_STATUS, -1, -ConnectionScheduler.STALENESS_HORIZON);
+        }
+        // A busy server says nothing about the link
+        table.recordAttempt(reliable, 0);
+        table.recordOutcome(reliable, PeerCache.OUTCOME_BUSY, -1, 0);
+
+        // Once the circuit breaker of the flaky peer has closed again
+        long now = PeerTable.MAX_BREAKER_BACKOFF;
+        scheduler.rank(table, now, 4);
+        assertEquals(reliable, scheduler.poll());
+        assertEquals(flaky, scheduler.poll());
+    }
+
+    @Test
+    public void waitingPeersEventuallyOvertake() {
+        int weak = add("00:00:00:00:00:01", -100, 0);
+        for (int i = 0; i < 8; i++) {
+            table.recordAttempt(weak, 0);
+            table.recordOutcome(weak, PeerCache.OUTCOME_FAILED, -1, 0);
+        }
+        long now = 10 * ConnectionScheduler.AGING_PERIOD;
+        int strong = add("00:00:00:00:00:02", -50, now);
+
+        assertTrue(ConnectionScheduler.score(table, weak, now, 4) > ConnectionScheduler.score(table, strong, now, 4));
+        scheduler.rank(table, now, 4);
+        assertEquals(weak, scheduler.poll());
+    }
+
+    @Test
+    public void sharedTopicsRaiseTheScore() {
+        int a = add("00:00:00:00:00:01", -60, 0);
+        int b = add("00:00:00:00:00:02", -60, 0);
+        table.recordOutcome(a, PeerCache.OUTCOME_DIFFERENT_STATUS, 0, 0);
+        table.recordOutcome(b, PeerCache.OUTCOME_DIFFERENT_STATUS, 4, 0);
+
+        scheduler.rank(table, 0, 4);
+        assertEquals(b, scheduler.poll());
+        assertEquals(a, scheduler.poll());
+    }
+}
@@ -0,0 +1,464 @@
+package network.datahop.blediscovery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import datahop.AdvertisementNotifier;
+import datahop.DiscoveryNotifier;
+
+/**
+ * Discrete-event simulation of a crowd of nodes running BLEServiceDiscovery and BLEAdvertising on a
+ * {@link SimulatedRadio}. Nodes move following a random waypoint model and a topic is updated at random
+ * nodes over time. A node learning a newer value from a peer, on either side of the exchange, adopts it
+ * after the sync delay, standing for the content transfer over the network information received.
+ * The report gives the distributions of
+ * <ul>
+ * <li>discovery latency: time from two nodes coming into range to each one hearing the other,</li>
+ * <li>reconciliation latency: time from a topic change to each other node adopting it,</li>
+ * <li>connections initiated per node,</li>
+ * <li>estimated radio-on time per node, as a percentage of the simulated time.</li>
+ * </ul>
+ */
+public class CrowdSimulation {
+
+    private static final String SERVICE = "datahop-crowd";
+    private static final String TOPIC = "topic";
+
+    /**
+     * Summary of a set of samples
+     */
+    public static class Distribution {
+        private double[] samples = new double[16];
+        private int count;
+
+        public void add(double sample) {
+            if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+            samples[count++] = sample;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            double sum = 0;
+            for (int i = 0; i < count; i++) sum += samples[i];
+            return count > 0 ? sum / count : Double.NaN;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return nearest-rank percentile, NaN when empty
+         */
+        public double getPercentile(double percentile) {
+            if (count == 0) return Double.NaN;
+            Arrays.sort(samples, 0, count);
+            int index = (int) Math.ceil(percentile / 100 * count) - 1;
+            return samples[Math.min(count - 1, Math.max(0, index))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f", count, getMean(),
+                    getPercentile(50), getPercentile(90), getPercentile(99), getPercentile(100));
+        }
+    }
+
+    /**
+     * Results of a run
+     */
+    public static class Report {
+        final Distribution discoveryLatency = new Distribution();
+        final Distribution reconciliationLatency = new Distribution();
+        final Distribution connectionsPerNode = new Distribution();
+        final Distribution radioOnPercent = new Distribution();
+        int topicChanges;
+        int unreconciled;
+
+        public Distribution getDiscoveryLatency() {
+            return discoveryLatency;
+        }
+
+        public Distribution getReconciliationLatency() {
+            return reconciliationLatency;
+        }
+
+        public Distribution getConnectionsPerNode() {
+            return connectionsPerNode;
+        }
+
+        public Distribution getRadioOnPercent() {
+            return radioOnPercent;
+        }
+
+        public int getTopicChanges() {
+            return topicChanges;
+        }
+
+        /**
+         * @return number of (topic change, node) pairs the change never reached
+         */
+        public int getUnreconciled() {
+            return unreconciled;
+        }
+
+        @Override
+        public String toString() {
+            return "discovery latency ms " + discoveryLatency
+                    + "\nreconciliation latency ms " + reconciliationLatency
+                    + "\ntopic changes " + topicChanges + " unreconciled " + unreconciled
+                    + "\nconnections per node " + connectionsPerNode
+                    + "\nradio on % " + radioOnPercent;
+        }
+    }
+
+    private int nodes = 200;
+    private double width = 150, height = 150;
+    private double range = 30;
+    private double minSpeed = 0.5, maxSpeed = 1.5;
+    private long pauseTime = 60000;
+    private long mobilityStep = 1000;
+    private double packetLoss = 0.02;
+    private double contention = 0.002;
+    private int maxLinks = SimulatedRadio.DEFAULT_MAX_LINKS;
+    private long scanTime = 2000, idleTime = 8000;
+    private int maxConnections = 4;
+    private long duration = 3600000;
+    private long topicChangeInterval = 120000;
+    private long syncDelay = 2000;
+    private long seed = 1;
+
+    /* Run state */
+    private SimulatedRadio radio;
+    private Random random;
+    private Report report;
+    private final List<Node> crowd = new ArrayList<>();
+    private final Map<Long, Contact> contacts = new HashMap<>();
+    private final List<Long> changeTimes = new ArrayList<>();
+    private final List<Integer> changeReach = new ArrayList<>();
+    private int contactStamp;
+
+    public void setNodes(int nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * @param width size of the area in metres
+     * @param height size of the area in metres
+     */
+    public void setArea(double width, double height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public void setRange(double range) {
+        this.range = range;
+    }
+
+    /**
+     * Random waypoint mobility, speeds of 0 keep the nodes static
+     * @param minSpeed minimum speed in m/s
+     * @param maxSpeed maximum speed in m/s
+     * @param pauseTime maximum pause in ms at each waypoint
+     */
+    public void setMobility(double minSpeed, double maxSpeed, long pauseTime) {
+        this.minSpeed = minSpeed;
+        this.maxSpeed = maxSpeed;
+        this.pauseTime = pauseTime;
+    }
+
+    public void setPacketLoss(double packetLoss) {
+        this.packetLoss = packetLoss;
+    }
+
+    /**
+     * @param contention advertising collision probability per other node in range
+     * @param maxLinks maximum number of links open at the same time on a node
+     */
+    public void setContention(double contention, int maxLinks) {
+        this.contention = contention;
+        this.maxLinks = maxLinks;
+    }
+
+    /**
+     * Scan parameters given to BLEServiceDiscovery
+     * @param scanTime duration of the scanning phase
+     * @param idleTime idle time before starting another scan cycle
+     * @param maxConnections maximum number of concurrent client sessions
+     */
+    public void setScanParameters(long scanTime, long idleTime, int maxConnections) {
+        this.scanTime = scanTime;
+        this.idleTime = idleTime;
+        this.maxConnections = maxConnections;
+    }
+
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * @param topicChangeInterval mean time in ms between two topic changes
+     * @param syncDelay time in ms to transfer a new value once discovered
+     */
+    public void setTopicChanges(long topicChangeInterval, long syncDelay) {
+        this.topicChangeInterval = topicChangeInterval;
+        this.syncDelay = syncDelay;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /* Pair of nodes in range of each other */
+    private static class Contact {
+        final long start;
+        boolean heardByLow, heardByHigh;
+        int stamp;
+
+        Contact(long start) {
+            this.start = start;
+        }
+    }
+
+    private class Node {
+        final SimulatedTransport transport;
+        final BLEAdvertising advertising;
+        final BLEServiceDiscovery discovery;
+        int version;
+        double targetX, targetY, speed;
+        long pausedUntil;
+
+        Node(SimulatedTransport transport) {
+            this.transport = transport;
+            this.advertising = new BLEAdvertising(transport);
+            this.discovery = new BLEServiceDiscovery(transport);
+            discovery.setMaxConnections(maxConnections);
+            advertising.setNotifier(new AdvertisementNotifier() {
+                @Override
+                public void advertiserPeerDifferentStatus(String topic, byte[] value, String peerInfo) {
+                    advertising.notifyNetworkInformation(value(), "pass");
+                    learned(Node.this, new String(value));
+                }
+
+                @Override
+                public void advertiserPeerSameStatus() {
+                    advertising.notifyEmptyValue();
+                }
+            });
+            discovery.setNotifier(new DiscoveryNotifier() {
+                @Override
+                public void discoveryPeerDifferentStatus(String device, String topic, String network, String pass, String info) {
+                    learned(Node.this, network);
+                }
+
+                @Override
+                public void discoveryPeerSameStatus(String device, String topic) {
+                }
+            });
+            setValue();
+        }
+
+        String value() {
+            return "v" + version;
+        }
+
+        void setValue() {
+            advertising.addAdvertisingInfo(TOPIC, value());
+            discovery.addAdvertisingInfo(TOPIC, value());
+        }
+
+        void start() {
+            advertising.start(SERVICE, transport.getAddress());
+            discovery.start(SERVICE, transport.getAddress(), scanTime, idleTime);
+        }
+
+        void stop() {
+            discovery.stop();
+            advertising.stop();
+        }
+    }
+
+    /**
+     * Runs the scenario
+     * @return distributions measured during the run
+     */
+    public Report run() {
+        radio = new SimulatedRadio(seed);
+        radio.setRange(range);
+        radio.setPacketLoss(packetLoss);
+        radio.setContention(contention);
+        radio.setMaxLinks(maxLinks);
+        random = new Random(seed);
+        report = new Report();
+        crowd.clear();
+        contacts.clear();
+        changeTimes.clear();
+        changeReach.clear();
+        changeTimes.add(0L);
+        changeReach.add(nodes);
+
+        for (int i = 0; i < nodes; i++) {
+            SimulatedTransport transport = radio.addNode(String.format("02:00:00:%02X:%02X:%02X", i >> 16 & 0xff, i >> 8 & 0xff, i & 0xff),
+                    random.nextDouble() * width, random.nextDouble() * height);
+            Node node = new Node(transport);
+            pickWaypoint(node);
+            crowd.add(node);
+        }
+        radio.setListener(new SimulatedRadio.Listener() {
+            @Override
+            public void advertisementHeard(SimulatedTransport scanner, SimulatedTransport advertiser) {
+                heard(scanner, advertiser);
+            }
+        });
+        updateContacts();
+        // Nodes are switched on at random times so their scan cycles are not aligned
+        for (final Node node : crowd) {
+            radio.schedule((long) (random.nextDouble() * (scanTime + idleTime)), new Runnable() {
+                @Override
+                public void run() {
+                    node.start();
+                }
+            });
+        }
+        if (maxSpeed > 0) {
+            radio.schedule(mobilityStep, new Runnable() {
+                @Override
+                public void run() {
+                    move();
+                    radio.schedule(mobilityStep, this);
+                }
+            });
+        }
+        if (topicChangeInterval > 0) {
+            radio.schedule(nextChange(), new Runnable() {
+                @Override
+                public void run() {
+                    changeTopic();
+                    radio.schedule(nextChange(), this);
+                }
+            });
+        }
+
+        radio.runFor(duration);
+        for (Node node : crowd) {
+            report.connectionsPerNode.add(node.transport.getConnectionAttempts());
+            report.radioOnPercent.add(100 * node.transport.getRadioOnTime() / duration);
+            node.stop();
+        }
+        report.topicChanges = changeTimes.size() - 1;
+        for (int version = 1; version < changeTimes.size(); version++) {
+            report.unreconciled += nodes - changeReach.get(version);
+        }
+        return report;
+    }
+
+    private long nextChange() {
+        return (long) (-Math.log(1 - random.nextDouble()) * topicChangeInterval);
+    }
+
+    private void changeTopic() {
+        Node origin = crowd.get(random.nextInt(crowd.size()));
+        changeTimes.add(radio.now());
+        changeReach.add(0);
+        adopt(origin, changeTimes.size() - 1);
+    }
+
+    /* A peer value is known, the newer one is adopted once transferred */
+    private void learned(final Node node, String value) {
+        final int version;
+        try {
+            version = Integer.parseInt(value.substring(1));
+        } catch (RuntimeException e) {
+            return;
+        }
+        if (version <= node.version) return;
+        radio.schedule(syncDelay, new Runnable() {
+            @Override
+            public void run() {
+                adopt(node, version);
+            }
+        });
+    }
+
+    /* Reconciles all the versions between the current one and the adopted one */
+    private void adopt(Node node, int version) {
+        if (version <= node.version) return;
+        for (int v = node.version + 1; v <= version; v++) {
+            long latency = radio.now() - changeTimes.get(v);
+            if (changeReach.get(v) > 0) report.reconciliationLatency.add(latency);
+            changeReach.set(v, changeReach.get(v) + 1);
+        }
+        node.version = version;
+        node.setValue();
+    }
+
+    private void heard(SimulatedTransport scanner, SimulatedTransport advertiser) {
+        int low = Math.min(scanner.getIndex(), advertiser.getIndex());
+        int high = Math.max(scanner.getIndex(), advertiser.getIndex());
+        Contact contact = contacts.get(contactKey(low, high));
+        // Nodes coming into range between two mobility steps are picked up on the next one
+        if (contact == null) return;
+        boolean byLow = scanner.getIndex() == low;
+        if (byLow ? contact.heardByLow : contact.heardByHigh) return;
+        if (byLow) contact.heardByLow = true;
+        else contact.heardByHigh = true;
+        report.discoveryLatency.add(radio.now() - contact.start);
+    }
+
+    private void updateContacts() {
+        contactStamp++;
+        for (Node node : crowd) {
+            int index = node.transport.getIndex();
+            for (SimulatedTransport other : radio.neighbours(node.transport)) {
+                if (other.getIndex() < index) continue;
+                long key = contactKey(index, other.getIndex());
+                Contact contact = contacts.get(key);
+                if (contact == null) {
+                    contact = new Contact(radio.now());
+                    contacts.put(key, contact);
+                }
+                contact.stamp = contactStamp;
+            }
+        }
+        Iterator<Contact> it = contacts.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().stamp != contactStamp) it.remove();
+        }
+    }
+
+    /* Dense key, Long hashes of two ints packed in the high and low words collide */
+    private long contactKey(int low, int high) {
+        return (long) low * nodes + high;
+    }
+
+    private void move() {
+        long now = radio.now();
+        double seconds = mobilityStep / 1000.0;
+        for (Node node : crowd) {
+            if (now < node.pausedUntil) continue;
+            SimulatedTransport transport = node.transport;
+            double dx = node.targetX - transport.getX(), dy = node.targetY - transport.getY();
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            double step = node.speed * seconds;
+            if (distance <= step) {
+                transport.setPosition(node.targetX, node.targetY);
+                node.pausedUntil = now + (long) (random.nextDouble() * pauseTime);
+                pickWaypoint(node);
+            } else {
+                transport.setPosition(transport.getX() + dx / distance * step, transport.getY() + dy / distance * step);
+            }
+        }
+        updateContacts();
+    }
+
+    private void pickWaypoint(Node node) {
+        node.targetX = random.nextDouble() * width;
+        node.targetY = random.nextDouble() * height;
+        node.speed = minSpeed + random.nextDouble() * (maxSpeed - minSpeed);
+    }
+}
@@ -0,0 +1,32 @@
+package network.datahop.blediscovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+
+public class CrowdSimulationUnitTest {
+
+    /* Defaults keep the run short, larger scenarios are set with -Dsimulation.* properties */
+    @Test
+    public void crowdScenario() {
+        CrowdSimulation simulation = new CrowdSimulation();
+        simulation.setNodes(Integer.getInteger("simulation.nodes", 100));
+        double side = Double.parseDouble(System.getProperty("simulation.area", "110"));
+        simulation.setArea(side, side);
+        simulation.setRange(Double.parseDouble(System.getProperty("simulation.range", "30")));
+        simulation.setScanParameters(Long.getLong("simulation.scanTime", 2000),
+                Long.getLong("simulation.idleTime", 8000), Integer.getInteger("simulation.maxConnections", 4));
+        simulation.setDuration(Long.getLong("simulation.duration", 600000));
+        simulation.setSeed(Long.getLong("simulation.seed", 1));
+
+        long start = System.currentTimeMillis();
+        CrowdSimulation.Report report = simulation.run();
+        System.out.println(report);
+        System.out.println("Simulated in " + (System.currentTimeMillis() - start) + " ms");
+
+        assertTrue(report.getDiscoveryLatency().getCount() > 0);
+        assertTrue(report.getReconciliationLatency().getCount() > 0);
+        assertTrue(report.getRadioOnPercent().getPercentile(100) < 100);
+    }
+}
@@ -0,0 +1,162 @@
+package network.datahop.blediscovery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import datahop.AdvertisementNotifier;
+import datahop.DiscoveryNotifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class DiscoverySimulationUnitTest {
+
+    private static final String SERVICE = "datahop-simulation";
+    private static final String TOPIC = "topic";
+
+    /* Virtual peer running both drivers on its own simulated transport */
+    private static class Peer {
+        final String address;
+        final String value;
+        final BLEAdvertising advertising;
+        final BLEServiceDiscovery discovery;
+        /* First time a different status was received from each advertiser */
+        final Map<String, Long> reconciled = new HashMap<>();
+
+        Peer(final SimulatedRadio radio, SimulatedTransport transport, String value) {
+            this.address = transport.getAddress();
+            this.value = value;
+            this.advertising = new BLEAdvertising(transport);
+            this.discovery = new BLEServiceDiscovery(transport);
+            advertising.setNotifier(new AdvertisementNotifier() {
+                @Override
+                public void advertiserPeerDifferentStatus(String topic, byte[] value, String peerInfo) {
+                    advertising.notifyNetworkInformation("network-" + address, "pass");
+                }
+
+                @Override
+                public void advertiserPeerSameStatus() {
+                    advertising.notifyEmptyValue();
+                }
+            });
+            discovery.setNotifier(new DiscoveryNotifier() {
+                @Override
+                public void discoveryPeerDifferentStatus(String device, String topic, String network, String pass, String info) {
+                    if (!reconciled.containsKey(device)) reconciled.put(device, radio.now());
+                }
+
+                @Override
+                public void discoveryPeerSameStatus(String device, String topic) {
+                }
+            });
+            advertising.addAdvertisingInfo(TOPIC, value);
+            discovery.addAdvertisingInfo(TOPIC, value);
+        }
+
+        void start() {
+            advertising.start(SERVICE, address);
+            discovery.start(SERVICE, address, 2000, 8000);
+        }
+    }
+
+    @Test
+    public void virtualPeersReconcile() {
+        SimulatedRadio radio = new SimulatedRadio(42);
+        radio.setRange(40);
+        radio.setPacketLoss(0.05);
+        Random random = new Random(7);
+
+        List<Peer> peers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            SimulatedTransport transport = radio.addNode(String.format("00:00:00:00:%02X:%02X", i / 256, i % 256),
+                    random.nextDouble() * 120, random.nextDouble() * 120);
+            peers.add(new Peer(radio, transport, "v" + (i % 3)));
+        }
+        for (Peer peer : peers) {
+            peer.start();
+        }
+        radio.runFor(60000);
+        for (Peer peer : peers) {
+            peer.discovery.stop();
+            peer.advertising.stop();
+        }
+        radio.runFor(1000);
+
+        List<Long> seen = new ArrayList<>();
+        List<Long> reconciled = new ArrayList<>();
+        int pending = 0;
+        for (Peer scanner : peers) {
+            for (Peer advertiser : peers) {
+                if (scanner == advertiser || !radio.inRange(radio.getNode(scanner.address), radio.getNode(advertiser.address))) {
+                    continue;
+                }
+                long firstSeen = radio.getFirstSeen(scanner.address, advertiser.address);
+                if (firstSeen >= 0) seen.add(firstSeen);
+                if (scanner.value.equals(advertiser.value)) continue;
+                Long time = scanner.reconciled.get(advertiser.address);
+                if (time != null) reconciled.add(time);
+                else pending++;
+            }
+        }
+        Collections.sort(seen);
+        Collections.sort(reconciled);
+        System.out.println("Peers " + peers.size() + " in range pairs " + seen.size());
+        System.out.println("Time to discovery ms p50 " + percentile(seen, 50) + " p90 " + percentile(seen, 90)
+                + " max " + percentile(seen, 100));
+        System.out.println("Time to reconciliation ms p50 " + percentile(reconciled, 50) + " p90 " + percentile(reconciled, 90)
+                + " max " + percentile(reconciled, 100) + " pending " + pending);
+        System.out.println("Connections " + radio.getConnectionAttempts() + " failed " + radio.getConnectionFailures()
+                + " per peer " + (radio.getConnectionAttempts() / (double) peers.size())
+                + " ATT packets " + radio.getPackets() + " notifications " + radio.getNotifications());
+
+        // Peers visited at the end of a scan cycle may not be reached before the next one starts
+        assertTrue(reconciled.size() > 0);
+        assertTrue(pending * 10 < reconciled.size());
+    }
+
+    @Test
+    public void unresponsiveConnectionsDoNotStallDiscovery() {
+        SimulatedRadio radio = new SimulatedRadio(3);
+        radio.setRange(40);
+        // Most connection attempts are never reported by the stack
+        radio.setUnresponsive(0.5);
+        Random random = new Random(5);
+
+        List<Peer> peers = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            SimulatedTransport transport = radio.addNode(String.format("00:00:00:00:01:%02X", i),
+                    random.nextDouble() * 20, random.nextDouble() * 20);
+            peers.add(new Peer(radio, transport, "v" + (i % 2)));
+        }
+        for (Peer peer : peers) {
+            peer.start();
+        }
+        radio.runFor(120000);
+
+        long expired = 0;
+        int pending = 0;
+        for (Peer scanner : peers) {
+            expired += scanner.discovery.getExpiredSessions(GattClientSession.PHASE_CONNECT);
+            for (Peer advertiser : peers) {
+                if (!scanner.value.equals(advertiser.value) && !scanner.reconciled.containsKey(advertiser.address)) pending++;
+            }
+        }
+        System.out.println("Expired connections " + expired + " pending " + pending);
+
+        assertTrue(expired > 0);
+        assertEquals(0, pending);
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) return -1;
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+}
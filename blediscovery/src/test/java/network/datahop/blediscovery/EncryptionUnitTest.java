@@ -2,7 +2,11 @@ package network.datahop.blediscovery;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 
 public class EncryptionUnitTest {
@@ -22,6 +26,27 @@ public class EncryptionUnitTest {
         assertEquals(4, 2 + 2);
     }
 
-}
+    @Test
+    public void sessionMode() {
+        byte[] plain = "network:pass:peer".getBytes();
+        Encryption.SessionKey key = Encryption.createSessionKey("password");
+        ByteBuffer out = ByteBuffer.allocate(plain.length + Encryption.GCM_OVERHEAD + 4);
+        out.putInt(42);
+        int length = Encryption.encrypt(key, plain, out);
+        assertEquals(plain.length + Encryption.GCM_OVERHEAD, length);
+
+        byte[] message = new byte[length];
+        System.arraycopy(out.array(), 4, message, 0, length);
+        assertTrue(Encryption.isSessionMessage(message));
+        assertArrayEquals(plain, Encryption.decrypt(message, "password"));
+        assertTrue(message.length < Encryption.encrypt(plain, "password").length());
+    }
 
+    @Test(expected = RuntimeException.class)
+    public void sessionModeRejectsTamperedMessages() {
+        byte[] message = Encryption.encrypt(Encryption.createSessionKey("password"), "network".getBytes());
+        message[message.length - 1] ^= 1;
+        Encryption.decrypt(message, "password");
+    }
 
+}
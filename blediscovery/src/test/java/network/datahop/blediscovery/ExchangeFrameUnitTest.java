@@ -0,0 +1,73 @@
+package network.datahop.blediscovery;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class ExchangeFrameUnitTest {
+
+    private static final UUID TOPIC1 = UUID.nameUUIDFromBytes("topic1".getBytes());
+    private static final UUID TOPIC2 = UUID.nameUUIDFromBytes("topic2".getBytes());
+
+    @Test
+    public void requestRoundTrip() {
+        LinkedHashMap<UUID, byte[]> topics = new LinkedHashMap<>();
+        topics.put(TOPIC1, "value:with:colons".getBytes());
+        topics.put(TOPIC2, new byte[0]);
+        ExchangeFrame.Request request = ExchangeFrame.decodeRequest(ExchangeFrame.encodeRequest(topics, "peer".getBytes()));
+        assertEquals(topics.keySet(), request.getTopics().keySet());
+        assertArrayEquals(topics.get(TOPIC1), request.getTopics().get(TOPIC1));
+        assertArrayEquals(topics.get(TOPIC2), request.getTopics().get(TOPIC2));
+        assertEquals("peer", request.getPeerInfo());
+    }
+
+    @Test
+    public void responseRoundTrip() {
+        LinkedHashMap<UUID, Byte> topics = new LinkedHashMap<>();
+        topics.put(TOPIC1, ExchangeFrame.STATUS_DIFFERENT);
+        topics.put(TOPIC2, ExchangeFrame.STATUS_SAME);
+        byte[] info = "network:pass:peer".getBytes();
+        ExchangeFrame.Response response = ExchangeFrame.decodeResponse(ExchangeFrame.encodeResponse(topics, info));
+        assertEquals(topics, response.getTopics());
+        assertArrayEquals(info, response.getInfo());
+
+        topics.put(TOPIC1, ExchangeFrame.STATUS_DIFFERENT_NO_INFO);
+        response = ExchangeFrame.decodeResponse(ExchangeFrame.encodeResponse(topics, null));
+        assertEquals(topics, response.getTopics());
+        assertNull(response.getInfo());
+
+        // Unknown statuses are read as the same status
+        topics.put(TOPIC1, (byte) 7);
+        response = ExchangeFrame.decodeResponse(ExchangeFrame.encodeResponse(topics, null));
+        assertEquals(Byte.valueOf(ExchangeFrame.STATUS_SAME), response.getTopics().get(TOPIC1));
+    }
+
+    @Test
+    public void rejectsInvalidFrames() {
+        LinkedHashMap<UUID, byte[]> topics = new LinkedHashMap<>();
+        topics.put(TOPIC1, "value".getBytes());
+        byte[] frame = ExchangeFrame.encodeRequest(topics, "peer".getBytes());
+        byte[] truncated = new byte[frame.length - 3];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        try {
+            ExchangeFrame.decodeRequest(truncated);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("Truncated"));
+        }
+        try {
+            ExchangeFrame.decodeResponse(frame);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("type"));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package network.datahop.blediscovery;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import datahop.AdvertisementNotifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class GattClientSessionUnitTest {
+
+    private static final String SERVICE_ID = "service";
+    private static final UUID SERVICE = UUID.nameUUIDFromBytes(SERVICE_ID.getBytes());
+
+    private SimulatedRadio radio;
+    private SimulatedTransport client;
+    private int closed;
+    private int sameStatus;
+    private int differentStatus;
+
+    private final ClientSessionListener listener = new ClientSessionListener() {
+        @Override
+        public void sessionConnected(GattClientSession session) {
+        }
+
+        @Override
+        public void sameStatusDiscovered(GattClientSession session, UUID characteristic) {
+            sameStatus++;
+        }
+
+        @Override
+        public void differentStatusDiscovered(GattClientSession session, UUID characteristic, String network, String password, String info) {
+            differentStatus++;
+        }
+
+        @Override
+        public void sessionClosed(GattClientSession session) {
+            closed++;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        radio = new SimulatedRadio(1);
+        client = radio.addNode("00:00:00:00:00:01", 0, 0);
+        radio.addNode("00:00:00:00:00:02", 1, 0);
+    }
+
+    private GattClientSession session() {
+        return session(new TopicRegistry().snapshot());
+    }
+
+    private GattClientSession session(TopicRegistry.Snapshot topics) {
+        return new GattClientSession(client, "00:00:00:00:00:02", null, SERVICE, topics, "peer", null, listener);
+    }
+
+    @Test
+    public void unansweredConnectionExpires() {
+        radio.setUnresponsive(1);
+        GattClientSession session = session();
+        assertTrue(session.connect());
+
+        radio.runFor(GattClientSession.DEFAULT_CONNECT_TIMEOUT - 1);
+        assertEquals(0, closed);
+        assertEquals(GattClientSession.STATE_CONNECTING, session.getConnectionState());
+
+        radio.runFor(1);
+        assertEquals(1, closed);
+        assertEquals(GattClientSession.PHASE_CONNECT, session.getExpiredPhase());
+        assertEquals(GattClientSession.STATE_DISCONNECTED, session.getConnectionState());
+        assertEquals(PeerCache.OUTCOME_FAILED, session.getOutcome());
+        assertEquals(0, client.getConnectedDevices().size());
+    }
+
+    @Test
+    public void reportedFailureDoesNotExpire() {
+        // The remote node has no GATT server, so the connection fails at once
+        GattClientSession session = session();
+        assertTrue(session.connect());
+        radio.runFor(2 * GattClientSession.DEFAULT_CONNECT_TIMEOUT);
+
+        assertEquals(1, closed);
+        assertEquals(-1, session.getExpiredPhase());
+    }
+
+    /* Server on the remote node serving a value differing from the one of the client */
+    private BLEAdvertising advertise(final boolean shareNetwork) {
+        final BLEAdvertising advertising = new BLEAdvertising(radio.getNode("00:00:00:00:00:02"));
+        advertising.setNotifier(new AdvertisementNotifier() {
+            @Override
+            public void advertiserPeerDifferentStatus(String topic, byte[] value, String peerInfo) {
+                if (shareNetwork) {
+                    advertising.notifyNetworkInformation("network", "pass");
+                } else {
+                    advertising.notifyEmptyValue();
+                }
+            }
+
+            @Override
+            public void advertiserPeerSameStatus() {
+                advertising.notifyEmptyValue();
+            }
+        });
+        advertising.addAdvertisingInfo("topic", "v1");
+        return advertising;
+    }
+
+    private GattClientSession exchange(String password) {
+        radio.runFor(100);
+        TopicRegistry topics = new TopicRegistry();
+        topics.put("topic", "v2");
+        GattClientSession session = new GattClientSession(client, "00:00:00:00:00:02", null, SERVICE,
+                topics.snapshot(), "peer", password, listener);
+        assertTrue(session.connect());
+        radio.runFor(GattClientSession.DEFAULT_CONNECT_TIMEOUT);
+        return session;
+    }
+
+    @Test
+    public void differentStatusWithoutInformationIsSameStatus() {
+        // The server application has no network to share, as answered to the per-topic writes
+        advertise(false).start(SERVICE_ID, "server");
+        GattClientSession session = exchange(null);
+
+        assertEquals(1, closed);
+        assertEquals(-1, session.getExpiredPhase());
+        assertEquals(1, sameStatus);
+        assertEquals(0, differentStatus);
+        assertEquals(PeerCache.OUTCOME_SAME_STATUS, session.getOutcome());
+        assertEquals(1, session.getCommonTopics());
+    }
+
+    @Test
+    public void unreadableInformationIsNotInSync() {
+        BLEAdvertising advertising = advertise(true);
+        advertising.setPassword("server");
+        advertising.start(SERVICE_ID, "server");
+        GattClientSession session = exchange("client");
+
+        assertEquals(1, closed);
+        assertEquals(0, sameStatus);
+        assertEquals(0, differentStatus);
+        assertEquals(PeerCache.OUTCOME_FAILED, session.getOutcome());
+        assertEquals(1, session.getCommonTopics());
+    }
+}
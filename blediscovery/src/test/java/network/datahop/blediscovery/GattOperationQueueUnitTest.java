@@ -0,0 +1,229 @@
+package network.datahop.blediscovery;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class GattOperationQueueUnitTest {
+
+    private static final UUID A = UUID.nameUUIDFromBytes("a".getBytes());
+    private static final UUID B = UUID.nameUUIDFromBytes("b".getBytes());
+    private static final long TIMEOUT = 1000;
+    private static final long BACKOFF = 100;
+
+    private SimulatedRadio radio;
+    private RecordingLink link;
+    private GattOperationQueue queue;
+    private int drained;
+    private GattOperationQueue.Operation failed;
+
+    /* Link recording the operations started, completed by the test */
+    private static class RecordingLink implements GattClientLink {
+        final List<String> started = new ArrayList<>();
+        boolean accept = true;
+
+        @Override
+        public String getAddress() {
+            return "00:00:00:00:00:02";
+        }
+
+        @Override
+        public String getName() {
+            return null;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return true;
+        }
+
+        @Override
+        public List<UUID> getCharacteristics() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean hasDescriptor(UUID characteristic, UUID descriptor) {
+            return true;
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(UUID characteristic, boolean enable) {
+            return true;
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID characteristic, byte[] value) {
+            started.add(A.equals(characteristic) ? "write a" : "write b");
+            return accept;
+        }
+
+        @Override
+        public boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value) {
+            started.add("descriptor");
+            return accept;
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID characteristic) {
+            started.add("read");
+            return accept;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            started.add("mtu");
+            return accept;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        radio = new SimulatedRadio(1);
+        SimulatedTransport transport = radio.addNode("00:00:00:00:00:01", 0, 0);
+        link = new RecordingLink();
+        queue = new GattOperationQueue(link, transport, new GattOperationQueue.Callback() {
+            @Override
+            public void onQueueDrained() {
+                drained++;
+            }
+
+            @Override
+            public void onOperationFailed(GattOperationQueue.Operation operation) {
+                failed = operation;
+            }
+        }, TIMEOUT, BACKOFF, 3);
+    }
+
+    @Test
+    public void operationsRunOneAtATime() {
+        queue.enqueueAll(Arrays.asList(
+                GattOperationQueue.Operation.writeDescriptor(A, Constants.CLIENT_CONFIGURATION_DESCRIPTOR_UUID,
+                        Constants.ENABLE_NOTIFICATION_VALUE),
+                GattOperationQueue.Operation.requestMtu(512),
+                GattOperationQueue.Operation.write(A, new byte[]{1}, true),
+                GattOperationQueue.Operation.write(B, new byte[]{2}, false)));
+        assertEquals(Arrays.asList("descriptor"), link.started);
+        assertEquals(4, queue.size());
+
+        // Completions of other operations are ignored
+        queue.onCharacteristicWrite(A, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(1, link.started.size());
+
+        queue.onDescriptorWrite(Constants.CLIENT_CONFIGURATION_DESCRIPTOR_UUID, BluetoothGatt.GATT_SUCCESS);
+        // A failed MTU negotiation still completes the request
+        queue.onMtuChanged(23, BluetoothGatt.GATT_FAILURE);
+        assertEquals(Arrays.asList("descriptor", "mtu", "write a"), link.started);
+
+        // The write waits for the notification replying to it
+        queue.onCharacteristicWrite(A, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(3, link.started.size());
+        queue.onCharacteristicChanged(A);
+        assertEquals("write b", link.started.get(3));
+
+        queue.onCharacteristicWrite(B, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(1, drained);
+        assertEquals(0, queue.size());
+        assertNull(failed);
+    }
+
+    @Test
+    public void timedOutOperationIsRetried() {
+        queue.enqueue(GattOperationQueue.Operation.write(A, new byte[]{1}, false));
+        radio.runFor(TIMEOUT - 1);
+        assertEquals(1, link.started.size());
+
+        // Retried after the backoff
+        radio.runFor(1 + BACKOFF - 1);
+        assertEquals(1, link.started.size());
+        radio.runFor(1);
+        assertEquals(2, link.started.size());
+
+        queue.onCharacteristicWrite(A, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(1, drained);
+        assertNull(failed);
+    }
+
+    @Test
+    public void acknowledgedWriteIsNotWrittenAgain() {
+        queue.enqueue(GattOperationQueue.Operation.write(A, new byte[]{1}, true));
+        queue.onCharacteristicWrite(A, BluetoothGatt.GATT_SUCCESS);
+
+        // The server application takes longer than the timeout to reply
+        radio.runFor(10 * TIMEOUT);
+        assertEquals(1, link.started.size());
+        assertEquals(1, queue.size());
+
+        queue.onCharacteristicChanged(A);
+        assertEquals(1, drained);
+        assertNull(failed);
+    }
+
+    @Test
+    public void queueFailsAfterMaxAttempts() {
+        link.accept = false;
+        queue.enqueue(GattOperationQueue.Operation.write(A, new byte[]{1}, false));
+        queue.enqueue(GattOperationQueue.Operation.write(B, new byte[]{2}, false));
+
+        // Refused at once, then retried after 100 and 200 ms
+        radio.runFor(BACKOFF + 2 * BACKOFF);
+        assertEquals(Arrays.asList("write a", "write a", "write a"), link.started);
+        assertEquals(A, failed.getUuid());
+        // The operations after the failed one are dropped
+        assertEquals(0, queue.size());
+        assertEquals(0, drained);
+
+        radio.runFor(10 * TIMEOUT);
+        assertEquals(3, link.started.size());
+    }
+
+    @Test
+    public void writeFailuresAreRetried() {
+        queue.enqueue(GattOperationQueue.Operation.write(A, new byte[]{1}, false));
+        queue.onCharacteristicWrite(A, BluetoothGatt.GATT_FAILURE);
+        assertEquals(1, link.started.size());
+        radio.runFor(BACKOFF);
+        assertEquals(2, link.started.size());
+        queue.onCharacteristicWrite(A, BluetoothGatt.GATT_FAILURE);
+        radio.runFor(2 * BACKOFF);
+        queue.onCharacteristicWrite(A, BluetoothGatt.GATT_FAILURE);
+
+        assertEquals(3, link.started.size());
+        assertEquals(A, failed.getUuid());
+    }
+
+    @Test
+    public void closeDropsPendingOperations() {
+        queue.enqueue(GattOperationQueue.Operation.write(A, new byte[]{1}, false));
+        queue.enqueue(GattOperationQueue.Operation.write(B, new byte[]{2}, false));
+        queue.close();
+        assertEquals(0, queue.size());
+
+        // Neither the timeout nor late completions start anything
+        radio.runFor(10 * TIMEOUT);
+        queue.onCharacteristicWrite(A, BluetoothGatt.GATT_SUCCESS);
+        queue.enqueue(GattOperationQueue.Operation.write(B, new byte[]{2}, false));
+        assertEquals(1, link.started.size());
+        assertEquals(0, drained);
+        assertNull(failed);
+    }
+}
@@ -0,0 +1,136 @@
+package network.datahop.blediscovery;
+
+import android.bluetooth.BluetoothProfile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class GattServerCallbackUnitTest {
+
+    private static final UUID TOPIC = TopicRegistry.topic("topic").getUuid();
+
+    private SimulatedRadio radio;
+    private GattServerCallback server;
+    private int differentStatus;
+
+    @Before
+    public void setUp() {
+        radio = new SimulatedRadio(1);
+        SimulatedTransport transport = radio.addNode("00:00:00:00:00:01", 0, 0);
+        TopicRegistry registry = new TopicRegistry();
+        registry.put("topic", "v1");
+        server = new GattServerCallback("datahop-test", registry.snapshot(), transport, new DiscoveryListener() {
+            @Override
+            public void sameStatusDiscovered(UUID characteristic) {
+            }
+
+            @Override
+            public void differentStatusDiscovered(byte[] value, UUID characteristic, String peerId) {
+                differentStatus++;
+            }
+        });
+        server.setServer(transport.openServer(server));
+    }
+
+    /* Topic write waiting for the reply of the listener */
+    private void write(String device) {
+        server.onCharacteristicWriteRequest(device, 1, TOPIC, false, true, 0,
+                WireCodec.encodeLegacyTopic(WireCodec.utf8("v2"), WireCodec.utf8("peer")));
+        radio.runFor(100);
+    }
+
+    /* Exchange frame with a value differing from the served one */
+    private void exchange(String device) {
+        server.onCharacteristicWriteRequest(device, 1, Constants.CHARACTERISTIC_DATAHOP_UUID, false, true, 0,
+                ExchangeFrame.encodeRequest(Collections.singletonMap(TOPIC, WireCodec.utf8("v2")), WireCodec.utf8("peer")));
+        radio.runFor(100);
+    }
+
+    @Test
+    public void connectedDevicesAreSnapshots() {
+        server.onConnectionStateChange("a", 0, BluetoothProfile.STATE_CONNECTED);
+        server.onConnectionStateChange("b", 0, BluetoothProfile.STATE_CONNECTED);
+        server.onConnectionStateChange("b", 0, BluetoothProfile.STATE_CONNECTED);
+
+        List<String> devices = server.getConnectedDevices();
+        assertEquals(2, devices.size());
+        // Disconnections while iterating leave the snapshot untouched
+        for (String device : devices) {
+            server.onConnectionStateChange(device, 0, BluetoothProfile.STATE_DISCONNECTED);
+        }
+        assertEquals(2, devices.size());
+        assertTrue(server.getConnectedDevices().isEmpty());
+    }
+
+    @Test
+    public void lateDescriptorWriteIsNotKept() {
+        server.onConnectionStateChange("a", 0, BluetoothProfile.STATE_CONNECTED);
+        server.onConnectionStateChange("a", 0, BluetoothProfile.STATE_DISCONNECTED);
+        // Notifications disabled by a write arriving after the disconnection
+        server.onDescriptorWriteRequest("a", 1, Constants.CHARACTERISTIC_DATAHOP_UUID,
+                Constants.CLIENT_CONFIGURATION_DESCRIPTOR_UUID, false, true, 0, new byte[]{0x00, 0x00});
+        assertTrue(server.getConnectedDevices().isEmpty());
+        assertEquals(0, server.getNotifications().getDevices());
+
+        // A new connection of the same device starts without the stale configuration
+        server.onConnectionStateChange("a", 0, BluetoothProfile.STATE_CONNECTED);
+        write("a");
+        server.reply(server.takeReply(), new byte[]{0x00});
+        assertEquals(1, server.getNotifications().getDevices());
+    }
+
+    @Test
+    public void replyToDisconnectedClientIsDropped() {
+        server.onConnectionStateChange("a", 0, BluetoothProfile.STATE_CONNECTED);
+        write("a");
+        server.onConnectionStateChange("a", 0, BluetoothProfile.STATE_DISCONNECTED);
+
+        PendingReplyLedger.Reply reply = server.takeReply();
+        assertEquals("a", reply.getDevice());
+        server.reply(reply, new byte[]{0x00});
+        assertEquals(0, server.getNotifications().getDevices());
+    }
+
+    @Test
+    public void takenReplyKeepsItsDevice() {
+        server.onConnectionStateChange("a", 0, BluetoothProfile.STATE_CONNECTED);
+        server.onConnectionStateChange("b", 0, BluetoothProfile.STATE_CONNECTED);
+        write("a");
+        PendingReplyLedger.Reply reply = server.takeReply();
+        assertEquals(GattServerCallback.REPLY_TOPIC, GattServerCallback.getReplyKind(reply));
+
+        // Requests arriving and expiring while the value is encoded do not change the reply taken
+        write("b");
+        radio.runFor(PendingReplyLedger.DEFAULT_TTL);
+        server.reply(reply, new byte[]{0x00});
+        assertEquals(1, server.getNotifications().getDevices());
+        assertEquals(1, server.getNotifications().getSent("a") + server.getNotifications().getDepth("a"));
+        assertNull(server.takeReply());
+    }
+
+    @Test
+    public void resentExchangeFrameIsAnsweredOnce() {
+        server.onConnectionStateChange("a", 0, BluetoothProfile.STATE_CONNECTED);
+        exchange("a");
+        // Sent again by the client while the listener prepares its reply
+        radio.runFor(5000);
+        exchange("a");
+        assertEquals(1, differentStatus);
+        assertEquals(0, server.getNotifications().getSent("a") + server.getNotifications().getDepth("a"));
+
+        PendingReplyLedger.Reply reply = server.takeReply();
+        assertEquals(GattServerCallback.REPLY_EXCHANGE, GattServerCallback.getReplyKind(reply));
+        server.reply(reply, new byte[]{0x01});
+        assertEquals(1, server.getNotifications().getSent("a") + server.getNotifications().getDepth("a"));
+        assertNull(server.takeReply());
+    }
+}
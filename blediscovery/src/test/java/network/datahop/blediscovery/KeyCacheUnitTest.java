@@ -0,0 +1,44 @@
+package network.datahop.blediscovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class KeyCacheUnitTest {
+
+    private static final byte[] SALT1 = {1, 2, 3};
+    private static final byte[] SALT2 = {4, 5, 6};
+
+    @Test
+    public void keyedByPasswordAndSalt() {
+        KeyCache cache = new KeyCache(4);
+        cache.put("password", SALT1, new byte[]{9, 9});
+        assertArrayEquals(new byte[]{9, 9}, cache.get("password", new byte[]{1, 2, 3}));
+        assertNull(cache.get("password", SALT2));
+        assertNull(cache.get("other", SALT1));
+    }
+
+    @Test
+    public void evictionWipesKey() {
+        KeyCache cache = new KeyCache(1);
+        byte[] key = {7, 7};
+        cache.put("password", SALT1, key);
+        cache.put("password", SALT2, new byte[]{8, 8});
+        assertEquals(1, cache.size());
+        assertNull(cache.get("password", SALT1));
+        // The caller keeps its own copy
+        assertArrayEquals(new byte[]{7, 7}, key);
+    }
+
+    @Test
+    public void sessionSaltDecrypts() {
+        byte[] salt = Encryption.generateSalt();
+        String first = Encryption.encrypt("network:pass:peer".getBytes(), "password", salt);
+        String second = Encryption.encrypt("network:pass:peer".getBytes(), "password", salt);
+        assertEquals("network:pass:peer", Encryption.decrypt(first, "password"));
+        assertEquals("network:pass:peer", Encryption.decrypt(second, "password"));
+    }
+}
@@ -0,0 +1,121 @@
+package network.datahop.blediscovery;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+public class NotificationQueueUnitTest {
+
+    private static final UUID CHARACTERISTIC = Constants.CHARACTERISTIC_DATAHOP_UUID;
+
+    private SimulatedRadio radio;
+    private NotificationQueue queue;
+    private final List<String> sent = new ArrayList<>();
+    private boolean busy;
+
+    @Before
+    public void setUp() {
+        radio = new SimulatedRadio(1);
+        queue = new NotificationQueue(radio.addNode("00:00:00:00:00:01", 0, 0), 3, 1000);
+        queue.setServer(new GattServerLink() {
+            @Override
+            public boolean addService(UUID serviceUuid, Map<UUID, Integer> characteristics) {
+                return true;
+            }
+
+            @Override
+            public boolean removeService(UUID serviceUuid) {
+                return true;
+            }
+
+            @Override
+            public boolean sendResponse(String device, int requestId, int status, int offset, byte[] value) {
+                return true;
+            }
+
+            @Override
+            public boolean notifyCharacteristicChanged(String device, UUID characteristic, byte[] value, boolean confirm) {
+                if (busy) return false;
+                sent.add(device + ":" + value[0]);
+                return true;
+            }
+
+            @Override
+            public void cancelConnection(String device) {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    @Test
+    public void oneNotificationInFlightPerDevice() {
+        queue.send("peer1", CHARACTERISTIC, new byte[]{1});
+        queue.send("peer1", CHARACTERISTIC, new byte[]{2});
+        queue.send("peer2", CHARACTERISTIC, new byte[]{3});
+        assertEquals(2, sent.size());
+        assertEquals(2, queue.getDepth("peer1"));
+
+        queue.onNotificationSent("peer1", BluetoothGatt.GATT_SUCCESS);
+        assertEquals("peer1:2", sent.get(2));
+        assertEquals(1, queue.getSent("peer1"));
+        assertEquals(1, queue.getDepth("peer1"));
+    }
+
+    @Test
+    public void failedNotificationIsRetried() {
+        queue.send("peer1", CHARACTERISTIC, new byte[]{1});
+        for (int i = 1; i < NotificationQueue.MAX_ATTEMPTS; i++) {
+            queue.onNotificationSent("peer1", BluetoothGatt.GATT_FAILURE);
+        }
+        assertEquals(NotificationQueue.MAX_ATTEMPTS, sent.size());
+        assertEquals(0, queue.getDropped("peer1"));
+        queue.onNotificationSent("peer1", BluetoothGatt.GATT_FAILURE);
+        assertEquals(1, queue.getDropped("peer1"));
+        assertEquals(0, queue.getDepth("peer1"));
+    }
+
+    @Test
+    public void busyStackIsRetriedUntilDeadline() {
+        busy = true;
+        queue.send("peer1", CHARACTERISTIC, new byte[]{1});
+        radio.runFor(100);
+        assertEquals(0, sent.size());
+        busy = false;
+        radio.runFor(100);
+        assertEquals(1, sent.size());
+
+        // Never reported as sent
+        radio.runFor(1000);
+        assertEquals(1, queue.getDropped("peer1"));
+
+        busy = true;
+        queue.send("peer1", CHARACTERISTIC, new byte[]{2});
+        radio.runFor(2000);
+        assertEquals(2, queue.getDropped("peer1"));
+    }
+
+    @Test
+    public void fullQueueDrops() {
+        for (int i = 0; i < 4; i++) {
+            queue.send("peer1", CHARACTERISTIC, new byte[]{(byte) i});
+        }
+        assertFalse(queue.send("peer1", CHARACTERISTIC, new byte[]{4}));
+        assertEquals(2, queue.getDropped("peer1"));
+        queue.remove("peer1");
+        assertEquals(0, queue.getDepth("peer1"));
+        assertEquals(5, queue.getDropped());
+    }
+}
@@ -0,0 +1,72 @@
+package network.datahop.blediscovery;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class PeerCacheUnitTest {
+
+    private static final byte[] LOCAL = {1, 2, 3};
+    private static final byte[] REMOTE = {4, 5, 6};
+
+    private long now;
+    private PeerCache cache;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        cache = new PeerCache(new Clock() {
+            @Override
+            public long now() {
+                return now;
+            }
+        }, 2, 1000);
+    }
+
+    @Test
+    public void sameStatusPeerIsInSync() {
+        cache.record("peer1", LOCAL, REMOTE, PeerCache.OUTCOME_SAME_STATUS);
+        assertTrue(cache.isInSync("peer1", LOCAL, REMOTE));
+        assertFalse(cache.isInSync("peer2", LOCAL, REMOTE));
+    }
+
+    @Test
+    public void changesOnEitherSideInvalidate() {
+        cache.record("peer1", LOCAL, REMOTE, PeerCache.OUTCOME_SAME_STATUS);
+        assertFalse(cache.isInSync("peer1", new byte[]{9}, REMOTE));
+        assertFalse(cache.isInSync("peer1", LOCAL, new byte[]{9}));
+    }
+
+    @Test
+    public void failedOrDifferentPeersAreContactedAgain() {
+        cache.record("peer1", LOCAL, REMOTE, PeerCache.OUTCOME_FAILED);
+        cache.record("peer2", LOCAL, REMOTE, PeerCache.OUTCOME_DIFFERENT_STATUS);
+        assertFalse(cache.isInSync("peer1", LOCAL, REMOTE));
+        assertFalse(cache.isInSync("peer2", LOCAL, REMOTE));
+    }
+
+    @Test
+    public void entriesExpire() {
+        cache.record("peer1", LOCAL, null, PeerCache.OUTCOME_SAME_STATUS);
+        now = 999;
+        assertTrue(cache.isInSync("peer1", LOCAL, null));
+        now = 1000;
+        assertFalse(cache.isInSync("peer1", LOCAL, null));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        cache.record("peer1", LOCAL, REMOTE, PeerCache.OUTCOME_SAME_STATUS);
+        cache.record("peer2", LOCAL, REMOTE, PeerCache.OUTCOME_SAME_STATUS);
+        assertTrue(cache.isInSync("peer1", LOCAL, REMOTE));
+        cache.record("peer3", LOCAL, REMOTE, PeerCache.OUTCOME_SAME_STATUS);
+        assertEquals(2, cache.size());
+        assertTrue(cache.isInSync("peer1", LOCAL, REMOTE));
+        assertFalse(cache.isInSync("peer2", LOCAL, REMOTE));
+    }
+}
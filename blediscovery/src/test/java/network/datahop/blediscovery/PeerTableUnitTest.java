@@ -0,0 +1,126 @@
+package network.datahop.blediscovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class PeerTableUnitTest {
+
+    private static String address(int i) {
+        return String.format("02:00:00:%02X:%02X:%02X", i >> 16 & 0xff, i >> 8 & 0xff, i & 0xff);
+    }
+
+    @Test
+    public void addressesArePacked() {
+        assertEquals(0xAABBCCDDEEFFL, PeerTable.pack("AA:BB:CC:DD:EE:FF"));
+        assertEquals(0xAABBCCDDEEFFL, PeerTable.pack("aa:bb:cc:dd:ee:ff"));
+        assertEquals(1, PeerTable.pack("00:00:00:00:00:01"));
+        assertEquals(-1, PeerTable.pack("00:00:00:00:00"));
+        assertEquals(-1, PeerTable.pack("00-00-00-00-00-01"));
+        assertEquals(-1, PeerTable.pack("00:00:00:00:00:0G"));
+        assertEquals(-1, PeerTable.pack(null));
+    }
+
+    @Test
+    public void peersAreUpdatedInPlace() {
+        PeerTable table = new PeerTable(4);
+        long a = PeerTable.pack(address(1));
+        int slot = table.update(a, address(1), -70, null, 100, 0);
+        assertEquals(slot, table.update(a, address(1), -60, new byte[]{1}, 200, 0));
+        assertEquals(1, table.size());
+        assertEquals(-60, table.getRssi(slot));
+        assertEquals(100, table.getFirstSeen(slot));
+        assertEquals(200, table.getLastSeen(slot));
+        assertEquals(address(1), table.getName(slot));
+        assertEquals(a, table.getAddress(slot));
+        assertEquals(PeerTable.STATE_IDLE, table.getState(slot));
+        assertEquals(-1, table.find(PeerTable.pack(address(2))));
+    }
+
+    @Test
+    public void newPeersAreTrackedPerCycle() {
+        PeerTable table = new PeerTable(4);
+        long a = PeerTable.pack(address(1));
+        int slot = table.update(a, address(1), -70, null, 0, 0);
+        assertTrue(table.isNewIn(slot, 0));
+        table.update(a, address(1), -70, null, 0, 1);
+        assertTrue(table.seenIn(slot, 1));
+        assertFalse(table.isNewIn(slot, 1));
+        // Back after missing a cycle
+        table.update(a, address(1), -70, null, 0, 3);
+        assertTrue(table.isNewIn(slot, 3));
+        assertFalse(table.seenIn(slot, 2));
+    }
+
+    @Test
+    public void tableGrowsAndRemovesWithoutLosingPeers() {
+        PeerTable table = new PeerTable(4);
+        for (int i = 0; i < 1000; i++) {
+            int slot = table.update(PeerTable.pack(address(i)), address(i), -i % 100, null, i, 0);
+            table.setPending(slot, i % 2 == 0);
+        }
+        assertEquals(1000, table.size());
+        for (int i = 0; i < 1000; i += 3) {
+            assertTrue(table.remove(PeerTable.pack(address(i))));
+        }
+        assertFalse(table.remove(PeerTable.pack(address(0))));
+        for (int i = 0; i < 1000; i++) {
+            int slot = table.find(PeerTable.pack(address(i)));
+            if (i % 3 == 0) {
+                assertEquals(-1, slot);
+            } else {
+                assertEquals(address(i), table.getName(slot));
+                assertEquals(i % 2 == 0, table.isPending(slot));
+            }
+        }
+    }
+
+    @Test
+    public void repeatedFailuresTripTheBreaker() {
+        PeerTable table = new PeerTable(4);
+        int slot = table.update(PeerTable.pack(address(1)), address(1), -60, null, 0, 0);
+        for (int i = 1; i < PeerTable.BREAKER_THRESHOLD; i++) {
+            assertFalse(table.recordOutcome(slot, PeerCache.OUTCOME_FAILED, -1, 0));
+        }
+        // Busy servers neither count as failures nor reset the count
+        assertFalse(table.recordOutcome(slot, PeerCache.OUTCOME_BUSY, -1, 0));
+        assertFalse(table.isBlocked(slot, 0));
+
+        assertTrue(table.recordOutcome(slot, PeerCache.OUTCOME_FAILED, -1, 0));
+        assertTrue(table.isBlocked(slot, PeerTable.BREAKER_BACKOFF - 1));
+        assertFalse(table.isBlocked(slot, PeerTable.BREAKER_BACKOFF));
+
+        // A failed probe doubles the backoff, up to the maximum
+        long now = PeerTable.BREAKER_BACKOFF;
+        assertTrue(table.recordOutcome(slot, PeerCache.OUTCOME_FAILED, -1, now));
+        assertTrue(table.isBlocked(slot, now + 2 * PeerTable.BREAKER_BACKOFF - 1));
+        assertFalse(table.isBlocked(slot, now + 2 * PeerTable.BREAKER_BACKOFF));
+        for (int i = 0; i < 20; i++) {
+            table.recordOutcome(slot, PeerCache.OUTCOME_FAILED, -1, now);
+        }
+        assertFalse(table.isBlocked(slot, now + PeerTable.MAX_BREAKER_BACKOFF));
+
+        assertFalse(table.recordOutcome(slot, PeerCache.OUTCOME_SAME_STATUS, -1, now));
+        assertFalse(table.isBlocked(slot, now));
+        assertEquals(0, table.getConsecutiveFailures(slot));
+    }
+
+    @Test
+    public void pruneKeepsConnectedPeers() {
+        PeerTable table = new PeerTable(4);
+        for (int i = 0; i < 100; i++) {
+            table.update(PeerTable.pack(address(i)), address(i), -50, null, i, 0);
+        }
+        table.setState(table.find(PeerTable.pack(address(10))), PeerTable.STATE_CONNECTED);
+
+        assertEquals(49, table.prune(50));
+        assertEquals(51, table.size());
+        assertTrue(table.find(PeerTable.pack(address(10))) >= 0);
+        for (int i = 50; i < 100; i++) {
+            assertTrue(table.find(PeerTable.pack(address(i))) >= 0);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package network.datahop.blediscovery;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class PendingReplyLedgerUnitTest {
+
+    private static final UUID TOPIC1 = UUID.nameUUIDFromBytes("topic1".getBytes());
+    private static final UUID TOPIC2 = UUID.nameUUIDFromBytes("topic2".getBytes());
+
+    private long now;
+    private final List<Object> dropped = new ArrayList<>();
+    private PendingReplyLedger ledger;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        ledger = new PendingReplyLedger(new Clock() {
+            @Override
+            public long now() {
+                return now;
+            }
+        }, 3, 1000, new PendingReplyLedger.Listener() {
+            @Override
+            public void onDropped(PendingReplyLedger.Reply reply) {
+                dropped.add(reply.getTag());
+            }
+        });
+    }
+
+    @Test
+    public void repliesAreRoutedInArrivalOrder() {
+        assertNull(ledger.add("peer1", TOPIC1, null));
+        assertNull(ledger.add("peer2", TOPIC1, null));
+        assertNull(ledger.add("peer1", TOPIC2, null));
+        assertEquals("peer1", ledger.peek().getDevice());
+        assertEquals("peer1", ledger.poll().getDevice());
+        assertEquals("peer2", ledger.poll().getDevice());
+        PendingReplyLedger.Reply last = ledger.poll();
+        assertEquals("peer1", last.getDevice());
+        assertEquals(TOPIC2, last.getTopic());
+        assertNull(ledger.poll());
+    }
+
+    @Test
+    public void repeatedRequestSupersedesPendingReply() {
+        assertNull(ledger.add("peer1", TOPIC1, "first"));
+        assertNull(ledger.add("peer2", TOPIC1, "other"));
+        assertEquals("first", ledger.add("peer1", TOPIC1, "second").getTag());
+        assertEquals(2, ledger.size());
+        // Handed back to the caller, not dropped
+        assertTrue(dropped.isEmpty());
+        // Keeps its place in the queue
+        assertEquals("second", ledger.poll().getTag());
+    }
+
+    @Test
+    public void unansweredRepliesExpire() {
+        ledger.add("peer1", TOPIC1, "old");
+        now = 600;
+        ledger.add("peer2", TOPIC1, "new");
+        now = 1000;
+        assertEquals("new", ledger.peek().getTag());
+        assertEquals(1, ledger.size());
+        assertEquals("old", dropped.get(0));
+        now = 1600;
+        assertNull(ledger.poll());
+        assertEquals(2, dropped.size());
+    }
+
+    @Test
+    public void eldestReplyIsEvictedWhenFull() {
+        for (int i = 0; i < 5; i++) {
+            ledger.add("peer" + i, TOPIC1, i);
+        }
+        assertEquals(3, ledger.size());
+        assertEquals(2, dropped.size());
+        assertEquals(2, ledger.poll().getTag());
+    }
+}
@@ -0,0 +1,109 @@
+package network.datahop.blediscovery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class ScanResultBufferUnitTest {
+
+    private final List<String> delivered = new ArrayList<>();
+    private final List<Integer> rssis = new ArrayList<>();
+    private final List<byte[]> data = new ArrayList<>();
+
+    private final ScanResultBuffer.Consumer consumer = new ScanResultBuffer.Consumer() {
+        @Override
+        public void onScanResult(String address, int rssi, byte[] serviceData) {
+            delivered.add(address);
+            rssis.add(rssi);
+            data.add(serviceData);
+        }
+    };
+
+    @Test
+    public void batchIsMergedAndRanked() {
+        ScanResultBuffer buffer = new ScanResultBuffer(8);
+        buffer.offer("a", -80, new byte[]{1});
+        buffer.offer("b", -60, null);
+        buffer.offer("a", -70, null);
+        buffer.offer("c", -90, new byte[]{3});
+        buffer.offer("a", -75, new byte[]{2});
+
+        assertEquals(3, buffer.drain(consumer));
+        assertEquals("b", delivered.get(0));
+        assertEquals("a", delivered.get(1));
+        assertEquals("c", delivered.get(2));
+        // Strongest RSSI and latest service data of the device
+        assertEquals(Integer.valueOf(-70), rssis.get(1));
+        assertArrayEquals(new byte[]{2}, data.get(1));
+        assertEquals(2, buffer.getDuplicates());
+        assertFalse(buffer.hasPending());
+
+        // The next batch starts empty
+        buffer.offer("a", -50, null);
+        assertEquals(1, buffer.drain(consumer));
+        assertEquals(0, buffer.getDropped());
+    }
+
+    @Test
+    public void overflowsAreCounted() {
+        ScanResultBuffer buffer = new ScanResultBuffer(3);
+        assertEquals(4, buffer.getCapacity());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, buffer.offer("d" + i, -i, null));
+        }
+        assertEquals(2, buffer.getOverflows());
+        assertEquals(4, buffer.drain(consumer));
+        assertTrue(buffer.offer("d", 0, null));
+        assertEquals(0, buffer.drain(null));
+        assertEquals(1, buffer.getDropped());
+    }
+
+    @Test
+    public void concurrentProducersLoseNothingButOverflows() throws InterruptedException {
+        final ScanResultBuffer buffer = new ScanResultBuffer(64);
+        final int producers = 4;
+        final int results = 20000;
+        final AtomicInteger running = new AtomicInteger(producers);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final String prefix = "p" + p + "-";
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < results; i++) {
+                        buffer.offer(prefix + i, -i % 100, null);
+                    }
+                    running.decrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        final int[] consumed = new int[1];
+        ScanResultBuffer.Consumer counter = new ScanResultBuffer.Consumer() {
+            @Override
+            public void onScanResult(String address, int rssi, byte[] serviceData) {
+                consumed[0]++;
+            }
+        };
+        while (running.get() > 0 || buffer.hasPending()) {
+            buffer.drain(counter);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        buffer.drain(counter);
+
+        // Addresses are unique, so every result is either delivered or counted as an overflow
+        assertEquals(0, buffer.getDuplicates());
+        assertEquals(producers * results, consumed[0] + buffer.getOverflows());
+    }
+}
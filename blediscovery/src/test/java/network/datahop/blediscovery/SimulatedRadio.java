@@ -0,0 +1,415 @@
+package network.datahop.blediscovery;
+
+import android.bluetooth.le.ScanSettings;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * In-memory radio shared by a set of {@link SimulatedTransport} nodes placed on a plane. Tasks posted by
+ * the nodes and radio events run in virtual time on the thread calling {@link #runFor(long)}.
+ * <ul>
+ * <li>Advertising: an advertiser in range of a scanner is heard after a random number of advertising
+ * intervals, each one heard with a probability given by the scan mode duty cycle, the packet loss and
+ * the collisions with the other advertisers in range.</li>
+ * <li>Connections: established after the connection latency plus a random jitter, failing with status 133
+ * when the peer is out of range, is not hosting a GATT server, has no free link or the request is lost.
+ * Links are dropped when the nodes move out of range.</li>
+ * <li>GATT: every ATT packet takes a connection interval, lost packets are retransmitted on the next
+ * connection event. Long writes are split in prepared writes according to the negotiated MTU and
+ * notifications are truncated to it.</li>
+ * </ul>
+ * Nodes are indexed in a grid of cells the size of the range, so neighbours are found in constant time.
+ */
+public class SimulatedRadio implements Clock {
+
+    public static final long ADVERTISING_INTERVAL = 100;
+    public static final long CONNECTION_INTERVAL = 30;
+    public static final long DEFAULT_CONNECTION_LATENCY = 100;
+    public static final int DEFAULT_MTU = 23;
+    public static final int DEFAULT_MAX_MTU = 247;
+    public static final int DEFAULT_MAX_LINKS = 7;
+    public static final int STATUS_CONNECTION_FAILED = 133;
+
+    /* Radio-on time estimates: advertising events on three channels, ATT packets with their
+     * connection event, connection setup, and empty connection events keeping a link alive */
+    public static final double ADVERTISING_DUTY = 0.02;
+    public static final double PACKET_TIME = 2.0;
+    public static final double CONNECTION_SETUP_TIME = 5.0;
+    public static final double LINK_DUTY = 0.5 / CONNECTION_INTERVAL;
+
+    static final class Event implements Comparable<Event> {
+        final long time;
+        final long seq;
+        final Runnable task;
+        final SimulatedTransport owner;
+        boolean cancelled;
+
+        Event(long time, long seq, Runnable task, SimulatedTransport owner) {
+            this.time = time;
+            this.seq = seq;
+            this.task = task;
+            this.owner = owner;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) return time < other.time ? -1 : 1;
+            return Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * Interface used to observe the advertisements heard by the scanners
+     */
+    public interface Listener {
+        void advertisementHeard(SimulatedTransport scanner, SimulatedTransport advertiser);
+    }
+
+    private final Random random;
+    private final PriorityQueue<Event> events;
+    private final Map<String, SimulatedTransport> nodes;
+    private final Map<Long, List<SimulatedTransport>> cells;
+    private Listener listener;
+    private long now;
+    private long seq;
+
+    private double range = 30;
+    private long connectionLatency = DEFAULT_CONNECTION_LATENCY;
+    private int maxMtu = DEFAULT_MAX_MTU;
+    private int maxLinks = DEFAULT_MAX_LINKS;
+    private double packetLoss;
+    private double contention;
+    private double unresponsive;
+
+    private long advertisementsHeard;
+    private long connectionAttempts;
+    private long connectionFailures;
+    private long packets;
+    private long notifications;
+
+    /**
+     * SimulatedRadio class constructor
+     * @param seed seed of the random source, runs with the same seed are identical
+     */
+    public SimulatedRadio(long seed) {
+        this.random = new Random(seed);
+        this.events = new PriorityQueue<>();
+        this.nodes = new LinkedHashMap<>();
+        this.cells = new HashMap<>();
+    }
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    /**
+     * @param range maximum distance between two nodes able to hear each other, set before adding nodes
+     */
+    public void setRange(double range) {
+        if (!nodes.isEmpty()) {
+            throw new IllegalStateException("Range must be set before adding nodes");
+        }
+        this.range = range;
+    }
+
+    /**
+     * @param connectionLatency mean time in ms to establish a connection
+     */
+    public void setConnectionLatency(long connectionLatency) {
+        this.connectionLatency = connectionLatency;
+    }
+
+    /**
+     * @param maxMtu largest MTU accepted by the nodes
+     */
+    public void setMaxMtu(int maxMtu) {
+        this.maxMtu = maxMtu;
+    }
+
+    /**
+     * @param maxLinks maximum number of client and server links open at the same time on a node
+     */
+    public void setMaxLinks(int maxLinks) {
+        this.maxLinks = maxLinks;
+    }
+
+    /**
+     * @param packetLoss probability of losing any single packet, between 0 and 1
+     */
+    public void setPacketLoss(double packetLoss) {
+        this.packetLoss = packetLoss;
+    }
+
+    /**
+     * @param contention probability that an advertisement collides with each other advertiser in range
+     */
+    public void setContention(double contention) {
+        this.contention = contention;
+    }
+
+    /**
+     * @param unresponsive probability that the stack never reports the result of a connection attempt
+     */
+    public void setUnresponsive(double unresponsive) {
+        this.unresponsive = unresponsive;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public int getMaxMtu() {
+        return maxMtu;
+    }
+
+    int getMaxLinks() {
+        return maxLinks;
+    }
+
+    /**
+     * Adds a node to the radio
+     * @param address node address
+     * @param x node position
+     * @param y node position
+     * @return transport of the node
+     */
+    public SimulatedTransport addNode(String address, double x, double y) {
+        SimulatedTransport node = new SimulatedTransport(this, address, nodes.size(), x, y);
+        nodes.put(address, node);
+        cell(node.getCell()).add(node);
+        return node;
+    }
+
+    public SimulatedTransport getNode(String address) {
+        return nodes.get(address);
+    }
+
+    public Collection<SimulatedTransport> getNodes() {
+        return nodes.values();
+    }
+
+    /**
+     * Runs the events scheduled during the given virtual time
+     * @param duration time in ms
+     */
+    public void runFor(long duration) {
+        long end = now + duration;
+        while (!events.isEmpty() && events.peek().time <= end) {
+            Event event = events.poll();
+            if (event.cancelled) continue;
+            now = event.time;
+            if (event.owner != null) event.owner.taskStarted(event);
+            event.task.run();
+        }
+        now = end;
+    }
+
+    public boolean inRange(SimulatedTransport a, SimulatedTransport b) {
+        return a.distanceTo(b) <= range;
+    }
+
+    /**
+     * @return nodes in range of the given one, excluding itself
+     */
+    public List<SimulatedTransport> neighbours(SimulatedTransport node) {
+        List<SimulatedTransport> neighbours = new ArrayList<>(32);
+        long cell = node.getCell();
+        int cx = (int) (cell >> 32), cy = (int) cell;
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                List<SimulatedTransport> members = cells.get(cellKey(cx + dx, cy + dy));
+                if (members == null) continue;
+                for (SimulatedTransport other : members) {
+                    if (other != node && inRange(node, other)) neighbours.add(other);
+                }
+            }
+        }
+        return neighbours;
+    }
+
+    /**
+     * @return time in ms the scanner first heard the advertiser, or -1
+     */
+    public long getFirstSeen(String scanner, String advertiser) {
+        return nodes.get(scanner).getFirstHeard(nodes.get(advertiser));
+    }
+
+    public long getAdvertisementsHeard() {
+        return advertisementsHeard;
+    }
+
+    public long getConnectionAttempts() {
+        return connectionAttempts;
+    }
+
+    public long getConnectionFailures() {
+        return connectionFailures;
+    }
+
+    public long getPackets() {
+        return packets;
+    }
+
+    public long getNotifications() {
+        return notifications;
+    }
+
+    long cellKey(double x, double y) {
+        return cellKey((int) Math.floor(x / range), (int) Math.floor(y / range));
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    private List<SimulatedTransport> cell(long key) {
+        List<SimulatedTransport> members = cells.get(key);
+        if (members == null) {
+            members = new ArrayList<>();
+            cells.put(key, members);
+        }
+        return members;
+    }
+
+    /* Keeps the grid up to date, drops the links going out of range and lets the scanners hear
+     * the advertisers coming into range */
+    void moved(SimulatedTransport node, long previousCell) {
+        if (previousCell != node.getCell()) {
+            cell(previousCell).remove(node);
+            cell(node.getCell()).add(node);
+        }
+        node.dropLinksOutOfRange();
+        List<SimulatedTransport> neighbours = neighbours(node);
+        for (SimulatedTransport other : neighbours) {
+            scheduleHearing(node, other, neighbours.size());
+            scheduleHearing(other, node, neighbours.size());
+        }
+    }
+
+    void scanStarted(SimulatedTransport scanner) {
+        List<SimulatedTransport> neighbours = neighbours(scanner);
+        for (SimulatedTransport advertiser : neighbours) {
+            scheduleHearing(scanner, advertiser, neighbours.size());
+        }
+    }
+
+    void advertisingStarted(SimulatedTransport advertiser) {
+        List<SimulatedTransport> neighbours = neighbours(advertiser);
+        for (SimulatedTransport scanner : neighbours) {
+            scheduleHearing(scanner, advertiser, neighbours.size());
+        }
+    }
+
+    /* Schedules the first advertisement of the advertiser heard during the current scan of the scanner.
+     * Collisions are estimated from the number of nodes around, which is cheaper than counting the
+     * advertisers in range of each scanner */
+    private void scheduleHearing(final SimulatedTransport scanner, final SimulatedTransport advertiser, int crowd) {
+        if (scanner.getScannedService() == null || advertiser.getAdvertisedService() == null
+                || !scanner.getScannedService().equals(advertiser.getAdvertisedService())) {
+            return;
+        }
+        final int scan = scanner.getScanSession();
+        final int advertisement = advertiser.getAdvertisingSession();
+        if (!scanner.markScheduled(advertiser, advertisement)) return;
+
+        double p = dutyCycle(scanner.getScanMode()) * (1 - packetLoss);
+        if (contention > 0) {
+            p *= Math.pow(1 - contention, Math.max(0, crowd - 1));
+        }
+        if (p <= 0) return;
+        long intervals = p >= 1 ? 1 : 1 + (long) Math.floor(Math.log(1 - random.nextDouble()) / Math.log(1 - p));
+        long delay = (long) ((intervals - random.nextDouble()) * ADVERTISING_INTERVAL);
+        schedule(delay, new Runnable() {
+            @Override
+            public void run() {
+                if (scanner.getScanSession() != scan || advertiser.getAdvertisingSession() != advertisement
+                        || scanner.getScannedService() == null || !inRange(scanner, advertiser)) {
+                    return;
+                }
+                advertisementsHeard++;
+                scanner.heard(advertiser, now);
+                if (listener != null) listener.advertisementHeard(scanner, advertiser);
+                scanner.deliverScanResult(advertiser, rssi(scanner.distanceTo(advertiser)));
+            }
+        });
+    }
+
+    Event schedule(long delay, Runnable task) {
+        return schedule(delay, task, null);
+    }
+
+    Event schedule(long delay, Runnable task, SimulatedTransport owner) {
+        Event event = new Event(now + Math.max(0, delay), seq++, task, owner);
+        events.add(event);
+        return event;
+    }
+
+    boolean unresponsive() {
+        return unresponsive > 0 && random.nextDouble() < unresponsive;
+    }
+
+    boolean lost() {
+        return packetLoss > 0 && random.nextDouble() < packetLoss;
+    }
+
+    /* Time to get the given number of ATT packets across, retransmitting the lost ones */
+    long transfer(SimulatedTransport a, SimulatedTransport b, int count) {
+        long delay = 0;
+        int sent = 0;
+        for (int i = 0; i < count; i++) {
+            delay += CONNECTION_INTERVAL;
+            sent++;
+            while (lost()) {
+                delay += CONNECTION_INTERVAL;
+                sent++;
+            }
+        }
+        packets += count;
+        a.addRadioOnTime(sent * PACKET_TIME);
+        b.addRadioOnTime(sent * PACKET_TIME);
+        return delay;
+    }
+
+    long connectionDelay(SimulatedTransport node) {
+        connectionAttempts++;
+        node.addRadioOnTime(CONNECTION_SETUP_TIME);
+        return connectionLatency + (long) (random.nextDouble() * connectionLatency);
+    }
+
+    void connectionFailed() {
+        connectionFailures++;
+    }
+
+    void notificationSent() {
+        notifications++;
+    }
+
+    /* Log-distance path loss with -59 dBm at one metre */
+    private static int rssi(double distance) {
+        return (int) Math.round(-59 - 20 * Math.log10(Math.max(1, distance)));
+    }
+
+    /**
+     * @return fraction of the time the controller listens in each scan mode
+     */
+    public static double dutyCycle(int scanMode) {
+        switch (scanMode) {
+            case ScanSettings.SCAN_MODE_LOW_LATENCY:
+                return 1.0;
+            case ScanSettings.SCAN_MODE_BALANCED:
+                return 0.25;
+            case ScanSettings.SCAN_MODE_LOW_POWER:
+                return 0.1;
+            default:
+                return 0.05;
+        }
+    }
+}
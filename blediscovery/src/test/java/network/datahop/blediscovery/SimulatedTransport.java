@@ -0,0 +1,634 @@
+package network.datahop.blediscovery;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothProfile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * BleTransport of a node of a {@link SimulatedRadio}. Tasks and callbacks run in the virtual time of the radio.
+ */
+public class SimulatedTransport implements BleTransport {
+
+    /* Status reported by Android when the supervision timeout expires */
+    private static final int GATT_CONN_TIMEOUT = 8;
+
+    private final SimulatedRadio radio;
+    private final String address;
+    private final int index;
+    private double x, y;
+    private long cell;
+    private boolean enabled = true;
+
+    private final Map<Runnable, List<SimulatedRadio.Event>> tasks = new HashMap<>();
+
+    private UUID scannedService;
+    private int scanMode;
+    private ScanListener scanListener;
+    private int scanSession;
+    private long scanStart;
+    /* Advertising session of each advertiser whose first advertisement is scheduled in this scan */
+    private final Map<SimulatedTransport, Integer> scheduledHearings = new HashMap<>();
+    private final Map<SimulatedTransport, Long> firstHeard = new HashMap<>();
+
+    private UUID advertisedService;
+    private byte[] serviceData;
+    /* Changes whenever the advertised content changes, so scanners hear it again */
+    private int advertisingSession;
+    private long advertisingStart;
+
+    private double radioOnTime;
+    private int connectionAttempts;
+
+    private ServerLink server;
+    private final List<ClientLink> clientLinks = new ArrayList<>();
+
+    SimulatedTransport(SimulatedRadio radio, String address, int index, double x, double y) {
+        this.radio = radio;
+        this.address = address;
+        this.index = index;
+        this.x = x;
+        this.y = y;
+        this.cell = radio.cellKey(x, y);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return position of the node in the order it was added to the radio
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * Moves the node, dropping the links going out of range
+     */
+    public void setPosition(double x, double y) {
+        long previousCell = cell;
+        this.x = x;
+        this.y = y;
+        this.cell = radio.cellKey(x, y);
+        radio.moved(this, previousCell);
+    }
+
+    /**
+     * @return estimated time in ms the radio has been on, see the SimulatedRadio constants
+     */
+    public double getRadioOnTime() {
+        double total = radioOnTime;
+        if (scannedService != null) total += (radio.now() - scanStart) * SimulatedRadio.dutyCycle(scanMode);
+        if (advertisedService != null) total += (radio.now() - advertisingStart) * SimulatedRadio.ADVERTISING_DUTY;
+        return total;
+    }
+
+    /**
+     * @return number of connections initiated by the node
+     */
+    public int getConnectionAttempts() {
+        return connectionAttempts;
+    }
+
+    void addRadioOnTime(double time) {
+        radioOnTime += time;
+    }
+
+    long getCell() {
+        return cell;
+    }
+
+    int getScanSession() {
+        return scanSession;
+    }
+
+    int getAdvertisingSession() {
+        return advertisingSession;
+    }
+
+    /* Returns false if the advertisement is already scheduled during this scan */
+    boolean markScheduled(SimulatedTransport advertiser, int advertisingSession) {
+        Integer previous = scheduledHearings.put(advertiser, advertisingSession);
+        return previous == null || previous != advertisingSession;
+    }
+
+    void heard(SimulatedTransport advertiser, long time) {
+        if (!firstHeard.containsKey(advertiser)) firstHeard.put(advertiser, time);
+    }
+
+    long getFirstHeard(SimulatedTransport advertiser) {
+        Long time = firstHeard.get(advertiser);
+        return time != null ? time : -1;
+    }
+
+    int linkCount() {
+        int count = server != null ? server.clients.size() : 0;
+        for (ClientLink link : clientLinks) {
+            if (link.server != null) count++;
+        }
+        return count;
+    }
+
+    /* Links whose peer moved out of range are lost on the supervision timeout */
+    void dropLinksOutOfRange() {
+        for (ClientLink link : new ArrayList<>(clientLinks)) {
+            if (link.server != null && !radio.inRange(this, link.remote)) link.drop(GATT_CONN_TIMEOUT);
+        }
+        if (server != null) {
+            for (ClientLink link : new ArrayList<>(server.clients.values())) {
+                if (!radio.inRange(this, link.owner())) link.drop(GATT_CONN_TIMEOUT);
+            }
+        }
+    }
+
+    double distanceTo(SimulatedTransport other) {
+        double dx = x - other.x, dy = y - other.y;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    UUID getScannedService() {
+        return scannedService;
+    }
+
+    int getScanMode() {
+        return scanMode;
+    }
+
+    UUID getAdvertisedService() {
+        return advertisedService;
+    }
+
+    void deliverScanResult(SimulatedTransport advertiser, int rssi) {
+        byte[] data = advertiser.serviceData != null ? advertiser.serviceData.clone() : null;
+        scanListener.onScanResult(advertiser.address, rssi, data);
+    }
+
+    void taskStarted(SimulatedRadio.Event event) {
+        List<SimulatedRadio.Event> pending = tasks.get(event.task);
+        if (pending != null) {
+            pending.remove(event);
+            if (pending.isEmpty()) tasks.remove(event.task);
+        }
+    }
+
+    @Override
+    public Clock getClock() {
+        return radio;
+    }
+
+    /* The whole simulation runs on the thread driving the radio */
+    @Override
+    public boolean isEventThread() {
+        return true;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delay) {
+        List<SimulatedRadio.Event> pending = tasks.get(task);
+        if (pending == null) {
+            pending = new ArrayList<>();
+            tasks.put(task, pending);
+        }
+        pending.add(radio.schedule(delay, task, this));
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        List<SimulatedRadio.Event> pending = tasks.remove(task);
+        if (pending == null) return;
+        for (SimulatedRadio.Event event : pending) {
+            event.cancelled = true;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void enable() {
+        enabled = true;
+    }
+
+    @Override
+    public void disable() {
+        enabled = false;
+        stopScan();
+        stopAdvertising();
+    }
+
+    @Override
+    public boolean startScan(UUID serviceUuid, int scanMode, ScanListener listener) {
+        if (!enabled) return false;
+        stopScan();
+        this.scannedService = serviceUuid;
+        this.scanMode = scanMode;
+        this.scanListener = listener;
+        this.scanStart = radio.now();
+        radio.scanStarted(this);
+        return true;
+    }
+
+    @Override
+    public void stopScan() {
+        if (scannedService != null) {
+            radioOnTime += (radio.now() - scanStart) * SimulatedRadio.dutyCycle(scanMode);
+        }
+        scanSession++;
+        scheduledHearings.clear();
+        scannedService = null;
+        scanListener = null;
+    }
+
+    /* Scan results are delivered one at a time by the simulated radio, never buffered */
+    @Override
+    public long getScanOverflows() {
+        return 0;
+    }
+
+    @Override
+    public long getScanDuplicates() {
+        return 0;
+    }
+
+    @Override
+    public boolean startAdvertising(UUID serviceUuid, byte[] serviceData, AdvertiseListener listener) {
+        if (!enabled) return false;
+        stopAdvertising();
+        this.advertisedService = serviceUuid;
+        this.serviceData = serviceData != null ? serviceData.clone() : null;
+        this.advertisingStart = radio.now();
+        radio.advertisingStarted(this);
+        return true;
+    }
+
+    @Override
+    public boolean updateAdvertisingData(byte[] serviceData) {
+        if (advertisedService == null) return false;
+        this.serviceData = serviceData != null ? serviceData.clone() : null;
+        advertisingSession++;
+        radio.advertisingStarted(this);
+        return true;
+    }
+
+    @Override
+    public void stopAdvertising() {
+        if (advertisedService != null) {
+            radioOnTime += (radio.now() - advertisingStart) * SimulatedRadio.ADVERTISING_DUTY;
+        }
+        advertisingSession++;
+        advertisedService = null;
+        serviceData = null;
+    }
+
+    @Override
+    public GattClientLink connect(String address, UUID serviceUuid, GattClientLink.Callback callback) {
+        final SimulatedTransport remote = radio.getNode(address);
+        if (!enabled || remote == null) return null;
+        final ClientLink link = new ClientLink(remote, serviceUuid, callback);
+        clientLinks.add(link);
+        connectionAttempts++;
+        radio.schedule(radio.connectionDelay(this), new Runnable() {
+            @Override
+            public void run() {
+                if (link.dropped || radio.unresponsive()) return;
+                ServerLink remoteServer = remote.server;
+                if (remoteServer == null || !radio.inRange(SimulatedTransport.this, remote) || radio.lost()
+                        || linkCount() >= radio.getMaxLinks() || remote.linkCount() >= radio.getMaxLinks()) {
+                    radio.connectionFailed();
+                    link.drop(SimulatedRadio.STATUS_CONNECTION_FAILED);
+                    return;
+                }
+                link.server = remoteServer;
+                link.connectedAt = radio.now();
+                remoteServer.clients.put(SimulatedTransport.this.address, link);
+                remoteServer.callback.onConnectionStateChange(SimulatedTransport.this.address,
+                        BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+                if (!link.closed) link.callback.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+            }
+        });
+        return link;
+    }
+
+    @Override
+    public List<String> getConnectedDevices() {
+        List<String> devices = new ArrayList<>();
+        for (ClientLink link : clientLinks) {
+            if (link.server != null) devices.add(link.remote.address);
+        }
+        return devices;
+    }
+
+    @Override
+    public GattServerLink openServer(GattServerLink.Callback callback) {
+        if (!enabled) return null;
+        if (server != null) server.close();
+        server = new ServerLink(callback);
+        return server;
+    }
+
+    private static final class PendingRequest {
+        final ClientLink link;
+        final UUID characteristic;
+        final UUID descriptor;
+        final boolean read;
+
+        PendingRequest(ClientLink link, UUID characteristic, UUID descriptor, boolean read) {
+            this.link = link;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.read = read;
+        }
+    }
+
+    private final class ServerLink implements GattServerLink {
+
+        final GattServerLink.Callback callback;
+        final Map<UUID, Map<UUID, Integer>> services = new LinkedHashMap<>();
+        final Map<String, ClientLink> clients = new LinkedHashMap<>();
+        final Map<Integer, PendingRequest> requests = new HashMap<>();
+        int nextRequestId;
+        boolean closed;
+
+        ServerLink(GattServerLink.Callback callback) {
+            this.callback = callback;
+        }
+
+        int register(PendingRequest request) {
+            int requestId = nextRequestId++;
+            requests.put(requestId, request);
+            return requestId;
+        }
+
+        @Override
+        public boolean addService(UUID serviceUuid, Map<UUID, Integer> characteristics) {
+            if (closed) return false;
+            services.put(serviceUuid, new LinkedHashMap<>(characteristics));
+            return true;
+        }
+
+        @Override
+        public boolean removeService(UUID serviceUuid) {
+            return !closed && services.remove(serviceUuid) != null;
+        }
+
+        @Override
+        public boolean sendResponse(String device, int requestId, final int status, int offset, final byte[] value) {
+            final PendingRequest request = requests.remove(requestId);
+            if (request == null) return false;
+            radio.schedule(radio.transfer(SimulatedTransport.this, request.link.owner(), 1), new Runnable() {
+                @Override
+                public void run() {
+                    ClientLink link = request.link;
+                    if (!link.isActive()) return;
+                    if (request.read) {
+                        link.callback.onCharacteristicRead(request.characteristic, value, status);
+                    } else if (request.descriptor != null) {
+                        link.callback.onDescriptorWrite(request.characteristic, request.descriptor, status);
+                    } else {
+                        link.callback.onCharacteristicWrite(request.characteristic, status);
+                    }
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean notifyCharacteristicChanged(final String device, final UUID characteristic, byte[] value, boolean confirm) {
+            final ClientLink link = clients.get(device);
+            // Like on Android, the stack refuses a notification until the previous one is sent
+            if (link == null || value == null || link.notifying) return false;
+            // Notifications do not fragment, the payload is cut to the MTU like on Android
+            final byte[] payload = Arrays.copyOf(value, Math.min(value.length, link.mtu - 3));
+            radio.notificationSent();
+            link.notifying = true;
+            radio.schedule(radio.transfer(SimulatedTransport.this, link.owner(), 1), new Runnable() {
+                @Override
+                public void run() {
+                    link.notifying = false;
+                    if (link.isActive()) link.callback.onCharacteristicChanged(characteristic, payload);
+                    if (!closed) callback.onNotificationSent(device, BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public void cancelConnection(String device) {
+            final ClientLink link = clients.get(device);
+            if (link == null) return;
+            radio.schedule(SimulatedRadio.CONNECTION_INTERVAL, new Runnable() {
+                @Override
+                public void run() {
+                    link.drop(BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            if (server == this) server = null;
+            for (ClientLink link : new ArrayList<>(clients.values())) {
+                link.drop(BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+    }
+
+    private final class ClientLink implements GattClientLink {
+
+        final SimulatedTransport remote;
+        final UUID serviceUuid;
+        final GattClientLink.Callback callback;
+        ServerLink server;
+        Map<UUID, Integer> characteristics = Collections.emptyMap();
+        int mtu = SimulatedRadio.DEFAULT_MTU;
+        long connectedAt;
+        boolean closed, dropped;
+        /* A notification of the server to this client is in flight */
+        boolean notifying;
+
+        ClientLink(SimulatedTransport remote, UUID serviceUuid, GattClientLink.Callback callback) {
+            this.remote = remote;
+            this.serviceUuid = serviceUuid;
+            this.callback = callback;
+        }
+
+        SimulatedTransport owner() {
+            return SimulatedTransport.this;
+        }
+
+        boolean isActive() {
+            return server != null && !dropped && !closed;
+        }
+
+        /* Tears the connection down on both sides, the client is told unless it closed the link */
+        void drop(int status) {
+            if (dropped) return;
+            dropped = true;
+            clientLinks.remove(this);
+            ServerLink current = server;
+            server = null;
+            if (current != null) {
+                double linkTime = (radio.now() - connectedAt) * SimulatedRadio.LINK_DUTY;
+                addRadioOnTime(linkTime);
+                remote.addRadioOnTime(linkTime);
+                current.clients.remove(address);
+                if (!current.closed) {
+                    current.callback.onConnectionStateChange(address, status, BluetoothProfile.STATE_DISCONNECTED);
+                }
+            }
+            if (!closed) callback.onConnectionStateChange(status, BluetoothProfile.STATE_DISCONNECTED);
+        }
+
+        /* Sends a request to the server once its packets got across */
+        private boolean request(int count, final Runnable deliver) {
+            if (!isActive()) return false;
+            radio.schedule(radio.transfer(SimulatedTransport.this, remote, count), new Runnable() {
+                @Override
+                public void run() {
+                    if (isActive()) deliver.run();
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public String getAddress() {
+            return remote.address;
+        }
+
+        @Override
+        public String getName() {
+            return remote.address;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            if (!isActive()) return false;
+            radio.schedule(radio.transfer(SimulatedTransport.this, remote, 4), new Runnable() {
+                @Override
+                public void run() {
+                    if (!isActive()) return;
+                    Map<UUID, Integer> service = server.services.get(serviceUuid);
+                    characteristics = service != null ? new LinkedHashMap<>(service) : Collections.<UUID, Integer>emptyMap();
+                    callback.onServicesDiscovered(BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public List<UUID> getCharacteristics() {
+            return new ArrayList<>(characteristics.keySet());
+        }
+
+        @Override
+        public boolean hasDescriptor(UUID characteristic, UUID descriptor) {
+            Integer properties = characteristics.get(characteristic);
+            return properties != null && Constants.CLIENT_CONFIGURATION_DESCRIPTOR_UUID.equals(descriptor)
+                    && (properties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0;
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(UUID characteristic, boolean enable) {
+            return characteristics.containsKey(characteristic);
+        }
+
+        @Override
+        public boolean writeCharacteristic(final UUID characteristic, byte[] value) {
+            if (!characteristics.containsKey(characteristic)) return false;
+            final byte[] copy = value.clone();
+            final boolean prepared = copy.length > mtu - 3;
+            // Long writes go through prepare write requests plus an execute request
+            int count = prepared ? (copy.length + mtu - 6) / (mtu - 5) + 1 : 1;
+            return request(count, new Runnable() {
+                @Override
+                public void run() {
+                    int requestId = server.register(new PendingRequest(ClientLink.this, characteristic, null, false));
+                    server.callback.onCharacteristicWriteRequest(address, requestId, characteristic, prepared, true, 0, copy);
+                }
+            });
+        }
+
+        @Override
+        public boolean writeDescriptor(final UUID characteristic, final UUID descriptor, byte[] value) {
+            if (!hasDescriptor(characteristic, descriptor)) return false;
+            final byte[] copy = value.clone();
+            return request(1, new Runnable() {
+                @Override
+                public void run() {
+                    int requestId = server.register(new PendingRequest(ClientLink.this, characteristic, descriptor, false));
+                    server.callback.onDescriptorWriteRequest(address, requestId, characteristic, descriptor, false, true, 0, copy);
+                }
+            });
+        }
+
+        @Override
+        public boolean readCharacteristic(final UUID characteristic) {
+            final Integer properties = characteristics.get(characteristic);
+            if (properties == null) return false;
+            return request(1, new Runnable() {
+                @Override
+                public void run() {
+                    int requestId = server.register(new PendingRequest(ClientLink.this, characteristic, null, true));
+                    server.callback.onCharacteristicReadRequest(address, requestId, 0, characteristic, properties);
+                }
+            });
+        }
+
+        @Override
+        public boolean requestMtu(final int requested) {
+            if (!isActive()) return false;
+            radio.schedule(radio.transfer(SimulatedTransport.this, remote, 2), new Runnable() {
+                @Override
+                public void run() {
+                    if (!isActive()) return;
+                    mtu = Math.max(SimulatedRadio.DEFAULT_MTU, Math.min(requested, radio.getMaxMtu()));
+                    callback.onMtuChanged(mtu, BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+            if (dropped) return;
+            radio.schedule(SimulatedRadio.CONNECTION_INTERVAL, new Runnable() {
+                @Override
+                public void run() {
+                    drop(BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            disconnect();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package network.datahop.blediscovery;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class StatusDigestUnitTest {
+
+    private static UUID topic(String name) {
+        return UUID.nameUUIDFromBytes(name.getBytes());
+    }
+
+    @Test
+    public void digestIgnoresInsertionOrder() {
+        LinkedHashMap<UUID, String> a = new LinkedHashMap<>();
+        a.put(topic("topic1"), "value1");
+        a.put(topic("topic2"), "value2");
+        LinkedHashMap<UUID, String> b = new LinkedHashMap<>();
+        b.put(topic("topic2"), "value2");
+        b.put(topic("topic1"), "value1");
+
+        byte[] digest = StatusDigest.compute(a);
+        assertEquals(StatusDigest.DIGEST_LENGTH, digest.length);
+        assertArrayEquals(digest, StatusDigest.compute(b));
+        assertTrue(StatusDigest.matches(digest, StatusDigest.compute(b)));
+    }
+
+    @Test
+    public void digestChangesWithValues() {
+        HashMap<UUID, String> a = new HashMap<>();
+        a.put(topic("topic1"), "value1");
+        HashMap<UUID, String> b = new HashMap<>(a);
+        b.put(topic("topic1"), "value2");
+
+        assertFalse(StatusDigest.matches(StatusDigest.compute(a), StatusDigest.compute(b)));
+    }
+
+    @Test
+    public void missingDigestNeverMatches() {
+        HashMap<UUID, String> a = new HashMap<>();
+        a.put(topic("topic1"), "value1");
+
+        assertFalse(StatusDigest.matches(StatusDigest.compute(a), null));
+        assertFalse(StatusDigest.matches(StatusDigest.compute(a), new byte[]{0x00}));
+    }
+}
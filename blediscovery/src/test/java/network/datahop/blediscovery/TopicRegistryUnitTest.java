@@ -0,0 +1,63 @@
+package network.datahop.blediscovery;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class TopicRegistryUnitTest {
+
+    @Test
+    public void topicsAreInterned() {
+        TopicRegistry.Topic topic = TopicRegistry.topic("topic");
+        assertSame(topic, TopicRegistry.topic(new String("topic")));
+        assertEquals(UUID.nameUUIDFromBytes("topic".getBytes()), topic.getUuid());
+    }
+
+    @Test
+    public void versionChangesWithValues() {
+        TopicRegistry registry = new TopicRegistry();
+        assertEquals(0, registry.getVersion());
+        assertTrue(registry.put("topic", "v1"));
+        assertFalse(registry.put("topic", "v1"));
+        assertEquals(1, registry.getVersion());
+        assertTrue(registry.put("other", "v1"));
+        assertTrue(registry.put("topic", "v2"));
+        assertEquals(3, registry.getVersion());
+
+        TopicRegistry.Snapshot snapshot = registry.snapshot();
+        UUID topic = TopicRegistry.topic("topic").getUuid();
+        assertEquals(3, snapshot.get(topic).getVersion());
+        assertEquals(2, snapshot.get(TopicRegistry.topic("other").getUuid()).getVersion());
+        assertEquals("topic", snapshot.getName(topic));
+        assertArrayEquals("v2".getBytes(), snapshot.get(topic).getValueBytes());
+        assertNull(snapshot.get(UUID.nameUUIDFromBytes("missing".getBytes())));
+    }
+
+    @Test
+    public void snapshotsAreImmutable() {
+        TopicRegistry registry = new TopicRegistry();
+        registry.put("topic", "v1");
+        TopicRegistry.Snapshot before = registry.snapshot();
+        registry.put("topic", "v2");
+        UUID topic = TopicRegistry.topic("topic").getUuid();
+        assertEquals("v1", before.getValues().get(topic));
+        assertEquals("v2", registry.snapshot().getValues().get(topic));
+        assertArrayEquals(StatusDigest.compute(before.getValues()), before.getDigest());
+        assertFalse(StatusDigest.matches(before.getDigest(), registry.snapshot().getDigest()));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void valuesAreReadOnly() {
+        TopicRegistry registry = new TopicRegistry();
+        registry.put("topic", "v1");
+        registry.snapshot().getValues().clear();
+    }
+}
@@ -0,0 +1,76 @@
+package network.datahop.blediscovery;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class UpdateCoalescerUnitTest {
+
+    private SimulatedRadio radio;
+    private SimulatedTransport transport;
+    private TopicRegistry registry;
+    private int publishes;
+    private UpdateCoalescer updates;
+
+    @Before
+    public void setUp() {
+        radio = new SimulatedRadio(1);
+        transport = radio.addNode("00:00:00:00:00:01", 0, 0);
+        registry = new TopicRegistry();
+        updates = new UpdateCoalescer(transport, 100, new Runnable() {
+            @Override
+            public void run() {
+                if (registry.publish()) publishes++;
+            }
+        });
+    }
+
+    private void change(String topic, String value) {
+        if (registry.stage(topic, value)) updates.changed();
+    }
+
+    @Test
+    public void burstIsPublishedOnce() {
+        change("a", "v1");
+        radio.runFor(50);
+        change("b", "v1");
+        change("a", "v2");
+        assertEquals(0, registry.getVersion());
+        radio.runFor(60);
+
+        assertEquals(1, publishes);
+        assertEquals(1, registry.getVersion());
+        assertEquals(2, registry.snapshot().size());
+        assertEquals("v2", registry.snapshot().getValues().get(TopicRegistry.topic("a").getUuid()));
+
+        // A change after the window starts a new batch
+        change("a", "v3");
+        radio.runFor(200);
+        assertEquals(2, publishes);
+    }
+
+    @Test
+    public void flushPublishesAtOnce() {
+        change("a", "v1");
+        assertTrue(updates.isPending());
+        assertTrue(updates.flush());
+        assertEquals(1, publishes);
+        assertFalse(updates.flush());
+        radio.runFor(200);
+        assertEquals(1, publishes);
+    }
+
+    @Test
+    public void zeroWindowPublishesEveryChange() {
+        updates.setWindow(0);
+        change("a", "v1");
+        change("a", "v2");
+        change("a", "v2");
+        assertEquals(2, publishes);
+        assertFalse(updates.isPending());
+    }
+}
@@ -0,0 +1,65 @@
+package network.datahop.blediscovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class WireCodecUnitTest {
+
+    @Test
+    public void topicRoundTrip() {
+        byte[] value = "value:with:colons".getBytes();
+        WireCodec.Topic topic = WireCodec.decodeTopic(WireCodec.encodeTopic(value, "peer".getBytes()));
+        assertTrue(topic.valueEquals(value));
+        assertFalse(topic.valueEquals("value".getBytes()));
+        assertArrayEquals(value, topic.copyValue());
+        assertEquals("peer", topic.getPeerInfo());
+
+        topic = WireCodec.decodeTopic(WireCodec.encodeTopic(value, null));
+        assertTrue(topic.valueEquals(value));
+        assertEquals("", topic.getPeerInfo());
+    }
+
+    @Test
+    public void legacyTopic() {
+        byte[] message = WireCodec.encodeLegacyTopic("value".getBytes(), "peer".getBytes());
+        assertEquals("value:peer", new String(message));
+        assertFalse(WireCodec.isBinary(message));
+        WireCodec.Topic topic = WireCodec.decodeTopic(message);
+        assertTrue(topic.valueEquals("value".getBytes()));
+        assertEquals("peer", topic.getPeerInfo());
+        // The peer ends at the next separator
+        assertEquals("peer", WireCodec.decodeTopic("value:peer:extra".getBytes()).getPeerInfo());
+    }
+
+    @Test
+    public void networkInfoRoundTrip() {
+        WireCodec.NetworkInfo info = WireCodec.decodeNetworkInfo(
+                WireCodec.encodeNetworkInfo("net:work".getBytes(), "pa:ss".getBytes(), "peer".getBytes()));
+        assertEquals("net:work", info.getNetwork());
+        assertEquals("pa:ss", info.getPassword());
+        assertEquals("peer", info.getPeerInfo());
+    }
+
+    @Test
+    public void legacyNetworkInfo() {
+        WireCodec.NetworkInfo info = WireCodec.decodeNetworkInfo("network:pass:peer:with:colons".getBytes());
+        assertEquals("network", info.getNetwork());
+        assertEquals("pass", info.getPassword());
+        assertEquals("peer:with:colons", info.getPeerInfo());
+        assertNull(WireCodec.decodeNetworkInfo("network".getBytes()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedMessages() {
+        byte[] message = WireCodec.encodeTopic("value".getBytes(), "peer".getBytes());
+        byte[] truncated = new byte[message.length - 2];
+        System.arraycopy(message, 0, truncated, 0, truncated.length);
+        WireCodec.decodeTopic(truncated);
+    }
+}